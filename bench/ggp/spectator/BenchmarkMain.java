@@ -0,0 +1,34 @@
+package ggp.spectator;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH benchmarks for the ingest and read paths, with the GC profiler
+// enabled so that allocation rates (gc.alloc.rate.norm, in bytes per operation)
+// are reported alongside the timings. Results are also written as JSON, so runs
+// can be compared over time.
+//
+// The benchmarks are compiled together with src and tools (for the synthetic
+// matches), against the jars in war/WEB-INF/lib, the App Engine API jar, and
+// jmh-core, with JMH's annotation processor (jmh-generator-annprocess) on the
+// processor path:
+//
+//   javac -cp <jars> -processorpath <jmh jars> -d bench-classes $(find src tools bench -name "*.java")
+//   java -cp bench-classes:<jars> ggp.spectator.BenchmarkMain [benchmark regex] [results file]
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        String theInclude = (args.length > 0) ? args[0] : "ggp\\.spectator\\..*Benchmark";
+        String theResultsFile = (args.length > 1) ? args[1] : "bench-results.json";
+        Options theOptions = new OptionsBuilder()
+                .include(theInclude)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(theResultsFile)
+                .build();
+        new Runner(theOptions).run();
+    }
+}
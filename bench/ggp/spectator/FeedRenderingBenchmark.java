@@ -0,0 +1,96 @@
+package ggp.spectator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ggp.spectator.tools.SyntheticMatchGenerator;
+
+// Rendering the per-match Atom feed, and the recent match feeds as Atom and
+// JSON. Matches and feeds are kept in the embedded store, in a scratch
+// directory, so the match feed includes reading its segments back, as it would
+// for a match that isn't cached.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedRenderingBenchmark {
+    private static final String kFeedKey = "benchmark";
+
+    @Param({"20", "200"})
+    public int nSteps;
+
+    @Param({"10", "100"})
+    public int nFeedEntries;
+
+    private File theStoreDirectory;
+    private MatchData theStoredMatch;
+    private AtomKeyFeed theFeed;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Each benchmark runs in its own forked JVM, so the store can be chosen
+        // here, before anything touches it.
+        theStoreDirectory = File.createTempFile("spectator-bench", "");
+        theStoreDirectory.delete();
+        System.setProperty("ggp.spectator.store", "embedded");
+        System.setProperty("ggp.spectator.storeDir", theStoreDirectory.getPath());
+
+        SyntheticMatchGenerator theGenerator = new SyntheticMatchGenerator(2, 64, false);
+        MatchData theMatch = new MatchData(theGenerator.generateMatch(0, nSteps, false), "benchmark", true);
+        theStoredMatch = MatchData.loadMatchData(theMatch.getMatchKey());
+
+        List<String> theMatchKeys = new ArrayList<String>();
+        for (int i = 0; i < nFeedEntries; i++) {
+            theMatchKeys.add(new MatchData(theGenerator.generateMatch(i + 1, 1, false), "benchmark", true).getMatchKey());
+        }
+        AtomKeyFeed.addRecentMatchKeys(kFeedKey, theMatchKeys);
+        theFeed = AtomKeyFeed.loadAtomKeyFeed(kFeedKey);
+    }
+
+    @TearDown
+    public void tearDown() {
+        deleteRecursively(theStoreDirectory);
+    }
+
+    private static void deleteRecursively(File theFile) {
+        File[] theChildren = theFile.listFiles();
+        if (theChildren != null) {
+            for (File theChild : theChildren) {
+                deleteRecursively(theChild);
+            }
+        }
+        theFile.delete();
+    }
+
+    @Benchmark
+    public String matchAtomFeed() {
+        return theStoredMatch.getAtomFeed();
+    }
+
+    @Benchmark
+    public String recentMatchesAtomFeed() {
+        return theFeed.getAtomFeed();
+    }
+
+    @Benchmark
+    public String recentMatchesJsonFeed() {
+        return theFeed.getJsonFeed();
+    }
+}
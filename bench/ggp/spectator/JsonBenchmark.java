@@ -0,0 +1,52 @@
+package ggp.spectator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import external.JSON.JSONObject;
+import ggp.spectator.tools.SyntheticMatchGenerator;
+
+// Parsing posted match JSON, and serializing it back out for responses.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"20", "200"})
+    public int nSteps;
+
+    @Param({"64", "512"})
+    public int nCells;
+
+    private JSONObject theMatchJSON;
+    private String theMatchString;
+
+    @Setup
+    public void setUp() {
+        theMatchJSON = new SyntheticMatchGenerator(2, nCells, false).generateMatch(0, nSteps, false);
+        theMatchString = theMatchJSON.toString();
+    }
+
+    @Benchmark
+    public JSONObject parse() throws Exception {
+        return new JSONObject(theMatchString);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return theMatchJSON.toString();
+    }
+}
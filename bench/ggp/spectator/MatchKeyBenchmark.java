@@ -0,0 +1,51 @@
+package ggp.spectator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import external.JSON.JSONObject;
+import ggp.spectator.tools.SyntheticMatchGenerator;
+
+// Computing match keys from the identifying fields of a posted match: once from
+// scratch, as for a match that isn't in the key cache, and once per further
+// attempt, as when resolving a key collision.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchKeyBenchmark {
+    @Param({"false", "true"})
+    public boolean isSigned;
+
+    private JSONObject theMatchJSON;
+    private MatchIdentity theIdentity;
+
+    @Setup
+    public void setUp() {
+        theMatchJSON = new SyntheticMatchGenerator(2, 64, isSigned).generateMatch(0, 0, false);
+        theIdentity = MatchIdentity.fromJSON(theMatchJSON);
+    }
+
+    @Benchmark
+    public String computeKeyFromJSON() {
+        return MatchIdentity.fromJSON(theMatchJSON).getKeyAttempt(0);
+    }
+
+    @Benchmark
+    public String computeKeyAttempt() {
+        return theIdentity.getKeyAttempt(1);
+    }
+}
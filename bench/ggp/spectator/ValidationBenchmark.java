@@ -0,0 +1,113 @@
+package ggp.spectator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.crypto.SignableJSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import external.JSON.JSONObject;
+import ggp.spectator.tools.SyntheticMatchGenerator;
+
+// The validation that every posted match update goes through. The update is the
+// match after one more step than the stored version. The state fingerprint and
+// signature verdict caches are warm after the first invocation, as they are for
+// a match host that keeps posting the same states, so the signature check is
+// also measured on its own, uncached.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+    @Param({"2", "4"})
+    public int nPlayers;
+
+    @Param({"20", "200"})
+    public int nSteps;
+
+    @Param({"64", "512"})
+    public int nCells;
+
+    @Param({"false", "true"})
+    public boolean isSigned;
+
+    private JSONObject theOldJSON;
+    private JSONObject theNewJSON;
+    private String theNewData;
+    private MatchModel theOldModel;
+    private MatchModel theNewModel;
+    private PrefixDigests theOldDigests;
+
+    @Setup
+    public void setUp() throws Exception {
+        SyntheticMatchGenerator theGenerator = new SyntheticMatchGenerator(nPlayers, nCells, isSigned);
+        theOldJSON = theGenerator.generateMatch(0, nSteps - 1, false);
+        theNewJSON = theGenerator.generateMatch(0, nSteps, false);
+        theNewData = theNewJSON.toString();
+        theOldModel = MatchModel.fromJSON(theOldJSON);
+        theNewModel = MatchModel.fromJSON(theNewJSON);
+
+        List<String> theArrays = Arrays.asList("states", "moves", "stateTimes", "errors");
+        List<Integer> theLengths = new ArrayList<Integer>();
+        List<String> theDigests = new ArrayList<String>();
+        for (String theArray : theArrays) {
+            int nLength = theOldJSON.getJSONArray(theArray).length();
+            theLengths.add(nLength);
+            theDigests.add(PrefixDigests.computeDigest(theOldJSON.getJSONArray(theArray), nLength));
+        }
+        theOldDigests = new PrefixDigests(theArrays, theLengths, theDigests);
+    }
+
+    @Benchmark
+    public void internalConsistencyChecks() throws Exception {
+        MatchValidation.performInternalConsistencyChecks(theNewJSON);
+    }
+
+    // The same checks, other than the signature, made while parsing the posted
+    // JSON; compare with parsing it into a JSONObject in JsonBenchmark.
+    @Benchmark
+    public void streamingConsistencyChecks() throws Exception {
+        StreamingMatchValidator.validate(theNewData);
+    }
+
+    @Benchmark
+    public void updateForwardValidationChecks() throws Exception {
+        MatchValidation.performUpdateForwardValidationChecks(theOldModel, theNewModel);
+    }
+
+    @Benchmark
+    public boolean updateForwardDigestChecks() throws Exception {
+        return MatchValidation.performUpdateForwardValidationChecks(theOldModel, theOldDigests, theNewModel);
+    }
+
+    // The update is checked against the stored match as models, which are built
+    // once per update for the new match and once per load for the stored one.
+    @Benchmark
+    public MatchModel buildMatchModel() throws Exception {
+        return MatchModel.fromJSON(theNewJSON);
+    }
+
+    @Benchmark
+    public void verifyNoNulls() throws Exception {
+        MatchValidation.verifyNoNulls(theNewJSON, "theMatchJSON");
+    }
+
+    @Benchmark
+    public boolean verifySignature() throws Exception {
+        return isSigned && SignableJSON.verifySignedJSON(theNewJSON);
+    }
+}
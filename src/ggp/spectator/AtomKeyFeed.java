@@ -1,66 +1,111 @@
 package ggp.spectator;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
-import javax.jdo.JDOObjectNotFoundException;
-import javax.jdo.PersistenceManager;
 import javax.jdo.annotations.*;
 
-import org.ggp.galaxy.shared.persistence.Persistence;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import external.JSON.JSONArray;
 import external.JSON.JSONException;
 import external.JSON.JSONObject;
 
+// The most recent entries of a recent match feed, like updatedFeed. In the
+// datastore, each feed is split across several of these, which serve as write
+// shards (see JdoFeedStore), and reads merge the shards into a single feed,
+// which isn't persisted. Merged feeds are cached briefly.
 @PersistenceCapable
 public class AtomKeyFeed {
     @PrimaryKey @Persistent private String theFeedKey;
     @Persistent private List<String> recentMatchEntries_Key;
     @Persistent private List<Date> recentMatchEntries_Date;
-    @Persistent private List<Integer> recentMatchEntries_Index;
+    @Persistent private List<Long> recentMatchEntries_Index;
     @Persistent private Date lastUpdated;
     @Persistent private int nCount;
-    private static final int kRecentMatchKeysToRecord = 100;
-    
+    // Once the recent entries are full, they're used as a ring buffer, and this is
+    // the slot holding the oldest entry, which will be overwritten next. This is
+    // missing for feeds written before it was added, which were kept in order.
+    @Persistent private Integer nOldestSlot;
+    static final int kRecentMatchKeysToRecord = 100;
+    private static final int kMergedFeedCacheSeconds = 2;
+    private static final int kHistoryPageSize = 100;
+
+    private static final Cache<String, AtomKeyFeed> theMergedFeeds = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(kMergedFeedCacheSeconds, TimeUnit.SECONDS)
+            .build();
+
     public AtomKeyFeed(String theFeedKey) {
         this.theFeedKey = theFeedKey;
         this.recentMatchEntries_Key = new ArrayList<String>();
         this.recentMatchEntries_Date = new ArrayList<Date>();
-        this.recentMatchEntries_Index = new ArrayList<Integer>();
+        this.recentMatchEntries_Index = new ArrayList<Long>();
         this.lastUpdated = new Date();
         this.nCount = 0;
+        this.nOldestSlot = 0;
     }
-    
+
     /* Static accessor methods */
     public static void addRecentMatchKey(String theFeedKey, String theMatchKey) {
-        PersistenceManager pm = Persistence.getPersistenceManager();
-        AtomKeyFeed recent = null;
-        try {
-            recent = pm.getObjectById(AtomKeyFeed.class, theFeedKey);
-        } catch (JDOObjectNotFoundException onfe) {
-            recent = new AtomKeyFeed(theFeedKey);
+        addRecentMatchKeys(theFeedKey, Collections.singletonList(theMatchKey));
+    }
+
+    // Appends several match keys to the feed, in order, with a single write.
+    public static void addRecentMatchKeys(String theFeedKey, List<String> theMatchKeys) {
+        if (theMatchKeys.isEmpty()) return;
+        Stores.getFeedStore().addRecentMatchKeys(theFeedKey, theMatchKeys);
+        theMergedFeeds.invalidate(theFeedKey);
+    }
+
+    private int getNewestSlot() {
+        if (recentMatchEntries_Key.size() < kRecentMatchKeysToRecord || nOldestSlot == null) {
+            return recentMatchEntries_Key.size() - 1;
         }
-        
-        recent.nCount += 1;        
-        recent.lastUpdated = new Date();
-        recent.recentMatchEntries_Key.add(theMatchKey);
-        recent.recentMatchEntries_Date.add(new Date());
-        recent.recentMatchEntries_Index.add(recent.nCount);
-        if (recent.recentMatchEntries_Key.size() > kRecentMatchKeysToRecord) {
-            recent.recentMatchEntries_Key.remove(0);
-            recent.recentMatchEntries_Date.remove(0);
-            recent.recentMatchEntries_Index.remove(0);
+        return (nOldestSlot + kRecentMatchKeysToRecord - 1) % kRecentMatchKeysToRecord;
+    }
+
+    // Adds an entry to this shard of the feed, and returns its index.
+    long addEntry(String theMatchKey, int nShard, int nShards) {
+        Date theDate = new Date();
+
+        // Entry indices only need to be unique across the shards of a feed, and
+        // increasing within each shard. Deriving them from the time, with the shard
+        // number in the low digits, keeps them roughly ordered across shards too.
+        long nIndex = theDate.getTime() * nShards + nShard;
+        if (!recentMatchEntries_Index.isEmpty()) {
+            long nLastIndex = recentMatchEntries_Index.get(getNewestSlot());
+            if (nIndex <= nLastIndex) {
+                nIndex = nLastIndex + nShards - ((nLastIndex - nIndex) % nShards);
+            }
+        }
+
+        nCount += 1;
+        lastUpdated = theDate;
+        if (recentMatchEntries_Key.size() < kRecentMatchKeysToRecord) {
+            recentMatchEntries_Key.add(theMatchKey);
+            recentMatchEntries_Date.add(theDate);
+            recentMatchEntries_Index.add(nIndex);
+        } else {
+            int nSlot = (nOldestSlot == null) ? 0 : nOldestSlot;
+            recentMatchEntries_Key.set(nSlot, theMatchKey);
+            recentMatchEntries_Date.set(nSlot, theDate);
+            recentMatchEntries_Index.set(nSlot, nIndex);
+            nOldestSlot = (nSlot + 1) % kRecentMatchKeysToRecord;
         }
-        pm.makePersistent(recent);
-        pm.close();
+        return nIndex;
     }
-    
+
     public static List<String> getRecentMatchKeys(String theFeedKey) {
-        AtomKeyFeed recent = Persistence.loadSpecific(theFeedKey, AtomKeyFeed.class);
+        AtomKeyFeed recent = loadAtomKeyFeed(theFeedKey);
         if (recent == null) return null;
         ArrayList<String> theRecentKeys = new ArrayList<String>();
         for (String s : recent.recentMatchEntries_Key) {
@@ -68,59 +113,154 @@ public class AtomKeyFeed {
         }
         return theRecentKeys;
     }
-    
+
+    // Returns the merged view of all of the shards of the feed, which shouldn't
+    // be persisted. Returns null when none of the shards exist.
+    public static AtomKeyFeed loadAtomKeyFeed(String theFeedKey) {
+        AtomKeyFeed theMerged = theMergedFeeds.getIfPresent(theFeedKey);
+        if (theMerged == null) {
+            theMerged = Stores.getFeedStore().loadRecentEntries(theFeedKey);
+            if (theMerged == null) return null;
+            theMergedFeeds.put(theFeedKey, theMerged);
+        }
+        return theMerged;
+    }
+
+    // Merges the shards of a feed into a single feed, holding their most recent
+    // entries. Returns null when there aren't any shards.
+    static AtomKeyFeed mergeShards(String theFeedKey, List<AtomKeyFeed> theShards) {
+        if (theShards.isEmpty()) return null;
+        final List<String> theKeys = new ArrayList<String>();
+        final List<Date> theDates = new ArrayList<Date>();
+        final List<Long> theIndices = new ArrayList<Long>();
+        Date lastUpdated = null;
+        int nCount = 0;
+        for (AtomKeyFeed theShard : theShards) {
+            nCount += theShard.nCount;
+            if (lastUpdated == null || (theShard.lastUpdated != null && theShard.lastUpdated.after(lastUpdated))) {
+                lastUpdated = theShard.lastUpdated;
+            }
+            for (int i = 0; i < theShard.recentMatchEntries_Key.size(); i++) {
+                theKeys.add(theShard.recentMatchEntries_Key.get(i));
+                theDates.add(theShard.recentMatchEntries_Date.get(i));
+                theIndices.add(theShard.recentMatchEntries_Index.get(i));
+            }
+        }
+
+        // Order the entries from oldest to newest, like a single shard, and keep
+        // only the most recent ones.
+        List<Integer> theOrder = new ArrayList<Integer>();
+        for (int i = 0; i < theKeys.size(); i++) {
+            theOrder.add(i);
+        }
+        Collections.sort(theOrder, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int nDateOrder = theDates.get(a).compareTo(theDates.get(b));
+                if (nDateOrder != 0) return nDateOrder;
+                return theIndices.get(a).compareTo(theIndices.get(b));
+            }
+        });
+
+        AtomKeyFeed theMerged = new AtomKeyFeed(theFeedKey);
+        for (int i = Math.max(0, theOrder.size() - kRecentMatchKeysToRecord); i < theOrder.size(); i++) {
+            int n = theOrder.get(i);
+            theMerged.recentMatchEntries_Key.add(theKeys.get(n));
+            theMerged.recentMatchEntries_Date.add(theDates.get(n));
+            theMerged.recentMatchEntries_Index.add(theIndices.get(n));
+        }
+        theMerged.lastUpdated = lastUpdated;
+        theMerged.nCount = nCount;
+        return theMerged;
+    }
+
+    // Builds a feed from its most recent entries, given from oldest to newest.
+    static AtomKeyFeed fromEntries(String theFeedKey, List<FeedLogEntry> theEntries, int nCount) {
+        AtomKeyFeed theFeed = new AtomKeyFeed(theFeedKey);
+        for (FeedLogEntry theEntry : theEntries) {
+            theFeed.recentMatchEntries_Key.add(theEntry.getMatchKey());
+            theFeed.recentMatchEntries_Date.add(theEntry.getDate());
+            theFeed.recentMatchEntries_Index.add(theEntry.getIndex());
+            theFeed.lastUpdated = theEntry.getDate();
+        }
+        theFeed.nCount = nCount;
+        return theFeed;
+    }
+
+    // Returns the page of the feed history that follows the given entry index, as
+    // {"feed": ..., "entries": [{"index", "matchKey", "date"}, ...], "after": ...,
+    // "more": ...}, where "after" is the index to request the next page with.
+    public static String getJsonFeedHistory(String theFeedKey, long nAfter) {
+        List<FeedLogEntry> theEntries = Stores.getFeedStore().loadHistory(theFeedKey, nAfter, kHistoryPageSize);
+        try {
+            JSONObject theHistory = new JSONObject();
+            JSONArray theArray = new JSONArray();
+            long nLastIndex = nAfter;
+            for (FeedLogEntry theEntry : theEntries) {
+                JSONObject theEntryJSON = new JSONObject();
+                theEntryJSON.put("index", theEntry.getIndex());
+                theEntryJSON.put("matchKey", theEntry.getMatchKey());
+                theEntryJSON.put("date", theEntry.getDate().getTime());
+                theArray.put(theEntryJSON);
+                nLastIndex = theEntry.getIndex();
+            }
+            theHistory.put("feed", theFeedKey);
+            theHistory.put("entries", theArray);
+            theHistory.put("after", nLastIndex);
+            theHistory.put("more", theEntries.size() == kHistoryPageSize);
+            return theHistory.toString();
+        } catch (JSONException je) {
+            return null;
+        }
+    }
+
     public static String getAtomFeed(String theFeedKey) {
-        AtomKeyFeed recent = Persistence.loadSpecific(theFeedKey, AtomKeyFeed.class);
+        AtomKeyFeed recent = loadAtomKeyFeed(theFeedKey);
         if (recent == null) return null;
-        return recent.getAtomFeed();        
+        return recent.getAtomFeed();
     }
-    
+
     public static String getJsonFeed(String theFeedKey) {
-        AtomKeyFeed recent = Persistence.loadSpecific(theFeedKey, AtomKeyFeed.class);
+        AtomKeyFeed recent = loadAtomKeyFeed(theFeedKey);
         if (recent == null) return null;
-        return recent.getJsonFeed();        
-    }    
-    
+        return recent.getJsonFeed();
+    }
+
+    public int getCount() {
+        return nCount;
+    }
+
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
     /* ATOM Methods */
     public String getAtomFeed() {
-        StringBuilder b = new StringBuilder();
+        StringWriter w = new StringWriter();
+        try {
+            writeAtomFeed(w);
+        } catch (IOException e) {
+            return null;
+        }
+        return w.toString();
+    }
+
+    public void writeAtomFeed(Writer w) throws IOException {
         String atomTitle = "GGP Spectator Server Feed [" + theFeedKey + "]";
         String atomId = "tag:matches.ggp.org,2010-01-01:/matches/feeds/" + theFeedKey + ".atom";
+        String atomSelfURL = "http://matches.ggp.org/matches/feeds/" + theFeedKey + ".atom";
 
-        b.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?> \n");
-        b.append("<feed xmlns=\"http://www.w3.org/2005/Atom\"> \n");
-        b.append("   <title>" + atomTitle + "</title> \n");
-        b.append("   <link rel=\"hub\" href=\"http://pubsubhubbub.appspot.com/\"/> \n");
-        b.append("   <link rel=\"self\" href=\"http://matches.ggp.org/matches/feeds/" + theFeedKey + ".atom\" type=\"application/atom+xml\"/> \n");
-        b.append("   <updated>" + getAtomDateString(lastUpdated) + "</updated> \n");
-        b.append("   <author><name>GGP Spectator Server</name></author> \n");
-        b.append("   <id>" + atomId + "</id> \n");
-        b.append("\n");
+        AtomWriter theWriter = new AtomWriter(w);
+        theWriter.writeHeader(atomTitle, atomId, atomSelfURL, null, null, lastUpdated);
         for (int i = recentMatchEntries_Key.size()-1; i >= 0; i--) {
             String theKey = recentMatchEntries_Key.get(i);
             Date theDate = recentMatchEntries_Date.get(i);
-            int theIndex = recentMatchEntries_Index.get(i);
+            long theIndex = recentMatchEntries_Index.get(i);
             String atomStateId = "tag:matches.ggp.org,2010-01-01:/matches/feeds/" + theFeedKey + ".atom/" + theIndex;
-            String atomStateTime = getAtomDateString(theDate);
-            b.append("   <entry> \n");
-            b.append("      <title>Match</title> \n");
-            b.append("      <link href=\"http://matches.ggp.org/matches/" + theKey + "/\"/> \n");
-            b.append("      <id>" + atomStateId + "</id> \n");
-            b.append("      <updated>" + atomStateTime + "</updated> \n");
-            b.append("      <summary>Match event occurred.</summary> \n");
-            b.append("   </entry> \n");  
+            theWriter.writeEntry("Match", "http://matches.ggp.org/matches/" + theKey + "/", atomStateId, theDate, "Match event occurred.");
         }
-        b.append("</feed> \n");
-        return b.toString();     
-    }
-    
-    public static String getAtomDateString(Date d) {
-        // Based on RFC 3339
-        SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        dateFormatGmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return dateFormatGmt.format(d);
+        theWriter.writeFooter();
     }
-    
+
     /* JSON Methods */
     public String getJsonFeed() {
         JSONObject theFeed = new JSONObject();
@@ -0,0 +1,70 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+// Writes Atom feeds directly to an output writer, entry by entry, rather than
+// building the entire feed in memory first. Shared by the per-match feeds and
+// the recent match key feeds.
+public class AtomWriter {
+    public static final String HUB_URL = PuSHPublisher.DEFAULT_HUB;
+
+    // SimpleDateFormat isn't thread-safe, so each thread gets its own instance,
+    // rather than allocating a new one for every date that's formatted.
+    private static final ThreadLocal<SimpleDateFormat> theDateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            // Based on RFC 3339
+            SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            dateFormatGmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return dateFormatGmt;
+        }
+    };
+
+    public static String getAtomDateString(Date d) {
+        return theDateFormat.get().format(d);
+    }
+
+    private final Writer w;
+
+    public AtomWriter(Writer w) {
+        this.w = w;
+    }
+
+    // The alternate and next links are optional, and are left out when null.
+    public void writeHeader(String theTitle, String theId, String theSelfURL, String theAlternateURL, String theNextURL, Date theUpdated) throws IOException {
+        w.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?> \n");
+        w.write("<feed xmlns=\"http://www.w3.org/2005/Atom\"> \n");
+        w.write("   <title>" + theTitle + "</title> \n");
+        w.write("   <link rel=\"hub\" href=\"" + HUB_URL + "\"/> \n");
+        if (theAlternateURL != null) {
+            w.write("   <link href=\"" + theAlternateURL + "\"/> \n");
+        }
+        w.write("   <link rel=\"self\" href=\"" + theSelfURL + "\" type=\"application/atom+xml\"/> \n");
+        if (theNextURL != null) {
+            w.write("   <link rel=\"next\" href=\"" + theNextURL + "\" type=\"application/atom+xml\"/> \n");
+        }
+        w.write("   <updated>" + getAtomDateString(theUpdated) + "</updated> \n");
+        w.write("   <author><name>GGP Spectator Server</name></author> \n");
+        w.write("   <id>" + theId + "</id> \n");
+        w.write("\n");
+    }
+
+    public void writeEntry(String theTitle, String theLink, String theId, Date theUpdated, String theSummary) throws IOException {
+        w.write("   <entry> \n");
+        w.write("      <title>" + theTitle + "</title> \n");
+        w.write("      <link href=\"" + theLink + "\"/> \n");
+        w.write("      <id>" + theId + "</id> \n");
+        w.write("      <updated>" + getAtomDateString(theUpdated) + "</updated> \n");
+        w.write("      <summary>" + theSummary + "</summary> \n");
+        w.write("   </entry> \n");
+    }
+
+    public void writeFooter() throws IOException {
+        w.write("</feed> \n");
+        w.flush();
+    }
+}
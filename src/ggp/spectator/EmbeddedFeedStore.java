@@ -0,0 +1,157 @@
+package ggp.spectator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Stores the recent match feeds in a LogStructuredStore on local disk, for
+// running the spectator server outside of App Engine. Only the feed histories
+// are written; the recent entries of each feed are just the tail of its history.
+// Appends happen in a single process, so entry indices are simply consecutive,
+// starting from 1.
+//
+// Only the recent entries of each feed are kept in memory, and they're loaded
+// when the feed is first used. Older pages of the history are read from the log
+// when they're asked for, so neither memory nor startup time grows with the
+// length of the history.
+public class EmbeddedFeedStore implements FeedStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String kKeyPrefix = "feed:";
+
+    private static class Feed {
+        volatile long nLastIndex;
+        final ConcurrentNavigableMap<Long, FeedLogEntry> theRecentEntries = new ConcurrentSkipListMap<Long, FeedLogEntry>();
+    }
+
+    private final LogStructuredStore theStore;
+    private final Map<String, Feed> theFeeds = new ConcurrentHashMap<String, Feed>();
+
+    public EmbeddedFeedStore(File theDirectory, boolean shouldSync) throws IOException {
+        theStore = new LogStructuredStore(theDirectory, shouldSync);
+    }
+
+    private static String getEntryKey(String theFeedKey, long nIndex) {
+        return kKeyPrefix + theFeedKey + ":" + nIndex;
+    }
+
+    // Returns null if the feed has no entries and shouldCreate isn't set, so that
+    // reads of feeds that don't exist don't leave anything behind.
+    private synchronized Feed getFeed(String theFeedKey, boolean shouldCreate) {
+        Feed theFeed = theFeeds.get(theFeedKey);
+        if (theFeed == null) {
+            long nLastIndex = findLastIndex(theFeedKey);
+            if (nLastIndex == 0 && !shouldCreate) return null;
+            theFeed = new Feed();
+            theFeed.nLastIndex = nLastIndex;
+            for (long nIndex = Math.max(1, nLastIndex - AtomKeyFeed.kRecentMatchKeysToRecord + 1); nIndex <= nLastIndex; nIndex++) {
+                theFeed.theRecentEntries.put(nIndex, readEntry(theFeedKey, nIndex));
+            }
+            theFeeds.put(theFeedKey, theFeed);
+        }
+        return theFeed;
+    }
+
+    // Entries are numbered consecutively, so the last one can be found by probing
+    // the store's index, without reading any of them.
+    private long findLastIndex(String theFeedKey) {
+        long nLow = 0;
+        long nHigh = 1;
+        while (theStore.contains(getEntryKey(theFeedKey, nHigh))) {
+            nLow = nHigh;
+            nHigh *= 2;
+        }
+        while (nHigh - nLow > 1) {
+            long nMiddle = (nLow + nHigh) >>> 1;
+            if (theStore.contains(getEntryKey(theFeedKey, nMiddle))) {
+                nLow = nMiddle;
+            } else {
+                nHigh = nMiddle;
+            }
+        }
+        return nLow;
+    }
+
+    private FeedLogEntry readEntry(String theFeedKey, long nIndex) {
+        String theKey = getEntryKey(theFeedKey, nIndex);
+        byte[] theStored = theStore.get(theKey);
+        if (theStored == null) {
+            throw new RuntimeException("Could not find stored feed entry " + theKey);
+        }
+        try {
+            JSONObject theValue = new JSONObject(new String(theStored, UTF8));
+            return new FeedLogEntry(theFeedKey, nIndex, theValue.getString("matchKey"), new Date(theValue.getLong("date")));
+        } catch (JSONException e) {
+            throw new RuntimeException("Could not parse stored feed entry " + theKey, e);
+        }
+    }
+
+    public void addRecentMatchKeys(String theFeedKey, List<String> theMatchKeys) {
+        Feed theFeed = getFeed(theFeedKey, true);
+        synchronized (theFeed) {
+            long nIndex = theFeed.nLastIndex;
+            Date theDate = new Date();
+            List<FeedLogEntry> theEntries = new ArrayList<FeedLogEntry>();
+            Map<String, byte[]> theValues = new LinkedHashMap<String, byte[]>();
+            try {
+                for (String theMatchKey : theMatchKeys) {
+                    nIndex++;
+                    JSONObject theValue = new JSONObject();
+                    theValue.put("matchKey", theMatchKey);
+                    theValue.put("date", theDate.getTime());
+                    theValues.put(getEntryKey(theFeedKey, nIndex), theValue.toString().getBytes(UTF8));
+                    theEntries.add(new FeedLogEntry(theFeedKey, nIndex, theMatchKey, theDate));
+                }
+                theStore.putAll(theValues);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            for (FeedLogEntry theEntry : theEntries) {
+                theFeed.theRecentEntries.put(theEntry.getIndex(), theEntry);
+            }
+            theFeed.nLastIndex = nIndex;
+            while (theFeed.theRecentEntries.size() > AtomKeyFeed.kRecentMatchKeysToRecord) {
+                theFeed.theRecentEntries.pollFirstEntry();
+            }
+        }
+    }
+
+    public AtomKeyFeed loadRecentEntries(String theFeedKey) {
+        Feed theFeed = getFeed(theFeedKey, false);
+        if (theFeed == null) return null;
+        List<FeedLogEntry> theRecentEntries;
+        long nLastIndex;
+        synchronized (theFeed) {
+            theRecentEntries = new ArrayList<FeedLogEntry>(theFeed.theRecentEntries.values());
+            nLastIndex = theFeed.nLastIndex;
+        }
+        if (theRecentEntries.isEmpty()) return null;
+        return AtomKeyFeed.fromEntries(theFeedKey, theRecentEntries, (int)nLastIndex);
+    }
+
+    public List<FeedLogEntry> loadHistory(String theFeedKey, long nAfter, int nLimit) {
+        // Entries become visible in index order, so there's no need to wait for
+        // the history to settle.
+        List<FeedLogEntry> theEntries = new ArrayList<FeedLogEntry>();
+        Feed theFeed = getFeed(theFeedKey, false);
+        if (theFeed == null) return theEntries;
+        long nLastIndex = theFeed.nLastIndex;
+        for (long nIndex = Math.max(1, nAfter + 1); nIndex <= nLastIndex && theEntries.size() < nLimit; nIndex++) {
+            FeedLogEntry theEntry = theFeed.theRecentEntries.get(nIndex);
+            theEntries.add((theEntry != null) ? theEntry : readEntry(theFeedKey, nIndex));
+        }
+        return theEntries;
+    }
+}
@@ -0,0 +1,138 @@
+package ggp.spectator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.JDOObjectNotFoundException;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Stores matches in a LogStructuredStore on local disk, for running the
+// spectator server outside of App Engine. Match headers are kept as JSON,
+// segments are kept as their raw segment JSON, and game dictionaries as their
+// gameMetaURL followed by their symbols, one per line, alongside the key of
+// each game's newest dictionary.
+public class EmbeddedMatchStore implements MatchStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final LogStructuredStore theStore;
+
+    public EmbeddedMatchStore(File theDirectory, boolean shouldSync) throws IOException {
+        theStore = new LogStructuredStore(theDirectory, shouldSync);
+    }
+
+    private static String getMatchKey(String theMatchKey) {
+        return "match:" + theMatchKey;
+    }
+
+    private static String getSegmentKey(String theSegmentKey) {
+        return "segment:" + theSegmentKey;
+    }
+
+    private static String getDictionaryKey(String theDictionaryKey) {
+        return "dictionary:" + theDictionaryKey;
+    }
+
+    private static String getDictionaryHeadKey(String theGameMetaURL) {
+        return "dictionaryHead:" + theGameMetaURL;
+    }
+
+    public MatchData loadMatch(String theMatchKey) throws IOException {
+        byte[] theValue = theStore.get(getMatchKey(theMatchKey));
+        if (theValue == null) return null;
+        try {
+            return MatchData.fromStoredJSON(new JSONObject(new String(theValue, UTF8)));
+        } catch (JSONException e) {
+            throw new IOException("Could not parse stored match " + theMatchKey, e);
+        }
+    }
+
+    public List<MatchSegment> loadSegments(List<String> theSegmentKeys) {
+        List<MatchSegment> theSegments = new ArrayList<MatchSegment>();
+        for (String theSegmentKey : theSegmentKeys) {
+            byte[] theValue = theStore.get(getSegmentKey(theSegmentKey));
+            if (theValue == null) {
+                throw new JDOObjectNotFoundException("Could not find segment " + theSegmentKey);
+            }
+            theSegments.add(new MatchSegment(theSegmentKey, new String(theValue, UTF8)));
+        }
+        return theSegments;
+    }
+
+    public void saveMatches(List<MatchData> theMatches) {
+        // Segments are written ahead of the headers that refer to them, so a torn
+        // write can leave unused segments behind, but never a header with missing
+        // segments.
+        Map<String, byte[]> theSegmentValues = new LinkedHashMap<String, byte[]>();
+        Map<String, byte[]> theMatchValues = new LinkedHashMap<String, byte[]>();
+        try {
+            for (MatchData theMatch : theMatches) {
+                for (MatchSegment theSegment : theMatch.takePendingSegments()) {
+                    theSegmentValues.put(getSegmentKey(theSegment.getKey()), theSegment.getSegmentJSONString().getBytes(UTF8));
+                }
+                theMatchValues.put(getMatchKey(theMatch.getMatchKey()), theMatch.toStoredJSON().toString().getBytes(UTF8));
+            }
+            theSegmentValues.putAll(theMatchValues);
+            theStore.putAll(theSegmentValues);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void deleteMatch(String theMatchKey, List<String> theSegmentKeys) {
+        // The header goes first, so the match is never visible with its segments gone.
+        Map<String, byte[]> theDeletions = new LinkedHashMap<String, byte[]>();
+        theDeletions.put(getMatchKey(theMatchKey), null);
+        for (String theSegmentKey : theSegmentKeys) {
+            theDeletions.put(getSegmentKey(theSegmentKey), null);
+        }
+        try {
+            theStore.putAll(theDeletions);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public GameDictionary loadDictionary(String theDictionaryKey) {
+        byte[] theValue = theStore.get(getDictionaryKey(theDictionaryKey));
+        if (theValue == null) return null;
+        String theStored = new String(theValue, UTF8);
+        int nBreak = theStored.indexOf('\n');
+        if (nBreak < 0) {
+            return new GameDictionary(theDictionaryKey, theStored, "");
+        }
+        return new GameDictionary(theDictionaryKey, theStored.substring(0, nBreak), theStored.substring(nBreak + 1));
+    }
+
+    public GameDictionary loadLatestDictionary(String theGameMetaURL) {
+        byte[] theLatestKey = theStore.get(getDictionaryHeadKey(theGameMetaURL));
+        if (theLatestKey == null) return null;
+        return loadDictionary(new String(theLatestKey, UTF8));
+    }
+
+    // Only this process writes to the store, so checking and moving the head while
+    // the store's lock is enough. The dictionary is written before the head.
+    public synchronized boolean saveDictionary(GameDictionary theDictionary, String thePreviousKey) {
+        String theHeadKey = getDictionaryHeadKey(theDictionary.getGameMetaURL());
+        byte[] theLatestKey = theStore.get(theHeadKey);
+        if (theLatestKey == null ? thePreviousKey != null : !new String(theLatestKey, UTF8).equals(thePreviousKey)) {
+            return false;
+        }
+        String theStored = theDictionary.getGameMetaURL() + "\n" + theDictionary.getJoinedSymbols();
+        try {
+            theStore.put(getDictionaryKey(theDictionary.getKey()), theStored.getBytes(UTF8));
+            theStore.put(theHeadKey, theDictionary.getKey().getBytes(UTF8));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+}
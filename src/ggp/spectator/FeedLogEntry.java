@@ -0,0 +1,55 @@
+package ggp.spectator;
+
+import java.util.Date;
+
+import javax.jdo.annotations.*;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+// One entry in the append-only history of a recent match feed. The recent match
+// feeds themselves only keep the latest entries, so consumers that fall behind
+// page through these instead, in order of their entry indices.
+//
+// In the datastore, each entry is a child of the feed shard it was appended to
+// (see JdoFeedStore), so that it's written in the same transaction as the shard,
+// and can be read back with a strongly consistent ancestor query.
+@PersistenceCapable(detachable="true")
+public class FeedLogEntry {
+    @PrimaryKey @Persistent private Key theEntryKey;
+    @Persistent @Extension(vendorName="datanucleus", key="gae.parent-pk", value="true") private Key theShardKey;
+    @Persistent private String theFeedKey;
+    @Persistent private long nIndex;
+    @Persistent private String theMatchKey;
+    @Persistent private Date theDate;
+
+    public FeedLogEntry(String theFeedKey, long nIndex, String theMatchKey, Date theDate) {
+        this(theFeedKey, null, nIndex, theMatchKey, theDate);
+    }
+
+    public FeedLogEntry(String theFeedKey, Key theShardKey, long nIndex, String theMatchKey, Date theDate) {
+        String theName = theFeedKey + "." + nIndex;
+        if (theShardKey == null) {
+            this.theEntryKey = KeyFactory.createKey(FeedLogEntry.class.getSimpleName(), theName);
+        } else {
+            this.theEntryKey = KeyFactory.createKey(theShardKey, FeedLogEntry.class.getSimpleName(), theName);
+        }
+        this.theShardKey = theShardKey;
+        this.theFeedKey = theFeedKey;
+        this.nIndex = nIndex;
+        this.theMatchKey = theMatchKey;
+        this.theDate = theDate;
+    }
+
+    public long getIndex() {
+        return nIndex;
+    }
+
+    public String getMatchKey() {
+        return theMatchKey;
+    }
+
+    public Date getDate() {
+        return theDate;
+    }
+}
@@ -0,0 +1,19 @@
+package ggp.spectator;
+
+import java.util.List;
+
+// Where the recent match feeds, and their histories, are kept. See Stores for
+// how the implementation is chosen.
+public interface FeedStore {
+    // Appends the match keys to the feed, in order.
+    void addRecentMatchKeys(String theFeedKey, List<String> theMatchKeys);
+
+    // Returns the most recent entries of the feed, or null if it doesn't exist.
+    AtomKeyFeed loadRecentEntries(String theFeedKey);
+
+    // Returns up to nLimit entries from the history of the feed that follow the
+    // entry with the given index, in order. Entries are only returned once no
+    // earlier entry can still appear, so a consumer paging through the history
+    // never skips an entry.
+    List<FeedLogEntry> loadHistory(String theFeedKey, long nAfter, int nLimit);
+}
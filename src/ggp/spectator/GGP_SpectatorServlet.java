@@ -1,31 +1,80 @@
 package ggp.spectator;
 
-import static com.google.appengine.api.taskqueue.RetryOptions.Builder.withTaskRetryLimit;
-import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
-
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.jdo.JDOObjectNotFoundException;
-import javax.jdo.PersistenceManager;
 import javax.servlet.http.*;
 
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions.Method;
-
+import external.JSON.JSONArray;
 import external.JSON.JSONException;
 import external.JSON.JSONObject;
 
-import org.ggp.base.util.loader.RemoteResourceLoader;
-import org.ggp.galaxy.shared.persistence.Persistence;
-
 @SuppressWarnings("serial")
 public class GGP_SpectatorServlet extends HttpServlet {
+    // Records the status that the response is given, since servlets can't read it
+    // back from the response itself.
+    private static class StatusRecordingResponse extends HttpServletResponseWrapper {
+        private int nStatus = 200;
+
+        public StatusRecordingResponse(HttpServletResponse resp) {
+            super(resp);
+        }
+
+        @Override
+        public void setStatus(int nStatus) {
+            this.nStatus = nStatus;
+            super.setStatus(nStatus);
+        }
+
+        @Override
+        public void sendError(int nStatus) throws IOException {
+            this.nStatus = nStatus;
+            super.sendError(nStatus);
+        }
+
+        @Override
+        public void sendError(int nStatus, String theMessage) throws IOException {
+            this.nStatus = nStatus;
+            super.sendError(nStatus, theMessage);
+        }
+
+        public String getStatusLabel() {
+            return Integer.toString(nStatus);
+        }
+    }
+
     public void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws IOException {
+        StatusRecordingResponse theResponse = new StatusRecordingResponse(resp);
+        Metrics.StageTimer theTimer = new Metrics.StageTimer(Metrics.READ_STAGE);
+        String theRoute = "unknown";
+        String theStatus = "error";
+        try {
+            theRoute = doGetRoute(req, theResponse, theTimer);
+            theStatus = theResponse.getStatusLabel();
+        } finally {
+            // Streams stay open for as long as the spectator watches, so their
+            // latency isn't meaningful.
+            if (!theRoute.equals("stream")) {
+                String[] theLabels = new String[] { "route", theRoute, "status", theStatus };
+                theTimer.finish(theLabels);
+                Metrics.observe(Metrics.READ_REQUEST, theTimer.getElapsedNanos(), theLabels);
+            }
+        }
+    }
+
+    // Serves a GET request, and returns the kind of request it was, for metrics.
+    private String doGetRoute(HttpServletRequest req, HttpServletResponse resp, Metrics.StageTimer theTimer)
+            throws IOException {
         resp.setHeader("Access-Control-Allow-Origin", "*");
         resp.setHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS");
         resp.setHeader("Access-Control-Allow-Headers", "*");
@@ -34,12 +83,14 @@ public class GGP_SpectatorServlet extends HttpServlet {
         // Get the requested URL, and make sure that it starts with
         // the expected "/matches/" prefix.
         String theURL = req.getRequestURI();
-        if (theURL.startsWith("/matches/feeds/")) {
-        	doGetFeed( theURL.substring("/matches/feeds/".length()), resp);
-            return;
+        if (theURL.startsWith("/admin/")) {
+            doGetAdmin(theURL.substring("/admin/".length()), resp);
+            return "admin";
+        } else if (theURL.startsWith("/matches/feeds/")) {
+        	return doGetFeed( theURL.substring("/matches/feeds/".length()), req, resp, theTimer);
         } else if(!theURL.startsWith("/matches/")) {
             resp.setStatus(404);
-            return;
+            return "other";
         }
         
         // Strip off the initial "/matches/" prefix.
@@ -50,7 +101,18 @@ public class GGP_SpectatorServlet extends HttpServlet {
         if(theURL.trim().length() == 0) {
             // No content at "/matches/".
             resp.setStatus(404);
-            return;
+            return "other";
+        }
+
+        if (theURL.endsWith("/stream")) {
+            doGetStream(theURL.substring(0, theURL.length()-"/stream".length()), req, resp);
+            return "stream";
+        }
+
+        int nSinceIndex = theURL.lastIndexOf("/since/");
+        if (nSinceIndex > 0) {
+            doGetDelta(theURL.substring(0, nSinceIndex), theURL.substring(nSinceIndex + "/since/".length()), req, resp);
+            return "delta";
         }
 
         boolean showFeedView = false;
@@ -59,33 +121,302 @@ public class GGP_SpectatorServlet extends HttpServlet {
             theURL = theURL.substring(0, theURL.length()-10);
         }
 
-        MatchData theMatch = MatchData.loadMatchData(theURL);
+        if (showFeedView && req.getParameter("before") != null) {
+            doGetOlderAtomFeed(theURL, req.getParameter("before"), req, resp);
+            return "older_match_feed";
+        }
+
+        String theRoute = showFeedView ? "match_feed" : "match";
+        String theView = showFeedView ? MatchCache.ATOM_VIEW : MatchCache.JSON_VIEW;
+        MatchCache.CachedResponse theResponse = MatchCache.get(theURL, theView);
+        theTimer.lap("cache");
+        if (theResponse == null) {
+            MatchData theMatch = MatchData.loadMatchData(theURL);
+            theTimer.lap("load");
+            if (theMatch == null) {
+                resp.setStatus(404);
+                return theRoute;
+            }
+            String theBody = String.valueOf(showFeedView ? theMatch.getAtomFeed() : theMatch.getMatchJSONString());
+            theResponse = buildMatchResponse(theMatch, theView, theBody);
+            MatchCache.put(theURL, theView, theResponse);
+            theTimer.lap("render");
+        }
+
+        // Strong validators have to differ between the plain and gzipped variants.
+        boolean useGzip = acceptsGzip(req);
+        String theETag = useGzip ? theResponse.theETag.replaceFirst("\"$", "-gzip\"") : theResponse.theETag;
+        resp.setHeader("Vary", "Accept-Encoding");
+        if (isNotModified(req, resp, theETag, theResponse.lastModified, theResponse.nMaxAgeSeconds)) {
+            return theRoute;
+        }
+        resp.setContentType(theResponse.theContentType);
+        if (useGzip) {
+            byte[] theGzippedBytes = MatchCache.getGzipped(theURL, theView, theResponse).theBytes;
+            resp.setHeader("Content-Encoding", "gzip");
+            resp.setContentLength(theGzippedBytes.length);
+            resp.getOutputStream().write(theGzippedBytes);
+        } else {
+            resp.setContentLength(theResponse.theBytes.length);
+            resp.getOutputStream().write(theResponse.theBytes);
+        }
+        theTimer.lap("write");
+        return theRoute;
+    }
+
+    // Pages of older states are rarely requested, so they aren't cached, and are
+    // instead written directly to the response.
+    private void doGetOlderAtomFeed(String theMatchKey, String theBefore, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int nBefore;
+        try {
+            nBefore = Integer.parseInt(theBefore);
+        } catch (NumberFormatException e) {
+            resp.setStatus(400);
+            return;
+        }
+        if (nBefore < 0) {
+            resp.setStatus(400);
+            return;
+        }
+        MatchData theMatch = MatchData.loadMatchData(theMatchKey);
         if (theMatch == null) {
             resp.setStatus(404);
             return;
         }
-        
-        if (showFeedView) {
-        	resp.setContentType("application/atom+xml");
-            resp.getWriter().println(theMatch.getAtomFeed());
+        if (isNotModified(req, resp, getMatchETag(theMatch, "atom-before-" + nBefore), theMatch.getLastUpdated(), getMatchMaxAge(theMatch))) {
+            return;
+        }
+        resp.setContentType("application/atom+xml");
+        theMatch.writeAtomFeed(resp.getWriter(), nBefore);
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String theAcceptEncoding = req.getHeader("Accept-Encoding");
+        if (theAcceptEncoding == null) return false;
+        for (String theEncoding : theAcceptEncoding.split(",")) {
+            String[] theParts = theEncoding.trim().split(";");
+            if (!theParts[0].trim().equalsIgnoreCase("gzip")) continue;
+            // Clients can explicitly refuse an encoding by giving it a quality of zero.
+            return theParts.length < 2 || !theParts[1].trim().matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    private void doGetDelta(String theMatchKey, String theKnownStates, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int nKnownStates;
+        try {
+            nKnownStates = Integer.parseInt(theKnownStates);
+        } catch (NumberFormatException e) {
+            resp.setStatus(400);
+            return;
+        }
+        if (nKnownStates < 0) {
+            resp.setStatus(400);
+            return;
+        }
+
+        MatchData theMatch = MatchData.loadMatchData(theMatchKey);
+        if (theMatch == null) {
+            resp.setStatus(404);
+            return;
+        }
+        if (isNotModified(req, resp, getMatchETag(theMatch, "since-" + nKnownStates), theMatch.getLastUpdated(), getMatchMaxAge(theMatch))) {
+            return;
+        }
+        JSONObject theDelta = theMatch.getMatchDeltaJSON(nKnownStates);
+        if (theDelta == null) {
+            resp.setStatus(500);
+            return;
+        }
+        resp.setContentType("text/javascript; charset=UTF-8");
+        resp.getOutputStream().write(theDelta.toString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    // Requests can't run indefinitely, so streams are closed after a while and
+    // clients reconnect, resuming from the Last-Event-ID they last received.
+    // NOTE: App Engine's standard environment buffers responses until the request
+    // completes, so there streams are served as long polls, which return as soon
+    // as they have new states to send. Where the server sends responses as they're
+    // written, ggp.spectator.bufferedResponses can be set to false, and streams
+    // then stay open, delivering each event as soon as it's published.
+    private final static boolean RESPONSES_ARE_BUFFERED = Boolean.parseBoolean(System.getProperty("ggp.spectator.bufferedResponses", "true"));
+    private final static long STREAM_DURATION_MILLIS = 50000;
+    private final static long STREAM_IDLE_MILLIS = 5000;
+    private void doGetStream(String theMatchKey, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int nKnownStates = 0;
+        try {
+            if (req.getHeader("Last-Event-ID") != null) {
+                nKnownStates = Math.max(0, Integer.parseInt(req.getHeader("Last-Event-ID").trim()));
+            }
+        } catch (NumberFormatException e) {
+            resp.setStatus(400);
+            return;
+        }
+        MatchEventBuffer theBuffer = MatchEventBuffer.getBuffer(theMatchKey);
+        // Taken before the match is loaded, so that updates published after it
+        // was loaded are still sent as events.
+        long nCatchUpSequence = theBuffer.getNextSequence();
+        MatchData theMatch = MatchData.loadMatchData(theMatchKey);
+        if (theMatch == null) {
+            resp.setStatus(404);
+            return;
+        }
+
+        resp.setContentType("text/event-stream; charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        PrintWriter theWriter = new PrintWriter(new OutputStreamWriter(resp.getOutputStream(), Charset.forName("UTF-8")));
+        theWriter.write("retry: 1000\n\n");
+
+        long nSequence = -1;
+        long nDeadline = System.currentTimeMillis() + STREAM_DURATION_MILLIS;
+        try {
+            while (System.currentTimeMillis() < nDeadline) {
+                List<MatchEventBuffer.Event> theEvents = (nSequence < 0) ? null : theBuffer.getEventsFrom(nSequence);
+                boolean hasNewStates;
+                if (theEvents == null) {
+                    // The buffer doesn't go back far enough, so catch up from storage. Any
+                    // events published meanwhile will be sent again, which is harmless since
+                    // the offsets in each event make applying it idempotent.
+                    if (theMatch == null) {
+                        nCatchUpSequence = theBuffer.getNextSequence();
+                        theMatch = MatchData.loadMatchData(theMatchKey);
+                        // The match may have been deleted since the stream started.
+                        if (theMatch == null) break;
+                    }
+                    nSequence = nCatchUpSequence;
+                    JSONObject theDelta = theMatch.getMatchDeltaJSON(nKnownStates);
+                    if (theDelta == null) break;
+                    hasNewStates = theMatch.getStateCount() > nKnownStates;
+                    nKnownStates = theMatch.getStateCount();
+                    theBuffer.recordCatchUp(nKnownStates, theMatch.getLastUpdated());
+                    theWriter.write(MatchEventBuffer.formatEvent(nKnownStates, theDelta));
+                    // Any later catch up needs the version of the match at that point.
+                    theMatch = null;
+                } else {
+                    hasNewStates = !theEvents.isEmpty();
+                    for (MatchEventBuffer.Event theEvent : theEvents) {
+                        theWriter.write(theEvent.theText);
+                        nKnownStates = theEvent.nStateCount;
+                        nSequence = theEvent.nSequence + 1;
+                    }
+                }
+                theWriter.flush();
+                if (RESPONSES_ARE_BUFFERED && hasNewStates) {
+                    // Nothing reaches the spectator until the request completes, so
+                    // holding it open any longer would only delay these states.
+                    break;
+                }
+                if (theWriter.checkError()) {
+                    // The spectator has disconnected. This can't be detected while
+                    // the response is being buffered.
+                    break;
+                }
+
+                long nWaitMillis = Math.min(STREAM_IDLE_MILLIS, nDeadline - System.currentTimeMillis());
+                if (nWaitMillis <= 0) break;
+                theBuffer.awaitEventsFrom(nSequence, nWaitMillis);
+                if (theBuffer.getNextSequence() <= nSequence) {
+                    theBuffer.refreshFromStorage();
+                }
+            }
+        } catch (InterruptedException e) {
+            ;
+        }
+        theWriter.close();
+    }
+
+    private void doGetAdmin(String theAdminPage, HttpServletResponse resp) throws IOException {
+        try {
+            if (theAdminPage.equals("cache_stats")) {
+                resp.setContentType("text/javascript");
+                resp.getWriter().println(MatchCache.getStatsJSON());
+            } else if (theAdminPage.equals("hub_stats")) {
+                resp.setContentType("text/javascript");
+                resp.getWriter().println(HubPingQueue.getStatsJSON());
+            } else if (theAdminPage.equals("notify_stats")) {
+                resp.setContentType("text/javascript");
+                resp.getWriter().println(IngestNotifier.getStatsJSON());
+            } else if (theAdminPage.equals("metrics")) {
+                resp.setContentType("text/plain; version=0.0.4");
+                Metrics.writePrometheus(resp.getWriter());
+            } else {
+                resp.setStatus(404);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String getMatchETag(MatchData theMatch, String theView) {
+        return "\"" + theView + "-" + (theMatch.getLastUpdated() == null ? 0 : theMatch.getLastUpdated().getTime()) + "-" + theMatch.getStateCount() + "\"";
+    }
+
+    // Viewers poll live matches every few seconds, and most polls see no change.
+    // Completed matches rarely change at all, so they can be cached for longer.
+    private static int getMatchMaxAge(MatchData theMatch) {
+        return theMatch.isCompleted() ? COMPLETED_MATCH_MAX_AGE : LIVE_MATCH_MAX_AGE;
+    }
+
+    static MatchCache.CachedResponse buildMatchResponse(MatchData theMatch, String theView, String theBody) {
+        String theETag = getMatchETag(theMatch, theView);
+        int nMaxAge = getMatchMaxAge(theMatch);
+        // Responses end with a newline, as they did when they were written with println.
+        theBody = theBody + "\n";
+        if (theView.equals(MatchCache.ATOM_VIEW)) {
+            // The Atom feeds declare themselves as ISO-8859-1, and only contain ASCII.
+            return new MatchCache.CachedResponse(theBody.getBytes(Charset.forName("ISO-8859-1")), "application/atom+xml", theETag, theMatch.getLastUpdated(), nMaxAge);
         } else {
-        	resp.setContentType("text/javascript");
-            resp.getWriter().println(theMatch.getMatchJSON());
+            return new MatchCache.CachedResponse(theBody.getBytes(Charset.forName("UTF-8")), "text/javascript; charset=UTF-8", theETag, theMatch.getLastUpdated(), nMaxAge);
         }
     }
     
-    private void doGetFeed(String theFeedKey, HttpServletResponse resp) throws IOException {
+    // Returns the kind of feed request it was, for metrics.
+    private String doGetFeed(String theFeedKey, HttpServletRequest req, HttpServletResponse resp, Metrics.StageTimer theTimer) throws IOException {
         if (theFeedKey.isEmpty()) {
             resp.setStatus(400);
             resp.getWriter().close();
-            return;
+            return "feed";
         }
+        String theRoute = "feed";
         String theFeed = null;
         if (theFeedKey.endsWith(".atom")) {
-            theFeed = AtomKeyFeed.getAtomFeed(theFeedKey.replace(".atom", ""));
-            resp.setContentType("application/atom+xml");
+            AtomKeyFeed theKeyFeed = AtomKeyFeed.loadAtomKeyFeed(theFeedKey.replace(".atom", ""));
+            theTimer.lap("load");
+            if (theKeyFeed == null) {
+                resp.setStatus(404);
+            } else if (!isNotModified(req, resp, "\"atom-" + theKeyFeed.getCount() + "\"", theKeyFeed.getLastUpdated(), LIVE_MATCH_MAX_AGE)) {
+                resp.setContentType("application/atom+xml");
+                theKeyFeed.writeAtomFeed(resp.getWriter());
+                theTimer.lap("write");
+            }
+            return "feed_atom";
+        } else if (theFeedKey.endsWith(".json") && req.getParameter("after") != null) {
+            // Pages of the feed history are never modified, except for the last one,
+            // which shouldn't be cached for long.
+            theRoute = "feed_history";
+            long nAfter;
+            try {
+                nAfter = Long.parseLong(req.getParameter("after"));
+            } catch (NumberFormatException e) {
+                resp.setStatus(400);
+                resp.getWriter().close();
+                return theRoute;
+            }
+            theFeed = AtomKeyFeed.getJsonFeedHistory(theFeedKey.replace(".json", ""), nAfter);
+            theTimer.lap("load");
+            resp.setHeader("Cache-Control", "public, max-age=" + LIVE_MATCH_MAX_AGE);
+            resp.setContentType("text/javascript");
         } else if (theFeedKey.endsWith(".json")) {
-            theFeed = AtomKeyFeed.getJsonFeed(theFeedKey.replace(".json", ""));
+            theRoute = "feed_json";
+            AtomKeyFeed theKeyFeed = AtomKeyFeed.loadAtomKeyFeed(theFeedKey.replace(".json", ""));
+            theTimer.lap("load");
+            if (theKeyFeed != null) {
+                if (isNotModified(req, resp, "\"json-" + theKeyFeed.getCount() + "\"", theKeyFeed.getLastUpdated(), LIVE_MATCH_MAX_AGE)) {
+                    return theRoute;
+                }
+                theFeed = theKeyFeed.getJsonFeed();
+                theTimer.lap("render");
+            }
             resp.setContentType("text/javascript");
         }
         if (theFeed == null) {
@@ -93,13 +424,47 @@ public class GGP_SpectatorServlet extends HttpServlet {
         } else {
             resp.setStatus(200);
             resp.getWriter().println(theFeed);            
+            theTimer.lap("write");
         }
         resp.getWriter().close();
+        return theRoute;
     }
     
-    private final static int PING_RETRIES = 30;
-    private static void addTaskToPingHub(String theFeedURL) {
-        QueueFactory.getDefaultQueue().add(withUrl("/tasks/ping_hub").method(Method.POST).param("feedURL", theFeedURL).retryOptions(withTaskRetryLimit(PING_RETRIES)));
+    private final static int LIVE_MATCH_MAX_AGE = 5;
+    private final static int COMPLETED_MATCH_MAX_AGE = 3600;
+
+    // Sets the validators and caching headers for a response, and checks them against
+    // the conditional headers of the request. Returns true if the client already has
+    // the current version, in which case a 304 has been sent and nothing else should be.
+    private static boolean isNotModified(HttpServletRequest req, HttpServletResponse resp, String theETag, Date lastModified, int nMaxAgeSeconds) {
+        resp.setHeader("ETag", theETag);
+        resp.setHeader("Cache-Control", "public, max-age=" + nMaxAgeSeconds);
+        if (lastModified != null) {
+            resp.setDateHeader("Last-Modified", lastModified.getTime());
+        }
+
+        // When both are present, If-None-Match takes precedence over If-Modified-Since.
+        String theIfNoneMatch = req.getHeader("If-None-Match");
+        if (theIfNoneMatch != null) {
+            for (String theCandidate : theIfNoneMatch.split(",")) {
+                theCandidate = theCandidate.trim();
+                if (theCandidate.equals(theETag) || theCandidate.equals("*")) {
+                    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long theIfModifiedSince = req.getDateHeader("If-Modified-Since");
+            if (lastModified != null && theIfModifiedSince >= 0 && lastModified.getTime() / 1000 <= theIfModifiedSince / 1000) {
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        } catch (IllegalArgumentException e) {
+            // Malformed dates are ignored, per the HTTP spec.
+        }
+        return false;
     }
 
     public void doPost(HttpServletRequest req, HttpServletResponse resp)
@@ -110,107 +475,116 @@ public class GGP_SpectatorServlet extends HttpServlet {
         resp.setHeader("Access-Control-Allow-Age", "86400");
         
         if (req.getRequestURI().equals("/tasks/ping_hub")) {
-        	int nRetryAttempt = Integer.parseInt(req.getHeader("X-AppEngine-TaskRetryCount"));
-            String theFeedURL = req.getParameter("feedURL");
+            // Tasks queued before pings were coalesced name their feeds directly.
+            String[] theFeedURLs = req.getParameterValues("feedURL");
+            String theAttempt = req.getParameter("attempt");
+            int nAttempt = (theAttempt == null) ? 1 : Integer.parseInt(theAttempt);
             try {
-            	PuSHPublisher.pingHub("http://pubsubhubbub.appspot.com/", theFeedURL);
-            	resp.setStatus(200);
-            } catch (Exception e) {
-            	resp.setStatus(503);
-        		// For the first few exceptions, silently issue errors to task queue to trigger retries.
-        		// After a few retries, start surfacing the exceptions, since they're clearly not transient.
-            	// This reduces the amount of noise in the error logs caused by transient PuSH hub errors.
-            	if (nRetryAttempt > PING_RETRIES - 3) {
-            		throw new RuntimeException(e);
-            	}
-            	// Wait a little time, in case that helps.
-            	try {
-            		Thread.sleep(2000);
-            	} catch (InterruptedException ie) {
-            		;
-            	}
-            }            
+                if (theFeedURLs != null) {
+                    PuSHPublisher.pingHub(PuSHPublisher.DEFAULT_HUB, Arrays.asList(theFeedURLs));
+                } else {
+                    HubPingQueue.flushPings(PuSHPublisher.DEFAULT_HUB);
+                }
+            } catch (IOException e) {
+                // Rather than failing the task, and having the task queue retry it,
+                // the retry is scheduled explicitly, with backoff (see scheduleRetry).
+                Logger.getAnonymousLogger().warning("Failed to ping PuSH hub on attempt " + nAttempt + ": " + e);
+                if (theFeedURLs != null) {
+                    for (String theFeedURL : theFeedURLs) {
+                        HubPingQueue.queuePing(theFeedURL);
+                    }
+                } else {
+                    HubPingQueue.scheduleRetry(PuSHPublisher.DEFAULT_HUB, nAttempt + 1);
+                }
+            }
+            resp.setStatus(200);
+            return;
+        }
+
+        if (req.getRequestURI().equals("/tasks/notify")) {
+            // Failures are passed up, so the task queue retries the flush.
+            IngestNotifier.flushQueuedNotifications();
+            resp.setStatus(200);
             return;
         }
         
         String theURL = req.getRequestURI();
+        if (theURL.equals("/batch")) {
+            doPostBatch(req, resp);
+            return;
+        }
         if(!theURL.equals("/"))
             return;
 
+        Metrics.StageTimer theTimer = new Metrics.StageTimer(Metrics.INGEST_STAGE);
+        JSONObject theMatchJSON = null;
+        String theOutcome = "error";
         try {
-            JSONObject theMatchJSON;
-            String theAuthToken = req.getParameter("AUTH");
-            try {
-                theMatchJSON = new JSONObject(req.getParameter("DATA"));
-                String theRepository = new URL(theMatchJSON.getString("gameMetaURL")).getHost();
-                if (!theRepository.equals("games.ggp.org")) {
-                    // TODO: Make this more permissive. What's the best way to do this
-                    // while still providing security for viewers?
-                    throw new MatchValidation.ValidationException("Repository not whitelisted: " + theRepository);
-                }
-                if (!theMatchJSON.getString("gameMetaURL").contains("//games.ggp.org/base") &&
-                    !theMatchJSON.getString("gameMetaURL").contains("//games.ggp.org/dresden") &&
-                    !theMatchJSON.getString("gameMetaURL").contains("//games.ggp.org/stanford")) {
-                    // TODO: Make this more permissive. What's the best way to do this
-                    // while still providing security for viewers?
-                    throw new MatchValidation.ValidationException("Repository not whitelisted: " + theMatchJSON.getString("gameMetaURL"));                    
-                }
-            } catch (JSONException e) {
-                throw new MatchValidation.ValidationException(e.toString());
-            }
-
-            MatchData theMatch = null;
-            PersistenceManager pm = Persistence.getPersistenceManager();
-            try {
-                theMatch = MatchData.loadExistingMatchFromJSON(pm, theMatchJSON);
-                if (!theMatch.getAuthToken().equals(theAuthToken)) {
-                    throw new MatchValidation.ValidationException("Unauthorized auth token used to update match.");
-                }
-                MatchValidation.performInternalConsistencyChecks(theMatchJSON);
-               	MatchValidation.performUpdateInvariantValidationChecks(theMatch.getMatchJSON(), theMatchJSON);
-               	try {
-               		MatchValidation.performUpdateForwardValidationChecks(theMatch.getMatchJSON(), theMatchJSON);
-               	} catch (MatchValidation.ValidationException mve) {
-               		Logger.getAnonymousLogger().severe("Got forward validation exception: " + mve + " for match " + theMatch.getMatchKey() + ". Discarding update and pretending that it was published successfully.");
-               		return;
-               	}
-                theMatch.setMatchJSON(theMatchJSON);
-                pm.makePersistent(theMatch);
-            } catch(JDOObjectNotFoundException e) {
-                MatchValidation.performCreationValidationChecks(theMatchJSON);
-                MatchValidation.performInternalConsistencyChecks(theMatchJSON);
-                theMatch = new MatchData(theMatchJSON, theAuthToken);;
-            } finally {
-                pm.close();
+            theMatchJSON = MatchIngestion.parseMatchJSON(req.getParameter("DATA"), theTimer);
+            MatchIngestion.Update theUpdate = MatchIngestion.ingestSingle(theMatchJSON, req.getParameter("AUTH"), theTimer);
+            if (theUpdate.wasDiscarded()) {
+                theOutcome = "discarded";
+                return;
             }
 
             // Respond to the match host with the key.
-            resp.getWriter().println(theMatch.getMatchKey());
-            resp.getWriter().close();            
-            
-            // Add background tasks to ping the PuSH hubs.
-            AtomKeyFeed.addRecentMatchKey("updatedFeed", theMatch.getMatchKey());            
-            addTaskToPingHub("http://matches.ggp.org/matches/feeds/updatedFeed.atom");
-            addTaskToPingHub("http://matches.ggp.org/matches/" + theMatch.getMatchKey() + "/feed.atom");
-
-            // When the match is completed, update that feed and ping the PuSH hub.
-            try {
-                if (theMatchJSON.has("isCompleted") && theMatchJSON.getBoolean("isCompleted")) {
-                    AtomKeyFeed.addRecentMatchKey("completedFeed", theMatch.getMatchKey());
-                    addTaskToPingHub("http://matches.ggp.org/matches/feeds/completedFeed.atom");
-                }
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
-            }
-            
-            // Also manually ping the database server, in case PuSH is misbehaving.
-            // TODO(schreib): Remove this manual ping eventually, to test relying entirely on PuSH.
-            RemoteResourceLoader.loadRaw("http://database.ggp.org/ingest_match?matchURL="+URLEncoder.encode("http://matches.ggp.org/matches/" + theMatch.getMatchKey() + "/", "UTF-8"));
+            resp.getWriter().println(theUpdate.getMatchKey());
+            resp.getWriter().close();
+            theTimer.lap("respond");
+
+            // Update the feeds, and add background tasks to ping the PuSH hubs.
+            MatchIngestion.announceUpdates(Collections.singletonList(theUpdate), theTimer);
+            theOutcome = "ok";
         } catch (MatchValidation.ValidationException ve) {        	
+            theOutcome = "invalid";
             // For now, we want to pass up any MatchValidation exceptions all the way to the top,
             // so they appear in the server logs and can be acted upon quickly.
         	Logger.getAnonymousLogger().log(Level.SEVERE, "Got validation error " + ve.toString() + " when processing DATA: " + req.getParameter("DATA"));
             throw new RuntimeException(ve);
+        } finally {
+            String[] theLabels = MatchIngestion.getMetricLabels(theMatchJSON, theOutcome);
+            theTimer.finish(theLabels);
+            Metrics.observe(Metrics.INGEST_REQUEST, theTimer.getElapsedNanos(), theLabels);
+        }
+    }
+
+    // Accepts several match updates in one request, as a JSON array of {"DATA", "AUTH"}
+    // items in the BATCH parameter, and responds with a JSON array holding either the
+    // match key or an error for each item. See MatchIngestion.ingestBatch.
+    private void doPostBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Metrics.StageTimer theTimer = new Metrics.StageTimer(Metrics.INGEST_BATCH_STAGE);
+        String theOutcome = "error";
+        try {
+            JSONArray theResults;
+            List<MatchIngestion.Update> theAppliedUpdates = new ArrayList<MatchIngestion.Update>();
+            try {
+                String theBatch = req.getParameter("BATCH");
+                if (theBatch == null) {
+                    throw new MatchValidation.ValidationException("Missing BATCH parameter.");
+                }
+                theResults = MatchIngestion.ingestBatch(new JSONArray(theBatch), theAppliedUpdates, theTimer);
+            } catch (JSONException e) {
+                theOutcome = "invalid";
+                resp.setStatus(400);
+                resp.getWriter().println(e.toString());
+                return;
+            } catch (MatchValidation.ValidationException ve) {
+                theOutcome = "invalid";
+                resp.setStatus(400);
+                resp.getWriter().println(ve.getMessage());
+                return;
+            }
+
+            resp.setContentType("text/javascript");
+            resp.getWriter().println(theResults.toString());
+            resp.getWriter().close();
+            theTimer.lap("respond");
+
+            MatchIngestion.announceUpdates(theAppliedUpdates, theTimer);
+            theOutcome = "ok";
+        } finally {
+            theTimer.finish("outcome", theOutcome);
+            Metrics.observe(Metrics.INGEST_BATCH_REQUEST, theTimer.getElapsedNanos(), "outcome", theOutcome);
         }
     }
 
@@ -0,0 +1,264 @@
+package ggp.spectator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.annotations.*;
+
+import org.ggp.base.util.crypto.BaseHashing;
+
+import com.google.appengine.api.datastore.Text;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+// A dictionary of the GDL symbols used by a game, which stored states and moves
+// refer to by index (see PackedSegments). Matches of a game share its
+// dictionaries, which are keyed by the game's version-qualified gameMetaURL,
+// since that fixes the rules and so the symbols that can appear.
+//
+// Dictionaries are versioned and never change once written: a new version holds
+// every symbol of the version it extends, in the same order, plus the new ones.
+// Versions are keyed by a hash of their contents, and segments record the
+// version they were packed with. The store also keeps the newest version of
+// each game's dictionary, which is only moved forward from the version that a
+// new one extends, so every instance builds on the same chain of versions.
+//
+// Packing never writes a dictionary. Symbols missing from the newest version
+// are written out in full, and collected, and a new version holding them is
+// written once enough have been collected, after the updates that needed them
+// have been stored and responded to. Each version adds at least a quarter of the
+// symbols before it, so a game only has a handful of versions.
+@PersistenceCapable
+public class GameDictionary {
+    @PrimaryKey @Persistent private String theDictionaryKey;
+    @Persistent private String theGameMetaURL;
+    // The symbols, one per line, since GDL symbols can't contain whitespace.
+    @Persistent private Text theSymbols;
+
+    @NotPersistent private List<String> theSymbolList;
+    @NotPersistent private Map<String, Integer> theSymbolIndices;
+
+    // Symbols beyond this are written out in full in each state, which bounds
+    // the dictionaries of games with unbounded symbols, like counters.
+    static final int kMaxSymbols = 4096;
+    private static final int kMinNewSymbols = 32;
+    private static final int kMaxGrowAttempts = 3;
+    // How long this instance uses the newest version it knows of before checking
+    // for a newer one written by another instance.
+    private static final int kLatestRefreshMinutes = 5;
+
+    // Loaded versions, for decoding. These are immutable, so they can be cached
+    // for as long as there's room.
+    private static final Cache<String, GameDictionary> theDictionaries = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+    // The newest version of each game's dictionary, for encoding, or absent if the
+    // game doesn't have a dictionary yet.
+    private static final Cache<String, Optional<GameDictionary>> theLatestDictionaries = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(kLatestRefreshMinutes, TimeUnit.MINUTES)
+            .build();
+    // Symbols which were missing from each game's dictionary when segments were
+    // packed, waiting for the next version.
+    private static final Cache<String, Set<String>> theMissingSymbols = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+    // Games with enough missing symbols for a new version.
+    private static final Set<String> theGamesToGrow = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private GameDictionary(String theGameMetaURL, List<String> theSymbolList) {
+        String theJoinedSymbols = Joiner.on('\n').join(theSymbolList);
+        this.theDictionaryKey = BaseHashing.computeSHA1Hash(theGameMetaURL) + "." + theSymbolList.size() + "." + BaseHashing.computeSHA1Hash(theJoinedSymbols);
+        this.theGameMetaURL = theGameMetaURL;
+        this.theSymbols = new Text(theJoinedSymbols);
+    }
+
+    // Used when loading dictionaries from an embedded store.
+    GameDictionary(String theDictionaryKey, String theGameMetaURL, String theJoinedSymbols) {
+        this.theDictionaryKey = theDictionaryKey;
+        this.theGameMetaURL = theGameMetaURL;
+        this.theSymbols = new Text(theJoinedSymbols);
+    }
+
+    String getKey() {
+        return theDictionaryKey;
+    }
+
+    String getGameMetaURL() {
+        return theGameMetaURL;
+    }
+
+    String getJoinedSymbols() {
+        return theSymbols.getValue();
+    }
+
+    private synchronized List<String> getSymbolList() {
+        if (theSymbolList == null) {
+            String theJoinedSymbols = theSymbols.getValue();
+            if (theJoinedSymbols.isEmpty()) {
+                theSymbolList = Collections.emptyList();
+            } else {
+                theSymbolList = Collections.unmodifiableList(Arrays.asList(theJoinedSymbols.split("\n")));
+            }
+            theSymbolIndices = new HashMap<String, Integer>();
+            for (int i = 0; i < theSymbolList.size(); i++) {
+                theSymbolIndices.put(theSymbolList.get(i), i);
+            }
+        }
+        return theSymbolList;
+    }
+
+    public int size() {
+        return getSymbolList().size();
+    }
+
+    public String getSymbol(int nIndex) {
+        return getSymbolList().get(nIndex);
+    }
+
+    // Returns -1 if the symbol isn't in the dictionary.
+    public synchronized int getIndex(String theSymbol) {
+        getSymbolList();
+        Integer nIndex = theSymbolIndices.get(theSymbol);
+        return (nIndex == null) ? -1 : nIndex;
+    }
+
+    // Returns the newest version of the game's dictionary that this instance knows
+    // of, or null if the game doesn't have a dictionary yet.
+    public static GameDictionary getForEncoding(final String theGameMetaURL) {
+        try {
+            return theLatestDictionaries.get(theGameMetaURL, new Callable<Optional<GameDictionary>>() {
+                public Optional<GameDictionary> call() {
+                    return Optional.fromNullable(loadLatest(theGameMetaURL));
+                }
+            }).orNull();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static GameDictionary loadLatest(String theGameMetaURL) {
+        GameDictionary theLatest = Stores.getMatchStore().loadLatestDictionary(theGameMetaURL);
+        if (theLatest != null) {
+            theDictionaries.put(theLatest.getKey(), theLatest);
+        }
+        return theLatest;
+    }
+
+    // Records symbols that had to be written out in full because they weren't in
+    // theDictionary, the game's dictionary they were packed against (or null if
+    // there's none yet), so that the next version can hold them. Once enough have
+    // been recorded, the game is queued for growDictionaries.
+    public static void addMissingSymbols(String theGameMetaURL, GameDictionary theDictionary, Collection<String> theSymbols) {
+        if (theSymbols.isEmpty()) return;
+        int nSize = (theDictionary == null) ? 0 : theDictionary.size();
+        if (nSize >= kMaxSymbols) return;
+        Set<String> theMissing;
+        try {
+            theMissing = theMissingSymbols.get(theGameMetaURL, new Callable<Set<String>>() {
+                public Set<String> call() {
+                    return new TreeSet<String>();
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        boolean isReady;
+        synchronized (theMissing) {
+            for (String theSymbol : theSymbols) {
+                if (theMissing.size() >= kMaxSymbols) break;
+                theMissing.add(theSymbol);
+            }
+            isReady = isReadyToGrow(theDictionary, theMissing.size());
+        }
+        if (isReady) {
+            theGamesToGrow.add(theGameMetaURL);
+        }
+    }
+
+    // A game's first version is written straight away, so that its matches can be
+    // packed from then on. Later versions wait for a batch of new symbols.
+    private static boolean isReadyToGrow(GameDictionary theDictionary, int nNewSymbols) {
+        if (theDictionary == null) return nNewSymbols > 0;
+        return nNewSymbols >= Math.max(kMinNewSymbols, theDictionary.size() / 4);
+    }
+
+    // Writes a new version of the dictionary of each game queued by
+    // addMissingSymbols. This does store I/O, so it's called once the response to
+    // the match host has been sent, and it doesn't hold any locks while writing.
+    // When another instance moves a game's dictionary forward first, the new
+    // symbols are added to its version instead.
+    public static void growDictionaries() {
+        for (String theGameMetaURL : theGamesToGrow) {
+            if (!theGamesToGrow.remove(theGameMetaURL)) continue;
+            Set<String> theMissing = theMissingSymbols.getIfPresent(theGameMetaURL);
+            if (theMissing == null) continue;
+            GameDictionary theLatest = getForEncoding(theGameMetaURL);
+            List<String> theNewSymbols = new ArrayList<String>();
+            synchronized (theMissing) {
+                for (String theSymbol : theMissing) {
+                    if (theLatest == null || theLatest.getIndex(theSymbol) < 0) {
+                        theNewSymbols.add(theSymbol);
+                    }
+                }
+                // The newest version may have picked up some of the symbols since.
+                if (!isReadyToGrow(theLatest, theNewSymbols.size())) continue;
+                theMissing.clear();
+            }
+            grow(theGameMetaURL, theLatest, theNewSymbols);
+        }
+    }
+
+    private static void grow(String theGameMetaURL, GameDictionary theLatest, List<String> theNewSymbols) {
+        for (int nAttempt = 0; nAttempt < kMaxGrowAttempts; nAttempt++) {
+            // New symbols are added in sorted order, so that instances which add the
+            // same symbols to the same version arrive at the same next version.
+            List<String> theSymbols = (theLatest == null) ? new ArrayList<String>() : new ArrayList<String>(theLatest.getSymbolList());
+            for (String theSymbol : theNewSymbols) {
+                if (theSymbols.size() >= kMaxSymbols) break;
+                if (theLatest == null || theLatest.getIndex(theSymbol) < 0) {
+                    theSymbols.add(theSymbol);
+                }
+            }
+            if (theLatest != null && theSymbols.size() == theLatest.size()) {
+                theLatestDictionaries.put(theGameMetaURL, Optional.of(theLatest));
+                return;
+            }
+
+            GameDictionary theDictionary = new GameDictionary(theGameMetaURL, theSymbols);
+            if (Stores.getMatchStore().saveDictionary(theDictionary, (theLatest == null) ? null : theLatest.getKey())) {
+                theDictionaries.put(theDictionary.getKey(), theDictionary);
+                theLatestDictionaries.put(theGameMetaURL, Optional.of(theDictionary));
+                return;
+            }
+            theLatest = loadLatest(theGameMetaURL);
+            theLatestDictionaries.put(theGameMetaURL, Optional.fromNullable(theLatest));
+        }
+        // The symbols are still written out in full, and will be collected again.
+    }
+
+    // Returns null if there's no such dictionary.
+    public static GameDictionary load(String theDictionaryKey) {
+        GameDictionary theDictionary = theDictionaries.getIfPresent(theDictionaryKey);
+        if (theDictionary == null) {
+            theDictionary = Stores.getMatchStore().loadDictionary(theDictionaryKey);
+            if (theDictionary != null) {
+                theDictionaries.put(theDictionaryKey, theDictionary);
+            }
+        }
+        return theDictionary;
+    }
+}
@@ -0,0 +1,39 @@
+package ggp.spectator;
+
+import javax.jdo.annotations.*;
+
+import org.ggp.base.util.crypto.BaseHashing;
+
+// Records the newest version of a game's dictionary in the datastore (see
+// GameDictionary). It's only moved forward in a transaction which checks that
+// it still points at the version the new one extends, so that instances never
+// write diverging versions for the same game.
+@PersistenceCapable
+public class GameDictionaryHead {
+    @PrimaryKey @Persistent private String theHeadKey;
+    @Persistent private String theGameMetaURL;
+    @Persistent private String theLatestKey;
+
+    public GameDictionaryHead(String theGameMetaURL) {
+        this.theHeadKey = getHeadKey(theGameMetaURL);
+        this.theGameMetaURL = theGameMetaURL;
+    }
+
+    // Keyed by a hash, since gameMetaURLs can be longer than datastore key names.
+    public static String getHeadKey(String theGameMetaURL) {
+        return BaseHashing.computeSHA1Hash(theGameMetaURL);
+    }
+
+    public String getGameMetaURL() {
+        return theGameMetaURL;
+    }
+
+    // Null if the game doesn't have a dictionary yet.
+    public String getLatestKey() {
+        return theLatestKey;
+    }
+
+    public void setLatestKey(String theLatestKey) {
+        this.theLatestKey = theLatestKey;
+    }
+}
@@ -0,0 +1,153 @@
+package ggp.spectator;
+
+import static com.google.appengine.api.taskqueue.RetryOptions.Builder.withTaskRetryLimit;
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withMethod;
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.ggp.base.util.crypto.BaseHashing;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Coalesces the pings that tell the PuSH hub a feed has changed. Time is split
+// into windows, and each feed is queued at most once per window, using a named
+// pull task so that the deduplication holds across instances. One named push
+// task per window then publishes all of the queued feeds together, with several
+// feeds per request to the hub.
+public class HubPingQueue {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PING_QUEUE = "hub-pings";
+    private static final String FLUSH_URL = "/tasks/ping_hub";
+
+    // The window can be configured in appengine-web.xml.
+    private static final long kWindowMillis = Long.getLong("ggp.spectator.hubPingWindowMillis", 10000);
+    private static final int kFeedsPerPublish = 50;
+    private static final int kMaxPingsPerFlush = 1000;
+    private static final int kLeaseSeconds = 60;
+    private static final int kMaxFlushAttempts = 30;
+    private static final int kFlushTaskRetries = 3;
+    // A power of two, so that retries with smaller backoffs line up with it.
+    private static final long kMaxBackoffWindows = 32;
+
+    // Task names that this instance has already queued, which lets it skip
+    // the queue round trip for repeated pings within a window.
+    private static final Cache<String, Boolean> theQueuedNames = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(2 * kWindowMillis, TimeUnit.MILLISECONDS)
+            .build();
+
+    public static void queuePing(String theFeedURL) {
+        long nWindow = System.currentTimeMillis() / kWindowMillis;
+        String thePingName = "ping-" + BaseHashing.computeSHA1Hash(theFeedURL) + "-" + nWindow;
+        if (theQueuedNames.getIfPresent(thePingName) == null) {
+            addNamedTask(QueueFactory.getQueue(PING_QUEUE), thePingName, withMethod(Method.PULL).payload(theFeedURL));
+            theQueuedNames.put(thePingName, true);
+        }
+        String theFlushName = "flush-" + nWindow;
+        if (theQueuedNames.getIfPresent(theFlushName) == null) {
+            addNamedTask(QueueFactory.getDefaultQueue(), theFlushName, withUrl(FLUSH_URL).method(Method.POST).etaMillis((nWindow + 1) * kWindowMillis).retryOptions(withTaskRetryLimit(kFlushTaskRetries)));
+            theQueuedNames.put(theFlushName, true);
+        }
+    }
+
+    private static void addNamedTask(Queue theQueue, String theName, TaskOptions theTask) {
+        try {
+            theQueue.add(theTask.taskName(theName));
+        } catch (TaskAlreadyExistsException e) {
+            // Another request already queued it for this window.
+        }
+    }
+
+    // Publishes every queued ping to the hub. Pings are only removed from the
+    // queue once they've been published; if publishing fails, the rest of the
+    // pings are released so that the retry of the flush can pick them up.
+    public static void flushPings(String theHub) throws IOException {
+        Queue theQueue = QueueFactory.getQueue(PING_QUEUE);
+        List<TaskHandle> thePings = theQueue.leaseTasks(kLeaseSeconds, TimeUnit.SECONDS, kMaxPingsPerFlush);
+        if (thePings.isEmpty()) return;
+
+        // The same feed can be queued in several windows, if a flush was delayed.
+        Map<String, List<TaskHandle>> theFeedPings = new LinkedHashMap<String, List<TaskHandle>>();
+        for (TaskHandle thePing : thePings) {
+            String theFeedURL = new String(thePing.getPayload(), UTF8);
+            if (!theFeedPings.containsKey(theFeedURL)) {
+                theFeedPings.put(theFeedURL, new ArrayList<TaskHandle>());
+            }
+            theFeedPings.get(theFeedURL).add(thePing);
+        }
+        List<String> theFeedURLs = new ArrayList<String>(theFeedPings.keySet());
+        for (int i = 0; i < theFeedURLs.size(); i += kFeedsPerPublish) {
+            List<String> theBatch = theFeedURLs.subList(i, Math.min(theFeedURLs.size(), i + kFeedsPerPublish));
+            List<TaskHandle> theBatchPings = new ArrayList<TaskHandle>();
+            for (String theFeedURL : theBatch) {
+                theBatchPings.addAll(theFeedPings.get(theFeedURL));
+            }
+            try {
+                PuSHPublisher.pingHub(theHub, theBatch);
+            } catch (IOException e) {
+                for (String theFeedURL : theFeedURLs.subList(i, theFeedURLs.size())) {
+                    for (TaskHandle thePing : theFeedPings.get(theFeedURL)) {
+                        theQueue.modifyTaskLease(thePing, 0, TimeUnit.SECONDS);
+                    }
+                }
+                throw e;
+            }
+            theQueue.deleteTask(theBatchPings);
+        }
+
+        // If the flush was full, there may be more pings waiting.
+        if (thePings.size() == kMaxPingsPerFlush) {
+            QueueFactory.getDefaultQueue().add(withUrl(FLUSH_URL).method(Method.POST).retryOptions(withTaskRetryLimit(kFlushTaskRetries)));
+        }
+    }
+
+    // Schedules another flush after a failed one, with exponential backoff. The
+    // retry takes the place of the flush for a later window, under the same task
+    // name that queuePing uses, so there's never more than one flush per window,
+    // however many flushes fail. Retries are also aligned to multiples of their
+    // backoff, so that the retries of flushes from different windows land on the
+    // same windows and merge into a single chain. This replaces the task queue's
+    // own retries, which would hold on to a request thread or retry on a fixed
+    // schedule.
+    public static void scheduleRetry(String theHub, int nAttempt) {
+        if (nAttempt > kMaxFlushAttempts) {
+            // The pings are still queued, and the next window's flush will try them again.
+            Logger.getAnonymousLogger().severe("Giving up on flushing PuSH hub pings after " + kMaxFlushAttempts + " attempts");
+            return;
+        }
+        long nBackoffWindows = Math.min(kMaxBackoffWindows, 1L << Math.min(nAttempt - 1, 20));
+        // There's no point retrying before the hub's circuit breaker lets publishes through.
+        long nEarliest = Math.max(System.currentTimeMillis(), PuSHPublisher.getOpenUntil(theHub));
+        long nWindow = nEarliest / kWindowMillis + nBackoffWindows;
+        nWindow = (nWindow / nBackoffWindows) * nBackoffWindows;
+        String theFlushName = "flush-" + nWindow;
+        addNamedTask(QueueFactory.getDefaultQueue(), theFlushName, withUrl(FLUSH_URL).method(Method.POST).param("attempt", "" + nAttempt).etaMillis((nWindow + 1) * kWindowMillis).retryOptions(withTaskRetryLimit(kFlushTaskRetries)));
+        theQueuedNames.put(theFlushName, true);
+    }
+
+    public static JSONObject getStatsJSON() throws JSONException {
+        JSONObject theStats = new JSONObject();
+        theStats.put("queuedPings", QueueFactory.getQueue(PING_QUEUE).fetchStatistics().getNumTasks());
+        theStats.put("windowMillis", kWindowMillis);
+        theStats.put("hubs", PuSHPublisher.getStatsJSON());
+        return theStats;
+    }
+}
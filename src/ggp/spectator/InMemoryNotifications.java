@@ -0,0 +1,87 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Notification queue that's held in memory and sent by a fixed number of
+// background threads. Notifications are lost if the process exits, and when
+// the queue is full new ones are dropped, so this is meant for running the
+// server outside App Engine, where there's no task queue. A notification for
+// a match that's still waiting to be sent to the same target is coalesced
+// with the one already queued.
+public class InMemoryNotifications implements NotificationQueue {
+    private static final int kMaxQueuedNotifications = 10000;
+    private static final int kSenderThreads = Integer.getInteger("ggp.spectator.notifyConcurrency", 4);
+    private static final int kSendAttempts = 3;
+    private static final long kRetryBackoffMillis = 1000;
+
+    private final BlockingQueue<String[]> theQueue = new LinkedBlockingQueue<String[]>(kMaxQueuedNotifications);
+    private final Set<String> theQueuedNotifications = new HashSet<String>();
+    private final AtomicLong nDropped = new AtomicLong();
+
+    public InMemoryNotifications() {
+        for (int i = 0; i < kSenderThreads; i++) {
+            Thread theSender = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            sendNext();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "notification-sender-" + i);
+            theSender.setDaemon(true);
+            theSender.start();
+        }
+    }
+
+    public void enqueue(String theTarget, String theMatchURL) {
+        String theNotification = theTarget + "\n" + theMatchURL;
+        synchronized (theQueuedNotifications) {
+            if (!theQueuedNotifications.add(theNotification)) return;
+        }
+        if (!theQueue.offer(new String[] { theTarget, theMatchURL })) {
+            nDropped.incrementAndGet();
+            synchronized (theQueuedNotifications) {
+                theQueuedNotifications.remove(theNotification);
+            }
+        }
+    }
+
+    private void sendNext() throws InterruptedException {
+        String[] theNotification = theQueue.take();
+        synchronized (theQueuedNotifications) {
+            // Updates that arrive from here on need a new notification.
+            theQueuedNotifications.remove(theNotification[0] + "\n" + theNotification[1]);
+        }
+        for (int nAttempt = 1; nAttempt <= kSendAttempts; nAttempt++) {
+            try {
+                IngestNotifier.send(theNotification[0], theNotification[1]);
+                return;
+            } catch (IOException e) {
+                Logger.getAnonymousLogger().warning("Failed to notify " + theNotification[0] + " on attempt " + nAttempt + ": " + e);
+            }
+            if (nAttempt < kSendAttempts) {
+                Thread.sleep(kRetryBackoffMillis << (nAttempt - 1));
+            }
+        }
+    }
+
+    public JSONObject getStatsJSON() throws JSONException {
+        JSONObject theStats = new JSONObject();
+        theStats.put("queue", "memory");
+        theStats.put("queued", theQueue.size());
+        theStats.put("dropped", nDropped.get());
+        return theStats;
+    }
+}
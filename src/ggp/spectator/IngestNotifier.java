@@ -0,0 +1,85 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Notifies downstream services when a match is updated. The targets are URL
+// prefixes, to which the encoded match URL is appended, and are configured in
+// appengine-web.xml as a comma separated list. Notifications are queued either
+// durably, in the task queue, or in memory, for running outside App Engine.
+public class IngestNotifier {
+    private static final String kDefaultTargets = "http://database.ggp.org/ingest_match?matchURL=";
+    private static final int kConnectTimeoutMillis = 5000;
+    private static final int kReadTimeoutMillis = 10000;
+
+    private static final List<String> theTargets = parseTargets(System.getProperty("ggp.spectator.notifyTargets", kDefaultTargets));
+    private static final NotificationQueue theQueue = "memory".equals(System.getProperty("ggp.spectator.notifyQueue")) ? new InMemoryNotifications() : new TaskQueueNotifications();
+
+    private static final AtomicLong nSent = new AtomicLong();
+    private static final AtomicLong nFailed = new AtomicLong();
+
+    private static List<String> parseTargets(String theTargetList) {
+        List<String> theParsedTargets = new ArrayList<String>();
+        for (String theTarget : theTargetList.split(",")) {
+            if (!theTarget.trim().isEmpty()) {
+                theParsedTargets.add(theTarget.trim());
+            }
+        }
+        return Collections.unmodifiableList(theParsedTargets);
+    }
+
+    public static void notifyMatchUpdated(String theMatchURL) {
+        for (String theTarget : theTargets) {
+            theQueue.enqueue(theTarget, theMatchURL);
+        }
+    }
+
+    // Sends a single notification, and throws if the target didn't accept it.
+    public static void send(String theTarget, String theMatchURL) throws IOException {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(theTarget + URLEncoder.encode(theMatchURL, "UTF-8")).openConnection();
+            connection.setConnectTimeout(kConnectTimeoutMillis);
+            connection.setReadTimeout(kReadTimeoutMillis);
+            int nResponseCode = connection.getResponseCode();
+            // Read the response to the end, so the connection can be reused.
+            InputStream in = (nResponseCode / 100 == 2) ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] theBuffer = new byte[1024];
+                while (in.read(theBuffer) >= 0);
+                in.close();
+            }
+            if (nResponseCode / 100 != 2) {
+                throw new IOException(nResponseCode + ": " + connection.getResponseMessage() + " from " + theTarget);
+            }
+            nSent.incrementAndGet();
+        } catch (IOException e) {
+            nFailed.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // Used by the task that sends durably queued notifications.
+    public static void flushQueuedNotifications() throws IOException {
+        if (theQueue instanceof TaskQueueNotifications) {
+            ((TaskQueueNotifications)theQueue).flush();
+        }
+    }
+
+    public static JSONObject getStatsJSON() throws JSONException {
+        JSONObject theStats = theQueue.getStatsJSON();
+        theStats.put("targets", theTargets);
+        theStats.put("sent", nSent.get());
+        theStats.put("failed", nFailed.get());
+        return theStats;
+    }
+}
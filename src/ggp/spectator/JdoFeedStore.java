@@ -0,0 +1,139 @@
+package ggp.spectator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import javax.jdo.JDOCanRetryException;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+import org.ggp.galaxy.shared.persistence.Persistence;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+// Stores the recent match feeds in the App Engine datastore, using JDO. Each
+// feed is split across several write shards, so that concurrent appends to the
+// same feed usually touch different entities, and each append is a short
+// transaction on a single shard. The first shard keeps the original feed key,
+// so feeds written before sharding are still read. The full history of each
+// feed is kept as FeedLogEntry entities, which are children of the shard they
+// were appended to, and are written in the same transaction as the shard.
+public class JdoFeedStore implements FeedStore {
+    // The number of shards can be raised later, but not lowered, since entries
+    // in the dropped shards would no longer be read.
+    private static final int kWriteShards = 8;
+    private static final int kMaxAppendAttempts = 3;
+
+    // Entries in the history are only served once they're old enough that no
+    // entry with an earlier index could still be written to another shard, so a
+    // consumer can page through the history by index without skipping anything.
+    // An entry's index comes from the time at which its transaction began, and
+    // datastore transactions can't run for longer than a minute, so this is a
+    // minute plus an allowance for clock skew between instances. The history is
+    // read with ancestor queries, which see every committed entry.
+    private static final long kHistorySettleMillis = 90000;
+
+    private final Random theRandom = new Random();
+
+    private static String getShardKey(String theFeedKey, int nShard) {
+        if (nShard == 0) return theFeedKey;
+        return theFeedKey + "_shard" + nShard;
+    }
+
+    private static Key getShardEntityKey(String theShardKey) {
+        return KeyFactory.createKey(AtomKeyFeed.class.getSimpleName(), theShardKey);
+    }
+
+    public void addRecentMatchKeys(String theFeedKey, List<String> theMatchKeys) {
+        int nShard;
+        synchronized (theRandom) {
+            nShard = theRandom.nextInt(kWriteShards);
+        }
+        String theShardKey = getShardKey(theFeedKey, nShard);
+
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            for (int nAttempt = 1; ; nAttempt++) {
+                Transaction tx = pm.currentTransaction();
+                try {
+                    tx.begin();
+                    AtomKeyFeed recent = null;
+                    try {
+                        recent = pm.getObjectById(AtomKeyFeed.class, theShardKey);
+                    } catch (JDOObjectNotFoundException onfe) {
+                        recent = new AtomKeyFeed(theShardKey);
+                    }
+                    List<FeedLogEntry> theLogEntries = new ArrayList<FeedLogEntry>();
+                    for (String theMatchKey : theMatchKeys) {
+                        long nIndex = recent.addEntry(theMatchKey, nShard, kWriteShards);
+                        theLogEntries.add(new FeedLogEntry(theFeedKey, getShardEntityKey(theShardKey), nIndex, theMatchKey, recent.getLastUpdated()));
+                    }
+                    pm.makePersistent(recent);
+                    pm.makePersistentAll(theLogEntries);
+                    tx.commit();
+                    break;
+                } catch (JDOCanRetryException e) {
+                    if (nAttempt >= kMaxAppendAttempts) throw e;
+                } finally {
+                    if (tx.isActive()) {
+                        tx.rollback();
+                    }
+                }
+            }
+        } finally {
+            pm.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public AtomKeyFeed loadRecentEntries(String theFeedKey) {
+        List<String> theShardKeys = new ArrayList<String>();
+        for (int nShard = 0; nShard < kWriteShards; nShard++) {
+            theShardKeys.add(getShardKey(theFeedKey, nShard));
+        }
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            // A filter on a list of primary keys is run as a single batch get. Unlike
+            // getObjectsById, it skips the shards which haven't been written yet.
+            Query q = pm.newQuery(AtomKeyFeed.class, ":keys.contains(theFeedKey)");
+            List<AtomKeyFeed> theShards = new ArrayList<AtomKeyFeed>((List<AtomKeyFeed>) q.execute(theShardKeys));
+            return AtomKeyFeed.mergeShards(theFeedKey, theShards);
+        } finally {
+            pm.close();
+        }
+    }
+
+    // Each shard's entries are read with an ancestor query, and the results from
+    // the shards are merged in order of their indices.
+    @SuppressWarnings("unchecked")
+    public List<FeedLogEntry> loadHistory(String theFeedKey, long nAfter, int nLimit) {
+        long nSettledIndex = (System.currentTimeMillis() - kHistorySettleMillis) * kWriteShards;
+        List<FeedLogEntry> theEntries = new ArrayList<FeedLogEntry>();
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            for (int nShard = 0; nShard < kWriteShards; nShard++) {
+                Query q = pm.newQuery(FeedLogEntry.class);
+                q.setFilter("theShardKey == shardParam && nIndex > afterParam && nIndex < beforeParam");
+                q.declareParameters("com.google.appengine.api.datastore.Key shardParam, long afterParam, long beforeParam");
+                q.setOrdering("nIndex asc");
+                q.setRange(0, nLimit);
+                List<FeedLogEntry> theShardEntries = (List<FeedLogEntry>) q.execute(getShardEntityKey(getShardKey(theFeedKey, nShard)), nAfter, nSettledIndex);
+                theEntries.addAll(pm.detachCopyAll(theShardEntries));
+            }
+        } finally {
+            pm.close();
+        }
+        Collections.sort(theEntries, new Comparator<FeedLogEntry>() {
+            public int compare(FeedLogEntry a, FeedLogEntry b) {
+                return Long.valueOf(a.getIndex()).compareTo(b.getIndex());
+            }
+        });
+        return new ArrayList<FeedLogEntry>(theEntries.subList(0, Math.min(nLimit, theEntries.size())));
+    }
+}
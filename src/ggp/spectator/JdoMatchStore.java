@@ -0,0 +1,117 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOCanRetryException;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.ggp.galaxy.shared.persistence.Persistence;
+
+// Stores matches in the App Engine datastore, using JDO.
+public class JdoMatchStore implements MatchStore {
+    public MatchData loadMatch(String theMatchKey) throws IOException {
+        return Persistence.loadSpecific(theMatchKey, MatchData.class);
+    }
+
+    public List<MatchSegment> loadSegments(List<String> theSegmentKeys) {
+        List<MatchSegment> theSegments = new ArrayList<MatchSegment>();
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            List<Object> theSegmentIds = new ArrayList<Object>();
+            for (String theSegmentKey : theSegmentKeys) {
+                theSegmentIds.add(pm.newObjectIdInstance(MatchSegment.class, theSegmentKey));
+            }
+            List<MatchSegment> theAttachedSegments = new ArrayList<MatchSegment>();
+            for (Object theSegment : pm.getObjectsById(theSegmentIds)) {
+                theAttachedSegments.add((MatchSegment)theSegment);
+            }
+            theSegments.addAll(pm.detachCopyAll(theAttachedSegments));
+        } finally {
+            pm.close();
+        }
+        return theSegments;
+    }
+
+    public void saveMatches(List<MatchData> theMatches) {
+        List<MatchSegment> theSegments = new ArrayList<MatchSegment>();
+        for (MatchData theMatch : theMatches) {
+            theSegments.addAll(theMatch.takePendingSegments());
+        }
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            pm.makePersistentAll(theSegments);
+            pm.makePersistentAll(theMatches);
+        } finally {
+            pm.close();
+        }
+    }
+
+    public void deleteMatch(String theMatchKey, List<String> theSegmentKeys) {
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            for (String theSegmentKey : theSegmentKeys) {
+                try {
+                    pm.deletePersistent(pm.getObjectById(MatchSegment.class, theSegmentKey));
+                } catch (JDOObjectNotFoundException e) {
+                    ;
+                }
+            }
+            pm.deletePersistent(pm.getObjectById(MatchData.class, theMatchKey));
+        } finally {
+            pm.close();
+        }
+    }
+
+    public GameDictionary loadDictionary(String theDictionaryKey) {
+        return Persistence.loadSpecific(theDictionaryKey, GameDictionary.class);
+    }
+
+    public GameDictionary loadLatestDictionary(String theGameMetaURL) {
+        GameDictionaryHead theHead = Persistence.loadSpecific(GameDictionaryHead.getHeadKey(theGameMetaURL), GameDictionaryHead.class);
+        if (theHead == null || theHead.getLatestKey() == null) return null;
+        return loadDictionary(theHead.getLatestKey());
+    }
+
+    // The dictionary is written before the head is moved to it, so the head never
+    // points at a missing dictionary. A dictionary written by an attempt that then
+    // loses the race is left unreferenced, but it's keyed by its contents, so an
+    // instance that builds the same version later just writes over it.
+    public boolean saveDictionary(GameDictionary theDictionary, String thePreviousKey) {
+        PersistenceManager pm = Persistence.getPersistenceManager();
+        try {
+            pm.makePersistent(theDictionary);
+            String theHeadKey = GameDictionaryHead.getHeadKey(theDictionary.getGameMetaURL());
+            Transaction tx = pm.currentTransaction();
+            try {
+                tx.begin();
+                GameDictionaryHead theHead = null;
+                try {
+                    theHead = pm.getObjectById(GameDictionaryHead.class, theHeadKey);
+                } catch (JDOObjectNotFoundException onfe) {
+                    theHead = new GameDictionaryHead(theDictionary.getGameMetaURL());
+                }
+                String theLatestKey = theHead.getLatestKey();
+                if (theLatestKey == null ? thePreviousKey != null : !theLatestKey.equals(thePreviousKey)) {
+                    return false;
+                }
+                theHead.setLatestKey(theDictionary.getKey());
+                pm.makePersistent(theHead);
+                tx.commit();
+                return true;
+            } catch (JDOCanRetryException e) {
+                // Another instance moved the head at the same time.
+                return false;
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        } finally {
+            pm.close();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package ggp.spectator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// An embedded key-value store, kept as a series of append-only log files with
+// an in-memory index from each key to the location of its latest value. Each
+// log file is preallocated and memory-mapped, so writes are copies into the
+// mapping, and reads are served straight from the page cache without copying
+// the file through a read buffer.
+//
+// Each record is: key length, value length (or -1 for a deletion), a checksum
+// of the key and value, the key, and the value. On startup the logs are read
+// in order to rebuild the index; a record that's incomplete or fails its
+// checksum marks the end of a log, since it can only be a torn write.
+//
+// Match headers and trailing segments are rewritten on every update, so most
+// of the log soon holds superseded values. Once more than half of it does, the
+// logs are compacted: the live records are copied into new log files after the
+// existing ones, which are then deleted, oldest first. Replaying whatever is
+// left after a crash part way through still gives the same index, since the
+// copies come after everything they replace, and the old logs that remain are
+// always the newest of them.
+public class LogStructuredStore {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int kLogFileSize = 64 * 1024 * 1024;
+    private static final int kRecordHeaderSize = 12;
+    private static final Pattern kLogFilePattern = Pattern.compile("log-(\\d+)\\.dat");
+
+    // Locations refer to the mapping of their log rather than to its file, so a
+    // reader that looked up a location just before compaction can still read it.
+    private static class Location {
+        final MappedByteBuffer theLog;
+        final int nValueOffset;
+        final int nValueLength;
+        final int nRecordLength;
+
+        Location(MappedByteBuffer theLog, int nValueOffset, int nValueLength, int nRecordLength) {
+            this.theLog = theLog;
+            this.nValueOffset = nValueOffset;
+            this.nValueLength = nValueLength;
+            this.nRecordLength = nRecordLength;
+        }
+    }
+
+    private final File theDirectory;
+    private final boolean shouldSync;
+    private final int nLogFileSize;
+    private final List<Integer> theLogFiles = new ArrayList<Integer>();
+    private final Map<String, Location> theIndex = new ConcurrentHashMap<String, Location>();
+    private MappedByteBuffer theWriteLog;
+    private int nWritePosition;
+    // The bytes taken up by all of the records in the logs, and by the ones which
+    // hold the latest value of a key, for deciding when to compact.
+    private long nTotalBytes;
+    private long nLiveBytes;
+
+    // When shouldSync is set, each write is forced to disk before it returns.
+    public LogStructuredStore(File theDirectory, boolean shouldSync) throws IOException {
+        this(theDirectory, shouldSync, kLogFileSize);
+    }
+
+    // Tests use smaller log files, so that they roll over to new ones sooner.
+    LogStructuredStore(File theDirectory, boolean shouldSync, int nLogFileSize) throws IOException {
+        this.theDirectory = theDirectory;
+        this.shouldSync = shouldSync;
+        this.nLogFileSize = nLogFileSize;
+        if (!theDirectory.isDirectory() && !theDirectory.mkdirs()) {
+            throw new IOException("Could not create store directory " + theDirectory);
+        }
+        for (String theName : theDirectory.list()) {
+            Matcher theMatcher = kLogFilePattern.matcher(theName);
+            if (theMatcher.matches()) {
+                theLogFiles.add(Integer.parseInt(theMatcher.group(1)));
+            }
+        }
+        Collections.sort(theLogFiles);
+        for (int nFile : theLogFiles) {
+            theWriteLog = mapLogFile(nFile, 0);
+            nWritePosition = recover(theWriteLog);
+        }
+        if (theLogFiles.isEmpty()) {
+            startLog(0, nLogFileSize);
+        }
+    }
+
+    private File getLogFile(int nFile) {
+        return new File(theDirectory, String.format("log-%05d.dat", nFile));
+    }
+
+    private MappedByteBuffer mapLogFile(int nFile, int nMinimumSize) throws IOException {
+        RandomAccessFile theFile = new RandomAccessFile(getLogFile(nFile), "rw");
+        try {
+            if (theFile.length() < nMinimumSize) {
+                theFile.setLength(nMinimumSize);
+            }
+            // The mapping stays valid after the file is closed.
+            return theFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, theFile.length());
+        } finally {
+            theFile.close();
+        }
+    }
+
+    private void startLog(int nFile, int nMinimumSize) throws IOException {
+        theWriteLog = mapLogFile(nFile, nMinimumSize);
+        theLogFiles.add(nFile);
+        nWritePosition = 0;
+    }
+
+    // Adds the records in the log to the index, and returns where they end.
+    private int recover(MappedByteBuffer theMappedLog) {
+        ByteBuffer theLog = theMappedLog.duplicate();
+        int nPosition = 0;
+        while (theLog.capacity() - nPosition >= kRecordHeaderSize) {
+            theLog.position(nPosition);
+            int nKeyLength = theLog.getInt();
+            int nValueLength = theLog.getInt();
+            int nChecksum = theLog.getInt();
+            if (nKeyLength <= 0) break;
+            int nRecordLength = kRecordHeaderSize + nKeyLength + Math.max(0, nValueLength);
+            if (nRecordLength > theLog.capacity() - nPosition) break;
+            byte[] theKey = new byte[nKeyLength];
+            byte[] theValue = new byte[Math.max(0, nValueLength)];
+            theLog.get(theKey);
+            theLog.get(theValue);
+            if (computeChecksum(theKey, theValue) != nChecksum) break;
+
+            String theKeyString = new String(theKey, UTF8);
+            Location theLocation = null;
+            if (nValueLength >= 0) {
+                theLocation = new Location(theMappedLog, nPosition + kRecordHeaderSize + nKeyLength, nValueLength, nRecordLength);
+            }
+            updateIndex(theKeyString, theLocation, nRecordLength);
+            nPosition += nRecordLength;
+        }
+        return nPosition;
+    }
+
+    // A null location removes the key.
+    private void updateIndex(String theKey, Location theLocation, int nRecordLength) {
+        Location theOldLocation = (theLocation == null) ? theIndex.remove(theKey) : theIndex.put(theKey, theLocation);
+        if (theOldLocation != null) {
+            nLiveBytes -= theOldLocation.nRecordLength;
+        }
+        if (theLocation != null) {
+            nLiveBytes += nRecordLength;
+        }
+        nTotalBytes += nRecordLength;
+    }
+
+    private static int computeChecksum(byte[] theKey, byte[] theValue) {
+        CRC32 theChecksum = new CRC32();
+        theChecksum.update(theKey);
+        theChecksum.update(theValue);
+        return (int)theChecksum.getValue();
+    }
+
+    // Returns null if there's no value for the key.
+    public byte[] get(String theKey) {
+        Location theLocation = theIndex.get(theKey);
+        if (theLocation == null) return null;
+        return readValue(theLocation);
+    }
+
+    private static byte[] readValue(Location theLocation) {
+        ByteBuffer theLog = theLocation.theLog.duplicate();
+        theLog.position(theLocation.nValueOffset);
+        byte[] theValue = new byte[theLocation.nValueLength];
+        theLog.get(theValue);
+        return theValue;
+    }
+
+    public boolean contains(String theKey) {
+        return theIndex.containsKey(theKey);
+    }
+
+    public Set<String> getKeys() {
+        return theIndex.keySet();
+    }
+
+    public void put(String theKey, byte[] theValue) throws IOException {
+        Map<String, byte[]> theValues = new LinkedHashMap<String, byte[]>();
+        theValues.put(theKey, theValue);
+        putAll(theValues);
+    }
+
+    public void delete(String theKey) throws IOException {
+        put(theKey, null);
+    }
+
+    // Writes the values in the iteration order of the map, where a null value
+    // deletes the key. Readers see each value once it has been written.
+    public synchronized void putAll(Map<String, byte[]> theValues) throws IOException {
+        for (Map.Entry<String, byte[]> theEntry : theValues.entrySet()) {
+            append(theEntry.getKey(), theEntry.getValue());
+        }
+        if (shouldSync) {
+            theWriteLog.force();
+        }
+        if (nTotalBytes >= nLogFileSize && nLiveBytes * 2 < nTotalBytes) {
+            compact();
+        }
+    }
+
+    private void append(String theKeyString, byte[] theValue) throws IOException {
+        byte[] theKey = theKeyString.getBytes(UTF8);
+        int nRecordLength = kRecordHeaderSize + theKey.length + (theValue == null ? 0 : theValue.length);
+        if (theWriteLog.capacity() - nWritePosition < nRecordLength) {
+            if (shouldSync) theWriteLog.force();
+            startLog(theLogFiles.get(theLogFiles.size() - 1) + 1, Math.max(nLogFileSize, nRecordLength));
+        }
+
+        ByteBuffer theLog = theWriteLog.duplicate();
+        theLog.position(nWritePosition);
+        theLog.putInt(theKey.length);
+        theLog.putInt(theValue == null ? -1 : theValue.length);
+        theLog.putInt(computeChecksum(theKey, theValue == null ? new byte[0] : theValue));
+        theLog.put(theKey);
+        Location theLocation = null;
+        if (theValue != null) {
+            theLog.put(theValue);
+            theLocation = new Location(theWriteLog, nWritePosition + kRecordHeaderSize + theKey.length, theValue.length, nRecordLength);
+        }
+        updateIndex(theKeyString, theLocation, nRecordLength);
+        nWritePosition += nRecordLength;
+    }
+
+    // Copies the live records into new logs, and deletes the old ones. Writers wait
+    // for this, but readers don't, since the old mappings stay readable.
+    private void compact() throws IOException {
+        List<Integer> theOldLogFiles = new ArrayList<Integer>(theLogFiles);
+        theLogFiles.clear();
+        startLog(theOldLogFiles.get(theOldLogFiles.size() - 1) + 1, nLogFileSize);
+        nTotalBytes = 0;
+        nLiveBytes = 0;
+        for (String theKey : new ArrayList<String>(theIndex.keySet())) {
+            Location theLocation = theIndex.get(theKey);
+            if (theLocation != null) {
+                append(theKey, readValue(theLocation));
+            }
+        }
+        // The copies have to be on disk before the logs they replace are deleted,
+        // whether or not every write is synced.
+        theWriteLog.force();
+
+        // If a log can't be deleted, the ones after it are kept too, so that the
+        // old logs left are still the newest of them.
+        for (int i = 0; i < theOldLogFiles.size(); i++) {
+            if (!getLogFile(theOldLogFiles.get(i)).delete()) {
+                Logger.getAnonymousLogger().warning("Could not delete compacted log " + getLogFile(theOldLogFiles.get(i)));
+                theLogFiles.addAll(0, theOldLogFiles.subList(i, theOldLogFiles.size()));
+                break;
+            }
+        }
+    }
+}
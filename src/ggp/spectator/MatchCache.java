@@ -0,0 +1,133 @@
+package ggp.spectator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// In-process cache of the serialized responses for hot matches, so that the
+// handful of live matches which receive most of the viewer polls don't need a
+// datastore round trip per poll. The cache is bounded by the number of bytes
+// held, rather than the number of matches, since match sizes vary widely.
+// Entries are replaced when this instance accepts an update for the match,
+// and expire after a few seconds so updates accepted by other instances are
+// picked up quickly.
+public class MatchCache {
+    private static final long kMaxCachedBytes = 64 * 1024 * 1024;
+    private static final int kMaxStalenessSeconds = 5;
+
+    public static final String JSON_VIEW = "json";
+    public static final String ATOM_VIEW = "atom";
+    private static final String[] kViews = new String[] { JSON_VIEW, ATOM_VIEW };
+    private static final String kGzipSuffix = "/gzip";
+
+    public static class CachedResponse {
+        public final byte[] theBytes;
+        public final String theContentType;
+        public final String theETag;
+        public final Date lastModified;
+        public final int nMaxAgeSeconds;
+
+        public CachedResponse(byte[] theBytes, String theContentType, String theETag, Date lastModified, int nMaxAgeSeconds) {
+            this.theBytes = theBytes;
+            this.theContentType = theContentType;
+            this.theETag = theETag;
+            this.lastModified = lastModified;
+            this.nMaxAgeSeconds = nMaxAgeSeconds;
+        }
+
+        private int getWeight() {
+            return theBytes.length + theETag.length() + theContentType.length();
+        }
+    }
+
+    private static byte[] gzip(byte[] theBytes) {
+        try {
+            ByteArrayOutputStream theCompressed = new ByteArrayOutputStream(theBytes.length / 4 + 64);
+            GZIPOutputStream theStream = new GZIPOutputStream(theCompressed);
+            theStream.write(theBytes);
+            theStream.close();
+            return theCompressed.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final AtomicLong nCachedBytes = new AtomicLong();
+    private static final Cache<String, CachedResponse> theCache = CacheBuilder.newBuilder()
+            .maximumWeight(kMaxCachedBytes)
+            .weigher(new Weigher<String, CachedResponse>() {
+                public int weigh(String theKey, CachedResponse theResponse) {
+                    return theResponse.getWeight();
+                }
+            })
+            .removalListener(new RemovalListener<String, CachedResponse>() {
+                public void onRemoval(RemovalNotification<String, CachedResponse> theRemoval) {
+                    nCachedBytes.addAndGet(-theRemoval.getValue().getWeight());
+                }
+            })
+            .expireAfterWrite(kMaxStalenessSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    public static CachedResponse get(String theMatchKey, String theView) {
+        return theCache.getIfPresent(theMatchKey + "/" + theView);
+    }
+
+    public static void put(String theMatchKey, String theView, CachedResponse theResponse) {
+        nCachedBytes.addAndGet(theResponse.getWeight());
+        theCache.put(theMatchKey + "/" + theView, theResponse);
+    }
+
+    // Whether there's a response cached for the match, without counting towards
+    // the hit and miss counts.
+    public static boolean isCached(String theMatchKey, String theView) {
+        return theCache.asMap().containsKey(theMatchKey + "/" + theView);
+    }
+
+    // Returns the gzipped form of a cached response. It's compressed the first time
+    // it's requested, rather than when the response is built, since most versions
+    // of a live match are replaced before anybody asks for them gzipped. It's then
+    // kept as an entry of its own, so that its bytes are counted as well.
+    public static CachedResponse getGzipped(String theMatchKey, String theView, CachedResponse theResponse) {
+        String theKey = theMatchKey + "/" + theView + kGzipSuffix;
+        CachedResponse theGzipped = theCache.getIfPresent(theKey);
+        if (theGzipped == null || !theGzipped.theETag.equals(theResponse.theETag)) {
+            theGzipped = new CachedResponse(gzip(theResponse.theBytes), theResponse.theContentType, theResponse.theETag, theResponse.lastModified, theResponse.nMaxAgeSeconds);
+            nCachedBytes.addAndGet(theGzipped.getWeight());
+            theCache.put(theKey, theGzipped);
+        }
+        return theGzipped;
+    }
+
+    public static void invalidate(String theMatchKey) {
+        for (String theView : kViews) {
+            theCache.invalidate(theMatchKey + "/" + theView);
+            theCache.invalidate(theMatchKey + "/" + theView + kGzipSuffix);
+        }
+    }
+
+    public static JSONObject getStatsJSON() throws JSONException {
+        CacheStats theStats = theCache.stats();
+        JSONObject theJSON = new JSONObject();
+        theJSON.put("hits", theStats.hitCount());
+        theJSON.put("misses", theStats.missCount());
+        theJSON.put("evictions", theStats.evictionCount());
+        theJSON.put("entries", theCache.size());
+        theJSON.put("bytes", nCachedBytes.get());
+        theJSON.put("maxBytes", kMaxCachedBytes);
+        return theJSON;
+    }
+}
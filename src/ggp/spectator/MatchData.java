@@ -1,55 +1,486 @@
 package ggp.spectator;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.TimeZone;
+import java.util.List;
 
 import javax.jdo.JDOObjectNotFoundException;
-import javax.jdo.PersistenceManager;
 import javax.jdo.annotations.*;
 
 import com.google.appengine.api.datastore.Text;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Longs;
 
 import external.JSON.JSONArray;
 import external.JSON.JSONException;
 import external.JSON.JSONObject;
 
-import org.ggp.base.util.crypto.BaseHashing;
-import org.ggp.galaxy.shared.persistence.Persistence;
 
 @PersistenceCapable
 public class MatchData {
     @PrimaryKey @Persistent private String matchKey;
     @Persistent private String theAuthToken;
-    @Persistent private Text theMatchJSON;
     @Persistent private Date lastUpdated;
 
+    // Matches are stored as a header, which holds everything except for the
+    // append-only arrays, and a series of MatchSegments which hold slices of
+    // those arrays, with the states diff-encoded (see StateDeltas) and their
+    // symbols packed against a per-game dictionary (see PackedSegments). Updates
+    // only rewrite the header and the trailing segments, rather than the
+    // entire match. The lengths of the arrays are recorded in the header, so
+    // that segments written after the header are ignored.
+    @Persistent private Text theHeaderJSON;
+    @Persistent private List<String> theSegmentedArrays;
+    @Persistent private List<Integer> theSegmentedArrayLengths;
+    @Persistent private List<String> theSegmentedArrayDigests;
+    @NotPersistent private List<MatchSegment> thePendingSegments;
+
+    // NOTE: Older matches were stored as a single JSON blob. These are still
+    // readable, and are converted into segments the next time they're updated.
+    @Persistent private Text theMatchJSON;
+
+    // The identifying fields of the match, stored separately so that checking
+    // for key collisions doesn't require parsing the match. These are missing
+    // for older matches until they're next updated. See MatchIdentity.
+    @Persistent private String theIdentityMatchId;
+    @Persistent private Long theIdentityStartTime;
+    @Persistent private String theIdentityRandomToken;
+    @Persistent private String theIdentityMatchHostPKHash;
+
+    // Typed forms of the header and of the whole match, each built at most once
+    // per loaded match, the first time they're needed.
+    @NotPersistent private MatchModel theHeaderModel;
+    @NotPersistent private MatchModel theFullModel;
+
+    // Maps the identities of recently updated matches to their keys, so that
+    // most updates find their match with a single datastore lookup.
+    private static final Cache<String, String> theMatchKeys = CacheBuilder.newBuilder()
+            .maximumSize(50000)
+            .build();
+
+    private static final int kStatesPerSegment = 16;
+    private static final String[] kSegmentedArrays = new String[] { "states", "moves", "stateTimes", "errors" };
+
+    private MatchData() {
+        // Used when loading matches from an embedded store.
+    }
+
     public MatchData(JSONObject theMatchJSON, String authToken) throws IOException {
+        this(theMatchJSON, authToken, true);
+    }
+
+    // When shouldPersist is false, the new match is left to be persisted later
+    // along with others, using persistAll.
+    public MatchData(JSONObject theMatchJSON, String authToken, boolean shouldPersist) throws IOException {
         this.matchKey = getNewKeyForJSON(theMatchJSON);
-        this.theMatchJSON = new Text(theMatchJSON.toString());
-        this.lastUpdated = new Date();
-        this.theAuthToken = authToken;        
-        
+        this.theAuthToken = authToken;
+        setMatchJSON(theMatchJSON);
+
         if (matchKey.length() > 0) {
-            PersistenceManager pm = Persistence.getPersistenceManager();
-            pm.makePersistent(this);
-            pm.close();
+            if (shouldPersist) {
+                persist();
+            }
+            theMatchKeys.put(MatchIdentity.fromJSON(theMatchJSON).getIdentityString(), matchKey);
         }
     }
-    
+
+    // Assumes that the new JSON is an append-only extension of the old JSON,
+    // which should be ensured by the forward validation checks beforehand.
     public void setMatchJSON(JSONObject theNewJSON) {
-        this.theMatchJSON = new Text(theNewJSON.toString());
-        this.lastUpdated = new Date();
+        try {
+            List<String> theNewArrays = new ArrayList<String>();
+            List<Integer> theNewLengths = new ArrayList<Integer>();
+            int nMaxLength = 0;
+            for (String theArray : kSegmentedArrays) {
+                if (!theNewJSON.has(theArray)) continue;
+                int nLength = theNewJSON.getJSONArray(theArray).length();
+                theNewArrays.add(theArray);
+                theNewLengths.add(nLength);
+                nMaxLength = Math.max(nMaxLength, nLength);
+            }
+
+            // Segments before the first changed element don't need to be rewritten.
+            // Appended elements can't come before the end of the shortest old array.
+            int nFirstChangedElement = 0;
+            boolean isAppending = (theMatchJSON == null && theSegmentedArrays != null && theSegmentedArrays.equals(theNewArrays));
+            if (isAppending) {
+                nFirstChangedElement = Integer.MAX_VALUE;
+                for (int nLength : theSegmentedArrayLengths) {
+                    nFirstChangedElement = Math.min(nFirstChangedElement, nLength);
+                }
+            }
+
+            // Likewise, the prefix digests only need to be extended over the new elements.
+            List<String> theNewDigests = new ArrayList<String>();
+            for (int i = 0; i < theNewArrays.size(); i++) {
+                JSONArray theValues = theNewJSON.getJSONArray(theNewArrays.get(i));
+                if (isAppending && theSegmentedArrayDigests != null) {
+                    theNewDigests.add(PrefixDigests.extendDigest(theSegmentedArrayDigests.get(i), theValues, theSegmentedArrayLengths.get(i), theValues.length()));
+                } else {
+                    theNewDigests.add(PrefixDigests.computeDigest(theValues, theValues.length()));
+                }
+            }
+
+            thePendingSegments = new ArrayList<MatchSegment>();
+            for (int nSegment = nFirstChangedElement / kStatesPerSegment; nSegment * kStatesPerSegment < nMaxLength; nSegment++) {
+                JSONObject theSegment = new JSONObject();
+                for (String theArray : theNewArrays) {
+                    JSONArray theValues = theNewJSON.getJSONArray(theArray);
+                    JSONArray theSlice = new JSONArray();
+                    for (int i = nSegment * kStatesPerSegment; i < (nSegment+1) * kStatesPerSegment && i < theValues.length(); i++) {
+                        theSlice.put(theValues.get(i));
+                    }
+                    theSegment.put(theArray, theSlice);
+                }
+                if (theSegment.has("states")) {
+                    // Store the state fingerprints alongside the states, so they don't
+                    // need to be recomputed when the states are loaded again.
+                    JSONArray theStates = theSegment.getJSONArray("states");
+                    JSONArray theFingerprints = new JSONArray();
+                    for (int i = 0; i < theStates.length(); i++) {
+                        String theFingerprint = StateFingerprints.getFingerprint(theStates.get(i).toString());
+                        theFingerprints.put(theFingerprint == null ? "" : theFingerprint);
+                    }
+                    theSegment.put("stateFingerprints", theFingerprints);
+                    theSegment.put("states", StateDeltas.encodeStates(theStates));
+                }
+                if (PackedSegments.isEnabled && theNewJSON.has("gameMetaURL")) {
+                    PackedSegments.pack(theSegment, theNewJSON.getString("gameMetaURL"));
+                }
+                thePendingSegments.add(new MatchSegment(matchKey, nSegment, theSegment));
+            }
+
+            List<String> theHeaderKeys = new ArrayList<String>(Arrays.asList(JSONObject.getNames(theNewJSON)));
+            theHeaderKeys.removeAll(theNewArrays);
+            this.theHeaderJSON = new Text(new JSONObject(theNewJSON, theHeaderKeys.toArray(new String[0])).toString());
+            this.theSegmentedArrays = theNewArrays;
+            this.theSegmentedArrayLengths = theNewLengths;
+            this.theSegmentedArrayDigests = theNewDigests;
+            this.theMatchJSON = null;
+            this.theHeaderModel = null;
+            this.theFullModel = null;
+            this.lastUpdated = new Date();
+            if (theIdentityMatchId == null) {
+                MatchIdentity theIdentity = MatchIdentity.fromJSON(theNewJSON);
+                if (theIdentity != null) {
+                    this.theIdentityMatchId = theIdentity.getMatchId();
+                    this.theIdentityStartTime = theIdentity.getStartTime();
+                    this.theIdentityRandomToken = theIdentity.getRandomToken();
+                    this.theIdentityMatchHostPKHash = theIdentity.getMatchHostPKHash();
+                }
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Unlike setMatchJSON, this doesn't assume that the new JSON extends the old
+    // JSON, and so rewrites every segment.
+    public void replaceMatchJSON(JSONObject theNewJSON) {
+        this.theSegmentedArrays = null;
+        setMatchJSON(theNewJSON);
+    }
+
+    public void persist() {
+        persistAll(Collections.singletonList(this));
+    }
+
+    // Persists several matches together. The stores write the segments before the
+    // headers, so that a stored header never refers to segments which haven't been
+    // written yet.
+    public static void persistAll(List<MatchData> theMatches) {
+        List<MatchData> theStoredMatches = new ArrayList<MatchData>();
+        for (MatchData theMatch : theMatches) {
+            if (theMatch.matchKey.length() > 0) {
+                theStoredMatches.add(theMatch);
+            }
+        }
+        Stores.getMatchStore().saveMatches(theStoredMatches);
+    }
+
+    // Returns the segments that need to be written along with the header, and
+    // forgets them, since they'll have been written by the time it's needed.
+    List<MatchSegment> takePendingSegments() {
+        List<MatchSegment> theSegments = (thePendingSegments == null) ? new ArrayList<MatchSegment>() : thePendingSegments;
+        thePendingSegments = null;
+        return theSegments;
+    }
+
+    // The form in which matches are kept by the embedded store.
+    JSONObject toStoredJSON() throws JSONException {
+        JSONObject theStored = new JSONObject();
+        theStored.put("matchKey", matchKey);
+        theStored.put("authToken", theAuthToken);
+        if (lastUpdated != null) theStored.put("lastUpdated", lastUpdated.getTime());
+        if (theHeaderJSON != null) theStored.put("header", theHeaderJSON.getValue());
+        if (theSegmentedArrays != null) {
+            theStored.put("segmentedArrays", theSegmentedArrays);
+            theStored.put("segmentedArrayLengths", theSegmentedArrayLengths);
+            theStored.put("segmentedArrayDigests", theSegmentedArrayDigests);
+        }
+        if (theMatchJSON != null) theStored.put("matchJSON", theMatchJSON.getValue());
+        if (theIdentityMatchId != null) {
+            theStored.put("identityMatchId", theIdentityMatchId);
+            theStored.put("identityStartTime", theIdentityStartTime);
+            theStored.put("identityRandomToken", theIdentityRandomToken);
+            if (theIdentityMatchHostPKHash != null) theStored.put("identityMatchHostPKHash", theIdentityMatchHostPKHash);
+        }
+        return theStored;
+    }
+
+    static MatchData fromStoredJSON(JSONObject theStored) throws JSONException {
+        MatchData theMatch = new MatchData();
+        theMatch.matchKey = theStored.getString("matchKey");
+        theMatch.theAuthToken = theStored.getString("authToken");
+        if (theStored.has("lastUpdated")) theMatch.lastUpdated = new Date(theStored.getLong("lastUpdated"));
+        if (theStored.has("header")) theMatch.theHeaderJSON = new Text(theStored.getString("header"));
+        if (theStored.has("segmentedArrays")) {
+            JSONArray theArrays = theStored.getJSONArray("segmentedArrays");
+            JSONArray theLengths = theStored.getJSONArray("segmentedArrayLengths");
+            JSONArray theDigests = theStored.getJSONArray("segmentedArrayDigests");
+            theMatch.theSegmentedArrays = new ArrayList<String>();
+            theMatch.theSegmentedArrayLengths = new ArrayList<Integer>();
+            theMatch.theSegmentedArrayDigests = new ArrayList<String>();
+            for (int i = 0; i < theArrays.length(); i++) {
+                theMatch.theSegmentedArrays.add(theArrays.getString(i));
+                theMatch.theSegmentedArrayLengths.add(theLengths.getInt(i));
+                theMatch.theSegmentedArrayDigests.add(theDigests.getString(i));
+            }
+        }
+        if (theStored.has("matchJSON")) theMatch.theMatchJSON = new Text(theStored.getString("matchJSON"));
+        if (theStored.has("identityMatchId")) {
+            theMatch.theIdentityMatchId = theStored.getString("identityMatchId");
+            theMatch.theIdentityStartTime = theStored.getLong("identityStartTime");
+            theMatch.theIdentityRandomToken = theStored.getString("identityRandomToken");
+            if (theStored.has("identityMatchHostPKHash")) theMatch.theIdentityMatchHostPKHash = theStored.getString("identityMatchHostPKHash");
+        }
+        return theMatch;
     }
 
     public JSONObject getMatchJSON() {
         try {
-            return new JSONObject(theMatchJSON.getValue());
+            if (theMatchJSON != null) {
+                return new JSONObject(theMatchJSON.getValue());
+            }
+            JSONObject theJSON = new JSONObject(theHeaderJSON.getValue());
+            JSONObject theArrays = loadSegmentedArrays(0);
+            for (String theArray : theSegmentedArrays) {
+                theJSON.put(theArray, theArrays.getJSONArray(theArray));
+            }
+            return theJSON;
+        } catch (JSONException e) {
+            return null;
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    // Returns the serialized match JSON. Older matches are stored this way already,
+    // so they're returned as-is rather than being parsed and serialized again.
+    public String getMatchJSONString() {
+        if (theMatchJSON != null) {
+            return theMatchJSON.getValue();
+        }
+        JSONObject theJSON = getMatchJSON();
+        return (theJSON == null) ? null : theJSON.toString();
+    }
+
+    // Fields outside of the append-only arrays which can change during a match.
+    private static final String[] kMutableFields = new String[] { "isCompleted", "isAborted", "goalValues", "playerNamesFromHost" };
+
+    // Returns the changes to the match for a viewer who already has the first
+    // nKnownStates states, along with the corresponding moves, state times and
+    // errors. Only the segments holding those changes are loaded. The offsets
+    // give the index in each array at which the appended elements belong.
+    public JSONObject getMatchDeltaJSON(int nKnownStates) {
+        try {
+            JSONObject theHeader = getHeaderJSON();
+            if (theHeader == null) return null;
+
+            // The viewer has one fewer move than states, since the moves are
+            // the transitions between the states.
+            int nKnownMoves = Math.max(0, nKnownStates - 1);
+            JSONObject theArrays;
+            int nFirstLoaded;
+            if (theMatchJSON != null) {
+                theArrays = theHeader;
+                nFirstLoaded = 0;
+            } else {
+                theArrays = loadSegmentedArrays(nKnownMoves / kStatesPerSegment);
+                nFirstLoaded = (nKnownMoves / kStatesPerSegment) * kStatesPerSegment;
+            }
+
+            return buildMatchDeltaJSON(matchKey, theHeader, theArrays, nFirstLoaded, nKnownStates, getStateCount());
+        } catch (JSONException e) {
+            return null;
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    // Builds the delta for a viewer who already has the first nKnownStates states, given
+    // the header and the segmented arrays starting from the element at nFirstLoaded. The
+    // arrays may be held by the header itself, e.g. when building a delta from a full match.
+    public static JSONObject buildMatchDeltaJSON(String matchKey, JSONObject theHeader, JSONObject theArrays, int nFirstLoaded, int nKnownStates, int nStateCount) throws JSONException {
+        int nKnownMoves = Math.max(0, nKnownStates - 1);
+        JSONObject theAppended = new JSONObject();
+        JSONObject theOffsets = new JSONObject();
+        for (String theArray : kSegmentedArrays) {
+            JSONArray theValues = theArrays.optJSONArray(theArray);
+            if (theValues == null) continue;
+            int nOffset = theArray.equals("moves") ? nKnownMoves : nKnownStates;
+            JSONArray theNewValues = new JSONArray();
+            for (int i = Math.max(0, nOffset - nFirstLoaded); i < theValues.length(); i++) {
+                theNewValues.put(theValues.get(i));
+            }
+            theAppended.put(theArray, theNewValues);
+            theOffsets.put(theArray, nOffset);
+        }
+
+        JSONObject theReplaced = new JSONObject();
+        for (String theField : kMutableFields) {
+            if (theHeader.has(theField)) {
+                theReplaced.put(theField, theHeader.get(theField));
+            }
+        }
+
+        JSONObject theDelta = new JSONObject();
+        theDelta.put("matchKey", matchKey);
+        theDelta.put("since", nKnownStates);
+        theDelta.put("stateCount", nStateCount);
+        theDelta.put("append", theAppended);
+        theDelta.put("offsets", theOffsets);
+        theDelta.put("replace", theReplaced);
+        return theDelta;
+    }
+
+    // Returns everything except for the segmented arrays, without loading the
+    // segments. For older matches, this includes the segmented arrays as well.
+    public JSONObject getHeaderJSON() {
+        try {
+            if (theMatchJSON != null) {
+                return new JSONObject(theMatchJSON.getValue());
+            }
+            return new JSONObject(theHeaderJSON.getValue());
         } catch (JSONException e) {
             return null;
         }
     }
+
+    // Returns null if the header couldn't be read.
+    public MatchModel getHeaderModel() {
+        if (theHeaderModel == null) {
+            JSONObject theHeader = getHeaderJSON();
+            if (theHeader == null) return null;
+            try {
+                theHeaderModel = MatchModel.fromJSON(theHeader);
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+        return theHeaderModel;
+    }
+
+    // Returns null if the match couldn't be read. This loads every segment,
+    // so use the header model when the segmented arrays aren't needed.
+    public MatchModel getMatchModel() {
+        if (theFullModel == null) {
+            if (theMatchJSON != null) {
+                // For older matches, the header is the entire match.
+                theFullModel = getHeaderModel();
+            } else {
+                JSONObject theJSON = getMatchJSON();
+                if (theJSON == null) return null;
+                try {
+                    theFullModel = MatchModel.fromJSON(theJSON);
+                } catch (JSONException e) {
+                    return null;
+                }
+            }
+        }
+        return theFullModel;
+    }
+
+    // Returns digests of the stored arrays, or null for matches which were
+    // stored before digests were recorded.
+    public PrefixDigests getPrefixDigests() {
+        if (theMatchJSON != null || theSegmentedArrayDigests == null) return null;
+        return new PrefixDigests(theSegmentedArrays, theSegmentedArrayLengths, theSegmentedArrayDigests);
+    }
+
+    // Makes the next setMatchJSON compute the digests from scratch, rather than
+    // extending the stored ones, which no longer match the stored arrays.
+    void discardPrefixDigests() {
+        theSegmentedArrayDigests = null;
+    }
+
+    private int getSegmentCount() {
+        if (theSegmentedArrayLengths == null) return 0;
+        int nMaxLength = 0;
+        for (int nLength : theSegmentedArrayLengths) {
+            nMaxLength = Math.max(nMaxLength, nLength);
+        }
+        return (nMaxLength + kStatesPerSegment - 1) / kStatesPerSegment;
+    }
+
+    private JSONObject loadSegmentedArrays(int nFirstSegment) throws JSONException {
+        return loadSegmentedArrays(nFirstSegment, getSegmentCount());
+    }
+
+    // Reassembles the segmented arrays from the segments starting at nFirstSegment
+    // and ending before nEndSegment. Elements beyond the lengths recorded in the
+    // header are dropped, since they may come from segments written by an update
+    // after this header was loaded.
+    private JSONObject loadSegmentedArrays(int nFirstSegment, int nEndSegment) throws JSONException {
+        List<JSONObject> theSegments = loadSegments(nFirstSegment, Math.min(nEndSegment, getSegmentCount()));
+        JSONObject theArrays = new JSONObject();
+        for (int i = 0; i < theSegmentedArrays.size(); i++) {
+            String theArray = theSegmentedArrays.get(i);
+            int nLength = theSegmentedArrayLengths.get(i) - nFirstSegment * kStatesPerSegment;
+            JSONArray theValues = new JSONArray();
+            for (JSONObject theSegment : theSegments) {
+                JSONArray theSlice = theSegment.getJSONArray(theArray);
+                for (int j = 0; j < theSlice.length() && theValues.length() < nLength; j++) {
+                    theValues.put(theSlice.get(j));
+                }
+            }
+            theArrays.put(theArray, theValues);
+        }
+        return theArrays;
+    }
+
+    private List<JSONObject> loadSegments(int nFirstSegment, int nEndSegment) throws JSONException {
+        List<JSONObject> theSegments = new ArrayList<JSONObject>();
+        List<String> theSegmentKeys = new ArrayList<String>();
+        for (int nSegment = nFirstSegment; nSegment < nEndSegment; nSegment++) {
+            theSegmentKeys.add(MatchSegment.getSegmentKey(matchKey, nSegment));
+        }
+        for (MatchSegment theSegment : Stores.getMatchStore().loadSegments(theSegmentKeys)) {
+            JSONObject theSegmentJSON = theSegment.getSegmentJSON();
+            if (theSegmentJSON == null) {
+                throw new JSONException("Could not parse segment of match " + matchKey);
+            }
+            PackedSegments.unpack(theSegmentJSON);
+            if (theSegmentJSON.has("states")) {
+                theSegmentJSON.put("states", StateDeltas.decodeStates(theSegmentJSON.getJSONArray("states")));
+            }
+            if (theSegmentJSON.has("stateFingerprints")) {
+                JSONArray theStates = theSegmentJSON.getJSONArray("states");
+                JSONArray theFingerprints = theSegmentJSON.getJSONArray("stateFingerprints");
+                for (int i = 0; i < theStates.length() && i < theFingerprints.length(); i++) {
+                    StateFingerprints.rememberFingerprint(theStates.get(i).toString(), theFingerprints.getString(i));
+                }
+            }
+            theSegments.add(theSegmentJSON);
+        }
+        return theSegments;
+    }
     
     public Date getLastUpdated() {
         // NOTE: For some matches this can be NULL, since they were added
@@ -57,6 +488,21 @@ public class MatchData {
         return lastUpdated;
     }
 
+    public int getStateCount() {
+        if (theMatchJSON == null) {
+            int nIndex = theSegmentedArrays.indexOf("states");
+            return nIndex < 0 ? 0 : theSegmentedArrayLengths.get(nIndex);
+        }
+        // For older matches, the header is the entire match.
+        MatchModel theModel = getHeaderModel();
+        return (theModel == null) ? 0 : theModel.getStateCount();
+    }
+
+    public boolean isCompleted() {
+        MatchModel theHeader = getHeaderModel();
+        return theHeader != null && theHeader.isCompleted();
+    }
+
     public String getAuthToken() {
         return theAuthToken;
     }
@@ -65,105 +511,134 @@ public class MatchData {
         return matchKey;
     }
 
-    /* ATOM feed specific methods */    
+    /* ATOM feed specific methods */
+    private static final int kAtomEntriesPerPage = 50;
+
     public String getAtomFeed() {
+        StringWriter w = new StringWriter();
         try {
-            StringBuilder b = new StringBuilder();
-            JSONObject theJSON = new JSONObject(theMatchJSON.getValue());
-            JSONArray theStates = theJSON.getJSONArray("states");
-            JSONArray theStateTimes = theJSON.getJSONArray("stateTimes");
-            
+            if (!writeAtomFeed(w, -1)) return null;
+        } catch (IOException e) {
+            return null;
+        }
+        return w.toString();
+    }
+
+    // Writes the Atom feed for the match, with one entry per state, newest first.
+    // Only the most recent states before nBefore are included, or the most recent
+    // states overall when nBefore is negative, and a "next" link points at the page
+    // of older states. Returns false if the match couldn't be read.
+    public boolean writeAtomFeed(Writer w, int nBefore) throws IOException {
+        try {
+            int nStates = getStateCount();
+            int nEnd = (nBefore < 0 || nBefore > nStates) ? nStates : nBefore;
+            int nStart = Math.max(0, nEnd - kAtomEntriesPerPage);
+
+            // Only the segments holding the states on this page need to be loaded.
+            List<Long> theStateTimes;
+            int nFirstLoaded;
+            if (theMatchJSON != null || theFullModel != null) {
+                MatchModel theModel = getMatchModel();
+                if (theModel == null || theModel.getStateTimes() == null) return false;
+                theStateTimes = theModel.getStateTimes();
+                nFirstLoaded = 0;
+            } else {
+                int nEndSegment = (nEnd + kStatesPerSegment - 1) / kStatesPerSegment;
+                JSONArray theLoadedTimes = loadSegmentedArrays(nStart / kStatesPerSegment, nEndSegment).getJSONArray("stateTimes");
+                long[] theTimes = new long[theLoadedTimes.length()];
+                for (int i = 0; i < theTimes.length; i++) {
+                    theTimes[i] = theLoadedTimes.getLong(i);
+                }
+                theStateTimes = Longs.asList(theTimes);
+                nFirstLoaded = (nStart / kStatesPerSegment) * kStatesPerSegment;
+            }
+
+            String theMatchURL = "http://matches.ggp.org/matches/" + matchKey + "/";
             String atomTitle = "GGP Match [" + matchKey + "]";
             String atomId = "tag:matches.ggp.org,2010-01-01:/matches/" + matchKey + "/";
+            String atomSelfURL = theMatchURL + "feed.atom" + (nBefore < 0 ? "" : "?before=" + nEnd);
+            String atomNextURL = (nStart > 0) ? theMatchURL + "feed.atom?before=" + nStart : null;
+            Date atomUpdated = new Date(theStateTimes.get(theStateTimes.size()-1));
 
-            b.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?> \n");
-            b.append("<feed xmlns=\"http://www.w3.org/2005/Atom\"> \n");
-            b.append("   <title>" + atomTitle + "</title> \n");
-            b.append("   <link href=\"http://pubsubhubbub.appspot.com/\" rel=\"hub\"/> \n");
-            b.append("   <link href=\"http://matches.ggp.org/matches/" + matchKey + "/\"/> \n");
-            b.append("   <link rel=\"self\" href=\"http://matches.ggp.org/matches/" + matchKey + "/feed.atom\"/> \n");
-            b.append("   <updated>" + getAtomDateString(new Date(theStateTimes.getLong(theStateTimes.length()-1))) + "</updated> \n");
-            b.append("   <author><name>GGP Spectator Server</name></author> \n");
-            b.append("   <id>" + atomId + "</id> \n");
-            b.append("\n");
-            for (int i = theStates.length()-1; i >= 0; i--) {
+            AtomWriter theWriter = new AtomWriter(w);
+            theWriter.writeHeader(atomTitle, atomId, atomSelfURL, theMatchURL, atomNextURL, atomUpdated);
+            for (int i = nEnd-1; i >= nStart; i--) {
                 String atomStateId = "tag:matches.ggp.org,2010-01-01:/matches/" + matchKey + "/" + i;
-                String atomStateTime = getAtomDateString(new Date(theStateTimes.getLong(i)));
-                b.append("   <entry> \n");
-                b.append("      <title>State Transition at " + atomStateTime + "</title> \n");
-                b.append("      <link href=\"http://matches.ggp.org/matches/" + matchKey + "/\"/> \n");
-                b.append("      <id>" + atomStateId + "</id> \n");
-                b.append("      <updated>" + atomStateTime + "</updated> \n");
-                b.append("      <summary>State changed in underlying match.</summary> \n");
-                b.append("   </entry> \n");  
-            }
-            b.append("</feed> \n");
-            
-            return b.toString();
+                Date atomStateTime = new Date(theStateTimes.get(i - nFirstLoaded));
+                theWriter.writeEntry("State Transition at " + AtomWriter.getAtomDateString(atomStateTime), theMatchURL, atomStateId, atomStateTime, "State changed in underlying match.");
+            }
+            theWriter.writeFooter();
+            return true;
         } catch (JSONException e) {
-            return null;
-        }        
-    }
-    
-    public static String getAtomDateString(Date d) {
-        // Based on RFC 3339
-        SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        dateFormatGmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return dateFormatGmt.format(d);
+            return false;
+        } catch (JDOObjectNotFoundException e) {
+            return false;
+        }
     }
 
     /* Static accessor methods */
     public static MatchData loadMatchData(String matchKey) throws IOException {
-        return Persistence.loadSpecific(matchKey, MatchData.class);
-    }    
-    
+        return Stores.getMatchStore().loadMatch(matchKey);
+    }
+
+    public static void deleteMatchData(String matchKey) throws IOException {
+        MatchData theMatch = loadMatchData(matchKey);
+        if (theMatch == null) return;
+        List<String> theSegmentKeys = new ArrayList<String>();
+        for (int nSegment = 0; nSegment < theMatch.getSegmentCount(); nSegment++) {
+            theSegmentKeys.add(MatchSegment.getSegmentKey(matchKey, nSegment));
+        }
+        Stores.getMatchStore().deleteMatch(matchKey, theSegmentKeys);
+    }
+
     private static String getNewKeyForJSON(JSONObject theJSON) throws IOException {
+        MatchIdentity theIdentity = MatchIdentity.fromJSON(theJSON);
+        if (theIdentity == null) return "";
         String theKey;
         int nAttempt = -1;
         do {
             nAttempt++;
-            theKey = computeKeyAttempt(theJSON, nAttempt);
-        } while (theKey.length() > 0 && loadMatchData(theKey) != null);
+            theKey = theIdentity.getKeyAttempt(nAttempt);
+        } while (loadMatchData(theKey) != null);
         return theKey;
     }
 
-    public static MatchData loadExistingMatchFromJSON(PersistenceManager pm, JSONObject theJSON) throws JDOObjectNotFoundException {
+    // Throws JDOObjectNotFoundException if there's no such match yet.
+    public static MatchData loadExistingMatchFromJSON(JSONObject theJSON) throws IOException {
+        MatchIdentity theIdentity = MatchIdentity.fromJSON(theJSON);
+        if (theIdentity == null)
+            throw new JDOObjectNotFoundException();
+
+        String theCachedKey = theMatchKeys.getIfPresent(theIdentity.getIdentityString());
+        if (theCachedKey != null) {
+            MatchData m = loadMatchData(theCachedKey);
+            if (m != null && m.hasIdentity(theIdentity)) return m;
+            theMatchKeys.invalidate(theIdentity.getIdentityString());
+        }
+
         int nAttempt = -1;
         while(true) {
             nAttempt++;
-            String theKey = computeKeyAttempt(theJSON, nAttempt);
-            if (theKey.length() == 0)
+            String theKey = theIdentity.getKeyAttempt(nAttempt);
+            MatchData m = loadMatchData(theKey);
+            if (m == null)
                 throw new JDOObjectNotFoundException();
-
-            MatchData m = (MatchData)pm.detachCopy(pm.getObjectById(MatchData.class, theKey));     
-            try {
-                JSONObject theOldJSON = m.getMatchJSON();
-                if (!theOldJSON.getString("matchId").equals(theJSON.getString("matchId"))) continue;
-                if (theOldJSON.getLong("startTime") != theJSON.getLong("startTime")) continue;
-                if (!theOldJSON.getString("randomToken").equals(theJSON.getString("randomToken"))) continue;
-                if (theOldJSON.has("matchHostPK") || theJSON.has("matchHostPK")) {
-                    if (!theOldJSON.getString("matchHostPK").equals(theJSON.getString("matchHostPK")))
-                        continue;
-                }
+            if (m.hasIdentity(theIdentity)) {
+                theMatchKeys.put(theIdentity.getIdentityString(), theKey);
                 return m;
-            } catch (JSONException e) {
-                ;
-            }            
+            }
         }
     }
 
-    private static String computeKeyAttempt(JSONObject theJSON, int nKeyAttempt) {
-        try {
-            String theKey = BaseHashing.computeSHA1Hash(theJSON.getString("matchId"));
-            theKey += "." + theJSON.getLong("startTime");
-            theKey += "." + BaseHashing.computeSHA1Hash(theJSON.getString("randomToken"));
-            if (theJSON.has("matchHostPK")) {
-                theKey += "." + BaseHashing.computeSHA1Hash(theJSON.getString("matchHostPK"));
-            }
-            theKey += "-" + nKeyAttempt;
-            return BaseHashing.computeSHA1Hash(theKey);
-        } catch(JSONException e) {
-            return "";
+    private boolean hasIdentity(MatchIdentity theIdentity) {
+        if (theIdentityMatchId != null) {
+            return theIdentity.matches(theIdentityMatchId, theIdentityStartTime, theIdentityRandomToken, theIdentityMatchHostPKHash);
         }
+        // Older matches don't have their identity stored separately yet.
+        JSONObject theHeader = getHeaderJSON();
+        if (theHeader == null) return false;
+        MatchIdentity theStoredIdentity = MatchIdentity.fromJSON(theHeader);
+        if (theStoredIdentity == null) return false;
+        return theIdentity.getIdentityString().equals(theStoredIdentity.getIdentityString());
     }
 }
\ No newline at end of file
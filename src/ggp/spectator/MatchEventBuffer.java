@@ -0,0 +1,143 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import external.JSON.JSONObject;
+
+// Ring buffer of the recent updates to a match, shared by every spectator that
+// is streaming the match from this instance. Each update is serialized into an
+// event once, when it's published, and that same text is written to all of the
+// subscribers. Buffers only exist for matches that someone is streaming.
+public class MatchEventBuffer {
+    private static final int kEventsPerMatch = 32;
+    private static final int kMaxBufferedMatches = 1000;
+    private static final long kStorageRefreshMillis = 5000;
+
+    private static final Cache<String, MatchEventBuffer> theBuffers = CacheBuilder.newBuilder()
+            .maximumSize(kMaxBufferedMatches)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    public static class Event {
+        public final long nSequence;
+        public final int nStateCount;
+        public final String theText;
+
+        private Event(long nSequence, int nStateCount, String theText) {
+            this.nSequence = nSequence;
+            this.nStateCount = nStateCount;
+            this.theText = theText;
+        }
+    }
+
+    private final String theMatchKey;
+    private final Event[] theEvents = new Event[kEventsPerMatch];
+    private long nNextSequence = 0;
+    private int nLatestStateCount = -1;
+    private long nLatestUpdateTime = -1;
+    private long nLastStorageRefresh = 0;
+
+    private MatchEventBuffer(String theMatchKey) {
+        this.theMatchKey = theMatchKey;
+    }
+
+    public static MatchEventBuffer getBuffer(final String theMatchKey) {
+        try {
+            return theBuffers.get(theMatchKey, new Callable<MatchEventBuffer>() {
+                public MatchEventBuffer call() {
+                    return new MatchEventBuffer(theMatchKey);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Publishes an update to the spectators of the match, if there are any.
+    public static void publishIfWatched(String theMatchKey, int nStateCount, Date theUpdateTime, JSONObject theDelta) {
+        MatchEventBuffer theBuffer = theBuffers.getIfPresent(theMatchKey);
+        if (theBuffer != null) {
+            theBuffer.publish(nStateCount, theUpdateTime, theDelta);
+        }
+    }
+
+    public static String formatEvent(int nStateCount, JSONObject theDelta) {
+        // Event IDs are state counts, so that a reconnecting client's Last-Event-ID
+        // tells us how many states it already has.
+        return "id: " + nStateCount + "\nevent: delta\ndata: " + theDelta.toString() + "\n\n";
+    }
+
+    public synchronized void publish(int nStateCount, Date theUpdateTime, JSONObject theDelta) {
+        long nUpdateTime = (theUpdateTime == null) ? 0 : theUpdateTime.getTime();
+        if (nUpdateTime <= nLatestUpdateTime) return;
+        theEvents[(int)(nNextSequence % kEventsPerMatch)] = new Event(nNextSequence, nStateCount, formatEvent(nStateCount, theDelta));
+        nNextSequence++;
+        nLatestStateCount = nStateCount;
+        nLatestUpdateTime = nUpdateTime;
+        notifyAll();
+    }
+
+    public synchronized long getNextSequence() {
+        return nNextSequence;
+    }
+
+    // Returns the events starting from the given sequence number, or null if
+    // some of them have already been overwritten.
+    public synchronized List<Event> getEventsFrom(long nSequence) {
+        if (nNextSequence - nSequence > kEventsPerMatch) return null;
+        List<Event> theNewEvents = new ArrayList<Event>();
+        for (long i = nSequence; i < nNextSequence; i++) {
+            theNewEvents.add(theEvents[(int)(i % kEventsPerMatch)]);
+        }
+        return theNewEvents;
+    }
+
+    public synchronized void awaitEventsFrom(long nSequence, long nTimeoutMillis) throws InterruptedException {
+        if (nNextSequence <= nSequence) {
+            wait(nTimeoutMillis);
+        }
+    }
+
+    // Records the version of the match that a subscriber caught up to from storage,
+    // so that the first refresh doesn't need to publish the whole match. Before any
+    // events are published, the oldest such version is kept, so the first refreshed
+    // delta covers every subscriber.
+    public synchronized void recordCatchUp(int nStateCount, Date theUpdateTime) {
+        if (nNextSequence > 0 || theUpdateTime == null) return;
+        if (nLatestUpdateTime < 0 || theUpdateTime.getTime() < nLatestUpdateTime) {
+            nLatestStateCount = nStateCount;
+            nLatestUpdateTime = theUpdateTime.getTime();
+        }
+    }
+
+    // Picks up updates that were accepted by other instances. Subscribers call this
+    // when they've been idle for a while, but only one of them per refresh interval
+    // actually reads from the datastore; the rest share the resulting event.
+    public void refreshFromStorage() throws IOException {
+        int nKnownStates;
+        synchronized (this) {
+            if (System.currentTimeMillis() - nLastStorageRefresh < kStorageRefreshMillis) return;
+            nLastStorageRefresh = System.currentTimeMillis();
+            // When nothing has been published yet, the delta covers the whole match.
+            nKnownStates = Math.max(0, nLatestStateCount);
+        }
+        MatchData theMatch = MatchData.loadMatchData(theMatchKey);
+        if (theMatch == null || theMatch.getLastUpdated() == null) return;
+        synchronized (this) {
+            if (theMatch.getLastUpdated().getTime() <= nLatestUpdateTime) return;
+        }
+        JSONObject theDelta = theMatch.getMatchDeltaJSON(nKnownStates);
+        if (theDelta != null) {
+            publish(theMatch.getStateCount(), theMatch.getLastUpdated(), theDelta);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ggp.spectator;
+
+import org.ggp.base.util.crypto.BaseHashing;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// The fields that identify a match: the match ID, start time, random token,
+// and (for signed matches) the public key of the match host. Match keys are
+// derived from these, with an attempt number to resolve collisions, so the
+// hashes of the individual fields are computed once and reused for every key
+// attempt. The match host key is only kept as a hash, since it's long.
+public class MatchIdentity {
+    private final String theMatchId;
+    private final long nStartTime;
+    private final String theRandomToken;
+    private final String theMatchHostPKHash;
+    private final String theKeyPrefix;
+
+    private MatchIdentity(String theMatchId, long nStartTime, String theRandomToken, String theMatchHostPKHash) {
+        this.theMatchId = theMatchId;
+        this.nStartTime = nStartTime;
+        this.theRandomToken = theRandomToken;
+        this.theMatchHostPKHash = theMatchHostPKHash;
+
+        String theKey = BaseHashing.computeSHA1Hash(theMatchId);
+        theKey += "." + nStartTime;
+        theKey += "." + BaseHashing.computeSHA1Hash(theRandomToken);
+        if (theMatchHostPKHash != null) {
+            theKey += "." + theMatchHostPKHash;
+        }
+        this.theKeyPrefix = theKey;
+    }
+
+    // Returns null if the match doesn't have the identifying fields.
+    public static MatchIdentity fromJSON(JSONObject theJSON) {
+        try {
+            String theMatchHostPKHash = null;
+            if (theJSON.has("matchHostPK")) {
+                theMatchHostPKHash = BaseHashing.computeSHA1Hash(theJSON.getString("matchHostPK"));
+            }
+            return new MatchIdentity(theJSON.getString("matchId"), theJSON.getLong("startTime"), theJSON.getString("randomToken"), theMatchHostPKHash);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public String getKeyAttempt(int nKeyAttempt) {
+        return BaseHashing.computeSHA1Hash(theKeyPrefix + "-" + nKeyAttempt);
+    }
+
+    // Uniquely identifies the match, for use as a cache key.
+    public String getIdentityString() {
+        return theKeyPrefix;
+    }
+
+    public String getMatchId() {
+        return theMatchId;
+    }
+
+    public long getStartTime() {
+        return nStartTime;
+    }
+
+    public String getRandomToken() {
+        return theRandomToken;
+    }
+
+    // Null if the match isn't signed.
+    public String getMatchHostPKHash() {
+        return theMatchHostPKHash;
+    }
+
+    public boolean matches(String theMatchId, long nStartTime, String theRandomToken, String theMatchHostPKHash) {
+        if (!this.theMatchId.equals(theMatchId)) return false;
+        if (this.nStartTime != nStartTime) return false;
+        if (!this.theRandomToken.equals(theRandomToken)) return false;
+        if (this.theMatchHostPKHash == null) return theMatchHostPKHash == null;
+        return this.theMatchHostPKHash.equals(theMatchHostPKHash);
+    }
+}
@@ -0,0 +1,381 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+
+import com.google.appengine.api.ThreadManager;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Accepts match updates from match hosts, either one at a time or in batches.
+// Each update goes through the same steps: it's validated and applied to the
+// stored match, the updated matches are persisted, the new versions are sent
+// to spectators and cached, and finally the feeds and downstream services are
+// told about the updated matches. Batches share the persisting and announcing
+// steps across all of their updates.
+public class MatchIngestion {
+    private static final int kMaxBatchSize = 100;
+    private static final int kConcurrentValidations = 8;
+
+    public static class Update {
+        private final JSONObject theMatchJSON;
+        private MatchData theMatch;
+        private int nPreviousStates;
+        private boolean wasDiscarded;
+
+        private Update(JSONObject theMatchJSON) {
+            this.theMatchJSON = theMatchJSON;
+        }
+
+        public String getMatchKey() {
+            return theMatch.getMatchKey();
+        }
+
+        // Updates which fail the forward validation checks are discarded, but
+        // are still reported to the match host as if they were accepted.
+        public boolean wasDiscarded() {
+            return wasDiscarded;
+        }
+
+        private boolean isCompleted() throws JSONException {
+            return theMatchJSON.has("isCompleted") && theMatchJSON.getBoolean("isCompleted");
+        }
+    }
+
+    // Rejects inconsistent matches while streaming over the JSON, so that only
+    // matches that pass the internal consistency checks are built into objects.
+    // Matches returned from here only still need their signatures checked.
+    public static JSONObject parseMatchJSON(String theData, Metrics.StageTimer theTimer) throws MatchValidation.ValidationException {
+        StreamingMatchValidator.validate(theData);
+        theTimer.lap("prevalidate");
+        try {
+            JSONObject theMatchJSON = new JSONObject(theData);
+            theTimer.lap("parse");
+            String theRepository = new URL(theMatchJSON.getString("gameMetaURL")).getHost();
+            if (!theRepository.equals("games.ggp.org")) {
+                // TODO: Make this more permissive. What's the best way to do this
+                // while still providing security for viewers?
+                throw new MatchValidation.ValidationException("Repository not whitelisted: " + theRepository);
+            }
+            if (!theMatchJSON.getString("gameMetaURL").contains("//games.ggp.org/base") &&
+                !theMatchJSON.getString("gameMetaURL").contains("//games.ggp.org/dresden") &&
+                !theMatchJSON.getString("gameMetaURL").contains("//games.ggp.org/stanford")) {
+                // TODO: Make this more permissive. What's the best way to do this
+                // while still providing security for viewers?
+                throw new MatchValidation.ValidationException("Repository not whitelisted: " + theMatchJSON.getString("gameMetaURL"));
+            }
+            theTimer.lap("whitelist");
+            return theMatchJSON;
+        } catch (JSONException e) {
+            throw new MatchValidation.ValidationException(e.toString());
+        } catch (MalformedURLException e) {
+            throw new MatchValidation.ValidationException(e.toString());
+        }
+    }
+
+    // Validates the update against the stored match, if there is one, and applies
+    // it to the match, without persisting it yet. The match JSON must come from
+    // parseMatchJSON, which has already checked its internal consistency.
+    public static Update prepareUpdate(JSONObject theMatchJSON, String theAuthToken, Metrics.StageTimer theTimer) throws IOException {
+        Update theUpdate = new Update(theMatchJSON);
+        try {
+            theUpdate.theMatch = MatchData.loadExistingMatchFromJSON(theMatchJSON);
+            theTimer.lap("load_existing");
+            if (!theUpdate.theMatch.getAuthToken().equals(theAuthToken)) {
+                throw new MatchValidation.ValidationException("Unauthorized auth token used to update match.");
+            }
+            MatchValidation.performSignatureChecks(theMatchJSON);
+            theTimer.lap("validate_signature");
+            MatchModel theNewModel = getMatchModel(theMatchJSON);
+            MatchModel theOldHeader = theUpdate.theMatch.getHeaderModel();
+            MatchValidation.performUpdateInvariantValidationChecks(theOldHeader, theNewModel);
+            theTimer.lap("validate_invariants");
+            try {
+                PrefixDigests theOldDigests = theUpdate.theMatch.getPrefixDigests();
+                if (theOldDigests == null || !MatchValidation.performUpdateForwardValidationChecks(theOldHeader, theOldDigests, theNewModel)) {
+                    MatchValidation.performUpdateForwardValidationChecks(theUpdate.theMatch.getMatchModel(), theNewModel);
+                    // The update matches the stored arrays even though the digests
+                    // didn't, so the stored digests are stale. Drop them, so that
+                    // they're recomputed from the arrays being stored rather than
+                    // extended, and later updates can use the digests again.
+                    theUpdate.theMatch.discardPrefixDigests();
+                }
+            } catch (MatchValidation.ValidationException mve) {
+                theTimer.lap("validate_forward");
+                Logger.getAnonymousLogger().severe("Got forward validation exception: " + mve + " for match " + theUpdate.theMatch.getMatchKey() + ". Discarding update and pretending that it was published successfully.");
+                theUpdate.wasDiscarded = true;
+                return theUpdate;
+            }
+            theTimer.lap("validate_forward");
+            theUpdate.nPreviousStates = theUpdate.theMatch.getStateCount();
+            theUpdate.theMatch.setMatchJSON(theMatchJSON);
+            theTimer.lap("apply");
+        } catch (JDOObjectNotFoundException e) {
+            theTimer.lap("load_existing");
+            MatchValidation.performCreationValidationChecks(theMatchJSON);
+            theTimer.lap("validate_creation");
+            MatchValidation.performSignatureChecks(theMatchJSON);
+            theTimer.lap("validate_signature");
+            theUpdate.theMatch = new MatchData(theMatchJSON, theAuthToken, false);
+            theTimer.lap("create");
+        }
+        return theUpdate;
+    }
+
+    private static MatchModel getMatchModel(JSONObject theMatchJSON) throws MatchValidation.ValidationException {
+        try {
+            return MatchModel.fromJSON(theMatchJSON);
+        } catch (JSONException e) {
+            throw new MatchValidation.ValidationException("Could not parse JSON: " + e.toString());
+        }
+    }
+
+    public static void persistUpdates(List<Update> theUpdates) {
+        List<MatchData> theMatches = new ArrayList<MatchData>();
+        for (Update theUpdate : theUpdates) {
+            if (!theUpdate.wasDiscarded) {
+                theMatches.add(theUpdate.theMatch);
+            }
+        }
+        MatchData.persistAll(theMatches);
+    }
+
+    // Sends the new states to anybody streaming the match from this instance, and
+    // replaces the cached responses for the match with the new version.
+    public static void publishUpdate(Update theUpdate) {
+        if (theUpdate.wasDiscarded) return;
+        MatchData theMatch = theUpdate.theMatch;
+        try {
+            MatchEventBuffer.publishIfWatched(theMatch.getMatchKey(), theMatch.getStateCount(), theMatch.getLastUpdated(),
+                    MatchData.buildMatchDeltaJSON(theMatch.getMatchKey(), theUpdate.theMatchJSON, theUpdate.theMatchJSON, 0, theUpdate.nPreviousStates, theMatch.getStateCount()));
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        // Only matches that are being read from this instance are worth serializing
+        // now. Others are serialized when they're next read, if they ever are.
+        boolean isBeingRead = MatchCache.isCached(theMatch.getMatchKey(), MatchCache.JSON_VIEW);
+        MatchCache.invalidate(theMatch.getMatchKey());
+        if (isBeingRead) {
+            MatchCache.put(theMatch.getMatchKey(), MatchCache.JSON_VIEW, GGP_SpectatorServlet.buildMatchResponse(theMatch, MatchCache.JSON_VIEW, theUpdate.theMatchJSON.toString()));
+        }
+    }
+
+    // Adds the updated matches to the recent match feeds, pings the PuSH hub,
+    // notifies downstream services, and grows the game dictionaries. Each feed is
+    // written and pinged once, however many of its matches were updated.
+    public static void announceUpdates(List<Update> theUpdates, Metrics.StageTimer theTimer) {
+        List<String> theUpdatedKeys = new ArrayList<String>();
+        List<String> theCompletedKeys = new ArrayList<String>();
+        try {
+            for (Update theUpdate : theUpdates) {
+                if (theUpdate.wasDiscarded) continue;
+                theUpdatedKeys.add(theUpdate.getMatchKey());
+                if (theUpdate.isCompleted()) {
+                    theCompletedKeys.add(theUpdate.getMatchKey());
+                }
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        if (theUpdatedKeys.isEmpty()) return;
+
+        AtomKeyFeed.addRecentMatchKeys("updatedFeed", theUpdatedKeys);
+        if (!theCompletedKeys.isEmpty()) {
+            AtomKeyFeed.addRecentMatchKeys("completedFeed", theCompletedKeys);
+        }
+        theTimer.lap("feeds");
+
+        HubPingQueue.queuePing("http://matches.ggp.org/matches/feeds/updatedFeed.atom");
+        for (String theMatchKey : theUpdatedKeys) {
+            HubPingQueue.queuePing("http://matches.ggp.org/matches/" + theMatchKey + "/feed.atom");
+        }
+        if (!theCompletedKeys.isEmpty()) {
+            HubPingQueue.queuePing("http://matches.ggp.org/matches/feeds/completedFeed.atom");
+        }
+        theTimer.lap("hub_ping");
+
+        // Also notify the database server directly, in case PuSH is misbehaving.
+        // TODO(schreib): Remove this manual ping eventually, to test relying entirely on PuSH.
+        for (String theMatchKey : theUpdatedKeys) {
+            IngestNotifier.notifyMatchUpdated("http://matches.ggp.org/matches/" + theMatchKey + "/");
+        }
+        theTimer.lap("notify");
+
+        // New versions of the game dictionaries are written here, rather than while
+        // the updates that need them are stored, to keep them off the ingest path.
+        if (PackedSegments.isEnabled) {
+            GameDictionary.growDictionaries();
+            theTimer.lap("dictionaries");
+        }
+    }
+
+    // The labels that ingest metrics are broken down by: the size of the match,
+    // whether it's signed, and the outcome of the update. The match may be null,
+    // if it couldn't be parsed.
+    public static String[] getMetricLabels(JSONObject theMatchJSON, String theOutcome) {
+        String theSize = "unknown";
+        String isSigned = "unknown";
+        if (theMatchJSON != null) {
+            JSONArray theStates = theMatchJSON.optJSONArray("states");
+            theSize = (theStates == null) ? "unknown" : Metrics.getSizeLabel(theStates.length());
+            isSigned = theMatchJSON.has("matchHostPK") ? "true" : "false";
+        }
+        return new String[] { "size", theSize, "signed", isSigned, "outcome", theOutcome };
+    }
+
+    // Ingests a batch of updates, given as a JSON array of {"DATA", "AUTH"} items,
+    // where DATA is the match, either as an object or as a string. Returns a JSON
+    // array with one result per item, holding either its "matchKey" or an "error".
+    // Since each update holds the entire match, when a batch has several updates
+    // for the same match, only the last of them is applied. The applied updates
+    // are added to theAppliedUpdates, to be announced once the response is sent.
+    // The stages that are shared by the whole batch are timed by theBatchTimer,
+    // while the stages of each update are recorded separately.
+    public static JSONArray ingestBatch(JSONArray theItems, List<Update> theAppliedUpdates, Metrics.StageTimer theBatchTimer) throws IOException {
+        if (theItems.length() > kMaxBatchSize) {
+            throw new MatchValidation.ValidationException("Batch has " + theItems.length() + " updates, but at most " + kMaxBatchSize + " are allowed.");
+        }
+
+        final JSONObject[] theMatchJSONs = new JSONObject[theItems.length()];
+        final String[] theAuthTokens = new String[theItems.length()];
+        final String[] theErrors = new String[theItems.length()];
+        final Metrics.StageTimer[] theTimers = new Metrics.StageTimer[theItems.length()];
+        int[] theSupersededBy = new int[theItems.length()];
+        Map<String, Integer> theLastUpdateForMatch = new HashMap<String, Integer>();
+        for (int i = 0; i < theItems.length(); i++) {
+            theSupersededBy[i] = -1;
+            theTimers[i] = new Metrics.StageTimer(Metrics.INGEST_STAGE);
+            try {
+                JSONObject theItem = theItems.getJSONObject(i);
+                Object theData = theItem.get("DATA");
+                theMatchJSONs[i] = parseMatchJSON(theData instanceof JSONObject ? theData.toString() : (String)theData, theTimers[i]);
+                theAuthTokens[i] = theItem.getString("AUTH");
+            } catch (JSONException e) {
+                theErrors[i] = e.toString();
+                continue;
+            } catch (ClassCastException e) {
+                theErrors[i] = "DATA must be a match, as either an object or a string.";
+                continue;
+            } catch (MatchValidation.ValidationException e) {
+                theErrors[i] = e.getMessage();
+                continue;
+            }
+            MatchIdentity theIdentity = MatchIdentity.fromJSON(theMatchJSONs[i]);
+            if (theIdentity != null) {
+                Integer nEarlier = theLastUpdateForMatch.put(theIdentity.getIdentityString(), i);
+                if (nEarlier != null) {
+                    theSupersededBy[nEarlier] = i;
+                }
+            }
+        }
+
+        // Validate the updates concurrently, since most of the time is spent
+        // waiting on the datastore.
+        List<Future<Update>> thePreparations = new ArrayList<Future<Update>>();
+        ExecutorService theValidators = Executors.newFixedThreadPool(kConcurrentValidations, ThreadManager.currentRequestThreadFactory());
+        try {
+            for (int i = 0; i < theItems.length(); i++) {
+                if (theErrors[i] != null || theSupersededBy[i] >= 0) {
+                    thePreparations.add(null);
+                    continue;
+                }
+                final int n = i;
+                thePreparations.add(theValidators.submit(new Callable<Update>() {
+                    public Update call() throws IOException {
+                        // Time spent waiting for a validator isn't part of any stage.
+                        theTimers[n].skip();
+                        return prepareUpdate(theMatchJSONs[n], theAuthTokens[n], theTimers[n]);
+                    }
+                }));
+            }
+        } finally {
+            theValidators.shutdown();
+        }
+
+        Update[] theResults = new Update[theItems.length()];
+        List<Update> theUpdates = new ArrayList<Update>();
+        for (int i = 0; i < theItems.length(); i++) {
+            if (thePreparations.get(i) == null) continue;
+            try {
+                theResults[i] = thePreparations.get(i).get();
+                theUpdates.add(theResults[i]);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof MatchValidation.ValidationException)) {
+                    throw new RuntimeException(e.getCause());
+                }
+                theErrors[i] = e.getCause().getMessage();
+                Logger.getAnonymousLogger().severe("Got validation error " + e.getCause() + " in batch when processing DATA: " + theMatchJSONs[i]);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        theBatchTimer.lap("validate");
+
+        persistUpdates(theUpdates);
+        theBatchTimer.lap("persist");
+        for (Update theUpdate : theUpdates) {
+            publishUpdate(theUpdate);
+        }
+        theBatchTimer.lap("publish");
+
+        for (int i = 0; i < theItems.length(); i++) {
+            String theOutcome = "ok";
+            if (theSupersededBy[i] >= 0) {
+                theOutcome = "superseded";
+            } else if (theErrors[i] != null) {
+                theOutcome = "invalid";
+            } else if (theResults[i].wasDiscarded()) {
+                theOutcome = "discarded";
+            }
+            theTimers[i].finish(getMetricLabels(theMatchJSONs[i], theOutcome));
+        }
+
+        JSONArray theResponse = new JSONArray();
+        try {
+            for (int i = 0; i < theItems.length(); i++) {
+                int nResult = i;
+                while (theSupersededBy[nResult] >= 0) {
+                    nResult = theSupersededBy[nResult];
+                }
+                JSONObject theResult = new JSONObject();
+                if (theErrors[nResult] != null) {
+                    theResult.put("error", theErrors[nResult]);
+                } else {
+                    theResult.put("matchKey", theResults[nResult].getMatchKey());
+                }
+                theResponse.put(theResult);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+
+        theAppliedUpdates.addAll(theUpdates);
+        return theResponse;
+    }
+
+    public static Update ingestSingle(JSONObject theMatchJSON, String theAuthToken, Metrics.StageTimer theTimer) throws IOException {
+        Update theUpdate = prepareUpdate(theMatchJSON, theAuthToken, theTimer);
+        persistUpdates(Collections.singletonList(theUpdate));
+        theTimer.lap("persist");
+        publishUpdate(theUpdate);
+        theTimer.lap("publish");
+        return theUpdate;
+    }
+}
@@ -0,0 +1,255 @@
+package ggp.spectator;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// An immutable, typed form of a match, for code that reads matches rather than
+// storing or serving their JSON. State times are kept as a long[], and states,
+// moves and errors as plain string tables rather than JSON arrays of objects.
+// Role names, player names, moves and errors are interned, since the same few
+// strings recur across every step of a match and across matches of the same
+// game. Signatures cover the exact JSON, so anything that needs to check or
+// produce a signature still has to use the JSON.
+//
+// A model can also be built from a match header (see MatchData), in which case
+// the segmented arrays are missing, just as they are from the header JSON.
+public class MatchModel {
+    private static final Interner<String> theInterner = Interners.newWeakInterner();
+
+    private final Set<String> theFields;
+
+    private final String theMatchId;
+    private final long nStartTime;
+    private final String theRandomToken;
+    private final String theMatchHostPK;
+    private final long nStartClock;
+    private final long nPlayClock;
+    private final String theGameMetaURL;
+    private final String theGameName;
+    private final String theGameRulesheetHash;
+    private final boolean isCompleted;
+    private final boolean isAborted;
+
+    // Each of these is null when the match doesn't have that array.
+    private final String[] theRoleNames;
+    private final String[] thePlayerNames;
+    private final boolean[] isPlayerHuman;
+    private final int[] theGoalValues;
+    private final String[] theStates;
+    private final long[] theStateTimes;
+    private final String[][] theMoves;
+    private final String[][] theErrors;
+
+    private MatchModel(JSONObject theJSON) throws JSONException {
+        String[] theNames = JSONObject.getNames(theJSON);
+        theFields = (theNames == null) ? Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(theNames)));
+
+        theMatchId = theJSON.has("matchId") ? theJSON.getString("matchId") : null;
+        nStartTime = theJSON.has("startTime") ? theJSON.getLong("startTime") : 0;
+        theRandomToken = theJSON.has("randomToken") ? theJSON.getString("randomToken") : null;
+        theMatchHostPK = theJSON.has("matchHostPK") ? intern(theJSON.getString("matchHostPK")) : null;
+        nStartClock = theJSON.has("startClock") ? theJSON.getLong("startClock") : 0;
+        nPlayClock = theJSON.has("playClock") ? theJSON.getLong("playClock") : 0;
+        theGameMetaURL = theJSON.has("gameMetaURL") ? intern(theJSON.getString("gameMetaURL")) : null;
+        theGameName = theJSON.has("gameName") ? intern(theJSON.getString("gameName")) : null;
+        theGameRulesheetHash = theJSON.has("gameRulesheetHash") ? intern(theJSON.getString("gameRulesheetHash")) : null;
+        isCompleted = theJSON.has("isCompleted") && theJSON.getBoolean("isCompleted");
+        isAborted = theJSON.has("isAborted") && theJSON.getBoolean("isAborted");
+
+        theRoleNames = getStrings(theJSON.optJSONArray("gameRoleNames"), true);
+        thePlayerNames = getStrings(theJSON.optJSONArray("playerNamesFromHost"), true);
+        theStates = getStrings(theJSON.optJSONArray("states"), false);
+        theMoves = getStringRows(theJSON.optJSONArray("moves"));
+        theErrors = getStringRows(theJSON.optJSONArray("errors"));
+
+        JSONArray theHumans = theJSON.optJSONArray("isPlayerHuman");
+        if (theHumans != null) {
+            isPlayerHuman = new boolean[theHumans.length()];
+            for (int i = 0; i < isPlayerHuman.length; i++) {
+                isPlayerHuman[i] = theHumans.getBoolean(i);
+            }
+        } else {
+            isPlayerHuman = null;
+        }
+
+        JSONArray theGoals = theJSON.optJSONArray("goalValues");
+        if (theGoals != null) {
+            theGoalValues = new int[theGoals.length()];
+            for (int i = 0; i < theGoalValues.length; i++) {
+                theGoalValues[i] = theGoals.getInt(i);
+            }
+        } else {
+            theGoalValues = null;
+        }
+
+        JSONArray theTimes = theJSON.optJSONArray("stateTimes");
+        if (theTimes != null) {
+            theStateTimes = new long[theTimes.length()];
+            for (int i = 0; i < theStateTimes.length; i++) {
+                theStateTimes[i] = theTimes.getLong(i);
+            }
+        } else {
+            theStateTimes = null;
+        }
+    }
+
+    public static MatchModel fromJSON(JSONObject theJSON) throws JSONException {
+        return new MatchModel(theJSON);
+    }
+
+    private static String intern(String theString) {
+        return theInterner.intern(theString);
+    }
+
+    private static String[] getStrings(JSONArray theArray, boolean shouldIntern) throws JSONException {
+        if (theArray == null) return null;
+        String[] theStrings = new String[theArray.length()];
+        for (int i = 0; i < theStrings.length; i++) {
+            String theString = theArray.getString(i);
+            theStrings[i] = shouldIntern ? intern(theString) : theString;
+        }
+        return theStrings;
+    }
+
+    private static String[][] getStringRows(JSONArray theArray) throws JSONException {
+        if (theArray == null) return null;
+        String[][] theRows = new String[theArray.length()][];
+        for (int i = 0; i < theRows.length; i++) {
+            theRows[i] = getStrings(theArray.getJSONArray(i), true);
+        }
+        return theRows;
+    }
+
+    // Whether the match JSON had the given field.
+    public boolean has(String theField) {
+        return theFields.contains(theField);
+    }
+
+    public String getMatchId() {
+        return theMatchId;
+    }
+
+    public long getStartTime() {
+        return nStartTime;
+    }
+
+    public String getRandomToken() {
+        return theRandomToken;
+    }
+
+    // Null if the match isn't signed.
+    public String getMatchHostPK() {
+        return theMatchHostPK;
+    }
+
+    public long getStartClock() {
+        return nStartClock;
+    }
+
+    public long getPlayClock() {
+        return nPlayClock;
+    }
+
+    public String getGameMetaURL() {
+        return theGameMetaURL;
+    }
+
+    public String getGameName() {
+        return theGameName;
+    }
+
+    public String getGameRulesheetHash() {
+        return theGameRulesheetHash;
+    }
+
+    public boolean isCompleted() {
+        return isCompleted;
+    }
+
+    public boolean isAborted() {
+        return isAborted;
+    }
+
+    // The list accessors below return read-only views, or null when the match
+    // doesn't have the array.
+    public List<String> getRoleNames() {
+        return asList(theRoleNames);
+    }
+
+    public List<String> getPlayerNames() {
+        return asList(thePlayerNames);
+    }
+
+    public List<Boolean> getPlayerHumanity() {
+        return (isPlayerHuman == null) ? null : Collections.unmodifiableList(Booleans.asList(isPlayerHuman));
+    }
+
+    public List<Integer> getGoalValues() {
+        return (theGoalValues == null) ? null : Collections.unmodifiableList(Ints.asList(theGoalValues));
+    }
+
+    public List<String> getStates() {
+        return asList(theStates);
+    }
+
+    public List<Long> getStateTimes() {
+        return (theStateTimes == null) ? null : Collections.unmodifiableList(Longs.asList(theStateTimes));
+    }
+
+    public List<List<String>> getMoves() {
+        return asList(theMoves);
+    }
+
+    public List<List<String>> getErrors() {
+        return asList(theErrors);
+    }
+
+    public int getStateCount() {
+        return (theStates == null) ? 0 : theStates.length;
+    }
+
+    public String getState(int nState) {
+        return theStates[nState];
+    }
+
+    public long getStateTime(int nState) {
+        return theStateTimes[nState];
+    }
+
+    public int getStateTimeCount() {
+        return (theStateTimes == null) ? 0 : theStateTimes.length;
+    }
+
+    private static List<String> asList(String[] theStrings) {
+        return (theStrings == null) ? null : Collections.unmodifiableList(Arrays.asList(theStrings));
+    }
+
+    private static List<List<String>> asList(final String[][] theRows) {
+        if (theRows == null) return null;
+        return new AbstractList<List<String>>() {
+            @Override
+            public List<String> get(int i) {
+                return asList(theRows[i]);
+            }
+
+            @Override
+            public int size() {
+                return theRows.length;
+            }
+        };
+    }
+}
@@ -0,0 +1,51 @@
+package ggp.spectator;
+
+import javax.jdo.annotations.*;
+
+import com.google.appengine.api.datastore.Text;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// A fixed-size slice of the append-only arrays of a match (states, moves, and
+// so on). Each slice covers the same range of indices in every array, so that
+// the match can be reassembled by concatenating the slices in order.
+//
+// Segments are detached before they're returned from the datastore, so the JSON
+// is fetched along with the key, since it's read after the manager is closed.
+@PersistenceCapable(detachable="true")
+public class MatchSegment {
+    @PrimaryKey @Persistent private String theSegmentKey;
+    @Persistent(defaultFetchGroup="true") private Text theSegmentJSON;
+
+    public MatchSegment(String theMatchKey, int nSegment, JSONObject theSegmentJSON) {
+        this.theSegmentKey = getSegmentKey(theMatchKey, nSegment);
+        this.theSegmentJSON = new Text(theSegmentJSON.toString());
+    }
+
+    // Used when loading segments from an embedded store.
+    MatchSegment(String theSegmentKey, String theSegmentJSON) {
+        this.theSegmentKey = theSegmentKey;
+        this.theSegmentJSON = new Text(theSegmentJSON);
+    }
+
+    String getKey() {
+        return theSegmentKey;
+    }
+
+    String getSegmentJSONString() {
+        return theSegmentJSON.getValue();
+    }
+
+    public JSONObject getSegmentJSON() {
+        try {
+            return new JSONObject(theSegmentJSON.getValue());
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public static String getSegmentKey(String theMatchKey, int nSegment) {
+        return theMatchKey + "." + nSegment;
+    }
+}
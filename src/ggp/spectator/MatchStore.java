@@ -0,0 +1,32 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.util.List;
+
+// Where matches are kept: each match is stored as a header (the MatchData) and
+// a series of MatchSegments. See Stores for how the implementation is chosen.
+public interface MatchStore {
+    // Returns null if there's no such match.
+    MatchData loadMatch(String theMatchKey) throws IOException;
+
+    // Returns the segments with the given keys, in the same order. Throws
+    // JDOObjectNotFoundException if any of them are missing.
+    List<MatchSegment> loadSegments(List<String> theSegmentKeys);
+
+    // Writes the pending segments of all of the matches, and then their headers.
+    void saveMatches(List<MatchData> theMatches);
+
+    void deleteMatch(String theMatchKey, List<String> theSegmentKeys);
+
+    // Returns null if there's no such dictionary. See GameDictionary.
+    GameDictionary loadDictionary(String theDictionaryKey);
+
+    // Returns the newest version of the game's dictionary, or null if the game
+    // doesn't have one yet.
+    GameDictionary loadLatestDictionary(String theGameMetaURL);
+
+    // Writes the dictionary and makes it the game's newest version, as long as the
+    // newest version is still thePreviousKey (null if the game had none). Returns
+    // false without changing the newest version otherwise.
+    boolean saveDictionary(GameDictionary theDictionary, String thePreviousKey);
+}
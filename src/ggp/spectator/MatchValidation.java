@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.ggp.base.util.crypto.SignableJSON;
@@ -45,37 +46,45 @@ public class MatchValidation {
     }
 
     // These fields must remain unchanged when comparing any two versions of the same match.
-    public static void performUpdateInvariantValidationChecks(JSONObject oldMatchJSON, JSONObject newMatchJSON) throws ValidationException {
-        try {
-            verifyEquals(oldMatchJSON, newMatchJSON, "matchId");
-            verifyEquals(oldMatchJSON, newMatchJSON, "startTime");
-            verifyEquals(oldMatchJSON, newMatchJSON, "randomToken");
-            verifyEquals(oldMatchJSON, newMatchJSON, "matchHostPK");
-            verifyEquals(oldMatchJSON, newMatchJSON, "startClock");
-            verifyEquals(oldMatchJSON, newMatchJSON, "playClock");
-            verifyEquals(oldMatchJSON, newMatchJSON, "gameMetaURL");
-            verifyEquals(oldMatchJSON, newMatchJSON, "gameName");
-            verifyEquals(oldMatchJSON, newMatchJSON, "gameRulesheetHash");
-        } catch(JSONException e) {
-            throw new ValidationException("Could not parse JSON: " + e.toString());
-        }
+    public static void performUpdateInvariantValidationChecks(MatchModel oldMatch, MatchModel newMatch) throws ValidationException {
+        verifyEquals(oldMatch, newMatch, "matchId", oldMatch.getMatchId(), newMatch.getMatchId());
+        verifyEquals(oldMatch, newMatch, "startTime", oldMatch.getStartTime(), newMatch.getStartTime());
+        verifyEquals(oldMatch, newMatch, "randomToken", oldMatch.getRandomToken(), newMatch.getRandomToken());
+        verifyEquals(oldMatch, newMatch, "matchHostPK", oldMatch.getMatchHostPK(), newMatch.getMatchHostPK());
+        verifyEquals(oldMatch, newMatch, "startClock", oldMatch.getStartClock(), newMatch.getStartClock());
+        verifyEquals(oldMatch, newMatch, "playClock", oldMatch.getPlayClock(), newMatch.getPlayClock());
+        verifyEquals(oldMatch, newMatch, "gameMetaURL", oldMatch.getGameMetaURL(), newMatch.getGameMetaURL());
+        verifyEquals(oldMatch, newMatch, "gameName", oldMatch.getGameName(), newMatch.getGameName());
+        verifyEquals(oldMatch, newMatch, "gameRulesheetHash", oldMatch.getGameRulesheetHash(), newMatch.getGameRulesheetHash());
     }
 
     // These fields only go in one direction: they're append-only, essentially.
-    public static void performUpdateForwardValidationChecks(JSONObject oldMatchJSON, JSONObject newMatchJSON) throws ValidationException {
-        try {
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "gameRoleNames", false, false, false);
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "isPlayerHuman", false, false, false);
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "playerNamesFromHost", false, false, true);
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "moves", true, false, false);
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "errors", true, false, false);
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "states", true, true, false);
-            verifyOptionalArraysEqual(oldMatchJSON, newMatchJSON, "stateTimes", true, false, false);
-            if (oldMatchJSON.has("isCompleted") && newMatchJSON.has("isCompleted") && oldMatchJSON.getBoolean("isCompleted") && !newMatchJSON.getBoolean("isCompleted")) {
-                throw new ValidationException("Cannot transition from completed to not-completed.");
-            }
-        } catch(JSONException e) {
-            throw new ValidationException("Could not parse JSON: " + e.toString());
+    public static void performUpdateForwardValidationChecks(MatchModel oldMatch, MatchModel newMatch) throws ValidationException {
+        performUpdateForwardHeaderValidationChecks(oldMatch, newMatch);
+        verifyOptionalArraysEqual("moves", oldMatch.getMoves(), newMatch.getMoves(), true, false, false);
+        verifyOptionalArraysEqual("errors", oldMatch.getErrors(), newMatch.getErrors(), true, false, false);
+        verifyOptionalArraysEqual("states", oldMatch.getStates(), newMatch.getStates(), true, true, false);
+        verifyOptionalArraysEqual("stateTimes", oldMatch.getStateTimes(), newMatch.getStateTimes(), true, false, false);
+    }
+
+    // Same as the above, except that the long append-only arrays are checked against the
+    // digests of the stored arrays, so only the stored header needs to be loaded. Returns
+    // false if the digests disagree, in which case the full checks need to be run, since
+    // the disagreement may be harmless (e.g. facts in a state being reordered).
+    public static boolean performUpdateForwardValidationChecks(MatchModel oldHeader, PrefixDigests oldDigests, MatchModel newMatch) throws ValidationException {
+        performUpdateForwardHeaderValidationChecks(oldHeader, newMatch);
+        return verifyPrefixDigestMatches(oldDigests, "moves", newMatch.getMoves()) &&
+               verifyPrefixDigestMatches(oldDigests, "errors", newMatch.getErrors()) &&
+               verifyPrefixDigestMatches(oldDigests, "states", newMatch.getStates()) &&
+               verifyPrefixDigestMatches(oldDigests, "stateTimes", newMatch.getStateTimes());
+    }
+
+    private static void performUpdateForwardHeaderValidationChecks(MatchModel oldMatch, MatchModel newMatch) throws ValidationException {
+        verifyOptionalArraysEqual("gameRoleNames", oldMatch.getRoleNames(), newMatch.getRoleNames(), false, false, false);
+        verifyOptionalArraysEqual("isPlayerHuman", oldMatch.getPlayerHumanity(), newMatch.getPlayerHumanity(), false, false, false);
+        verifyOptionalArraysEqual("playerNamesFromHost", oldMatch.getPlayerNames(), newMatch.getPlayerNames(), false, false, true);
+        if (oldMatch.has("isCompleted") && newMatch.has("isCompleted") && oldMatch.isCompleted() && !newMatch.isCompleted()) {
+            throw new ValidationException("Cannot transition from completed to not-completed.");
         }
     }
     
@@ -86,6 +95,10 @@ public class MatchValidation {
     		"startClock", "matchId", "gameMetaURL", "previewClock", "matchHostPK", "isAborted",
     		"isCompleted" }));    
 
+    static boolean isValidKey(String theKey) {
+        return validKeys.contains(theKey) || theKey.startsWith("x-");
+    }
+
     public static void performInternalConsistencyChecks(JSONObject theMatchJSON) throws ValidationException {
         try {
         	verifyNoNulls(theMatchJSON, "theMatchJSON");
@@ -182,11 +195,21 @@ public class MatchValidation {
                 }
             }
 
+            performSignatureChecks(theMatchJSON);
+        } catch(JSONException e) {
+            throw new ValidationException("Could not parse JSON: " + e.toString());
+        }
+    }
+
+    // The part of the internal consistency checks that StreamingMatchValidator
+    // can't do, since the signature covers the match as a whole.
+    public static void performSignatureChecks(JSONObject theMatchJSON) throws ValidationException {
+        try {
             if (theMatchJSON.has("matchHostPK")) {
                 if (!SignableJSON.isSignedJSON(theMatchJSON)) {
                     throw new ValidationException("Match has a host-PK but is not signed!");
                 }
-                if (!SignableJSON.verifySignedJSON(theMatchJSON)) {
+                if (!VerifiedSignatures.verifySignedJSON(theMatchJSON)) {
                     throw new ValidationException("Match has a host-PK and is signed, but signature does not validate!");
                 }
             } else {
@@ -252,51 +275,61 @@ public class MatchValidation {
         }
     }
 
-    public static void verifyEquals(JSONObject old, JSONObject newer, String k) throws JSONException, ValidationException {
+    public static void verifyEquals(MatchModel old, MatchModel newer, String k, Object oldValue, Object newValue) throws ValidationException {
         if (!old.has(k) && !newer.has(k)) {
             return;
         } else if (!old.has(k)) {
-            throw new ValidationException("Incompability for " + k + ": old has null, new has [" + newer.get(k) + "].");
-        } else if (!old.get(k).equals(newer.get(k))) {
-            throw new ValidationException("Incompability for " + k + ": old has [" + old.get(k) + "], new has [" + newer.get(k) + "].");
+            throw new ValidationException("Incompability for " + k + ": old has null, new has [" + newValue + "].");
+        } else if (!newer.has(k)) {
+            throw new ValidationException("Incompability for " + k + ": old has [" + oldValue + "], new has null.");
+        } else if (!oldValue.equals(newValue)) {
+            throw new ValidationException("Incompability for " + k + ": old has [" + oldValue + "], new has [" + newValue + "].");
         }
     }
 
-    public static void verifyOptionalArraysEqual(JSONObject old, JSONObject newer, String arr, boolean arrayCanExpand, boolean compareElementsAsSymbolSets, boolean allowEmptyToNonempty) throws JSONException, ValidationException {
-        if (!old.has(arr) && !newer.has(arr)) return;
-        if (old.has(arr) && !newer.has(arr)) throw new ValidationException("Array " + arr + " missing from new, present in old.");
-        if (!old.has(arr) && newer.has(arr)) return; // okay for the array to appear mid-way through the game
-        JSONArray oldArr = old.getJSONArray(arr);
-        JSONArray newArr = newer.getJSONArray(arr);
-        if (!arrayCanExpand && oldArr.length() != newArr.length()) throw new ValidationException("Array " + arr + " has length " + newArr.length() + " in new, length " + oldArr.length() + " in old.");
-        if (newArr.length() < oldArr.length()) throw new ValidationException("Array " + arr + " shrank from length " + oldArr.length() + " to length " + newArr.length() + ".");
-        for (int i = 0; i < oldArr.length(); i++) {
+    // The arrays are null when they're missing from the match. Interior arrays, like
+    // the moves made on each step, are compared as lists.
+    public static void verifyOptionalArraysEqual(String arr, List<?> oldArr, List<?> newArr, boolean arrayCanExpand, boolean compareElementsAsSymbolSets, boolean allowEmptyToNonempty) throws ValidationException {
+        if (oldArr == null && newArr == null) return;
+        if (oldArr != null && newArr == null) throw new ValidationException("Array " + arr + " missing from new, present in old.");
+        if (oldArr == null && newArr != null) return; // okay for the array to appear mid-way through the game
+        if (!arrayCanExpand && oldArr.size() != newArr.size()) throw new ValidationException("Array " + arr + " has length " + newArr.size() + " in new, length " + oldArr.size() + " in old.");
+        if (newArr.size() < oldArr.size()) throw new ValidationException("Array " + arr + " shrank from length " + oldArr.size() + " to length " + newArr.size() + ".");
+        for (int i = 0; i < oldArr.size(); i++) {
+            Object oldElem = oldArr.get(i);
+            Object newElem = newArr.get(i);
             if (compareElementsAsSymbolSets) {
-                Set<String> oldArrElemSet = verifyOptionalArraysEqual_GenerateSymbolSet(oldArr.get(i).toString());
-                Set<String> newArrElemSet = verifyOptionalArraysEqual_GenerateSymbolSet(newArr.get(i).toString());
-                if (oldArrElemSet == null) {
+                // Most states are resent verbatim, and need no parsing to compare.
+                if (oldElem.equals(newElem)) continue;
+                String oldArrElemFingerprint = StateFingerprints.getFingerprint(oldElem.toString());
+                String newArrElemFingerprint = StateFingerprints.getFingerprint(newElem.toString());
+                if (oldArrElemFingerprint == null) {
                     throw new ValidationException("Cannot parse symbol set in old array " + arr + " at element " + i + ".");
-                } else if (newArrElemSet == null) {
+                } else if (newArrElemFingerprint == null) {
                     throw new ValidationException("Cannot parse symbol set in new array " + arr + " at element " + i + ".");
-                } else if (!oldArrElemSet.equals(newArrElemSet)) {
-                    throw new ValidationException("Array " + arr + " has set-wise disagreement between new [" + newArr.get(i) + "] and old [" + oldArr.get(i) + "] at element " + i + ".");
+                } else if (!oldArrElemFingerprint.equals(newArrElemFingerprint)) {
+                    throw new ValidationException("Array " + arr + " has set-wise disagreement between new [" + newElem + "] and old [" + oldElem + "] at element " + i + ".");
                 }
-            } else {
-                if (oldArr.get(i) instanceof JSONArray) {
-                    if (!(newArr.get(i) instanceof JSONArray))
-                        throw new ValidationException("Array " + arr + " used to have interior arrays but no longer does, in position " + i + ".");
-                    if(!oldArr.getJSONArray(i).toString().equals(newArr.getJSONArray(i).toString()))
-                        throw new ValidationException("Array " + arr + " has internal disagreement between new [" + newArr.get(i) + "] and old [" + oldArr.get(i) + "] at element " + i + ".");
-                } else if (!oldArr.get(i).equals(newArr.get(i))) {
-                	if (allowEmptyToNonempty && oldArr.get(i).toString().isEmpty() && !newArr.get(i).toString().isEmpty()) {
-                		// Value changed, but the old value was empty and the new value isn't, and we're allowing that
-                	} else {
-                		throw new ValidationException("Array " + arr + " has disagreement between new [" + newArr.get(i) + "] and old [" + oldArr.get(i) + "] at element " + i + ".");
-                	}
+            } else if (!oldElem.equals(newElem)) {
+                if (oldElem instanceof List) {
+                    throw new ValidationException("Array " + arr + " has internal disagreement between new [" + newElem + "] and old [" + oldElem + "] at element " + i + ".");
+                } else if (allowEmptyToNonempty && oldElem.toString().isEmpty() && !newElem.toString().isEmpty()) {
+                    // Value changed, but the old value was empty and the new value isn't, and we're allowing that
+                } else {
+                    throw new ValidationException("Array " + arr + " has disagreement between new [" + newElem + "] and old [" + oldElem + "] at element " + i + ".");
                 }
             }
         }
     }
+
+    public static boolean verifyPrefixDigestMatches(PrefixDigests oldDigests, String arr, List<?> newArr) throws ValidationException {
+        if (!oldDigests.has(arr)) return true; // okay for the array to appear mid-way through the game
+        if (newArr == null) throw new ValidationException("Array " + arr + " missing from new, present in old.");
+        int oldLength = oldDigests.getLength(arr);
+        if (newArr.size() < oldLength) throw new ValidationException("Array " + arr + " shrank from length " + oldLength + " to length " + newArr.size() + ".");
+        return PrefixDigests.computeDigest(newArr, oldLength).equals(oldDigests.getDigest(arr));
+    }
+
     public static Set<String> verifyOptionalArraysEqual_GenerateSymbolSet(String x) {
         try {
             Set<String> y = new HashSet<String>();
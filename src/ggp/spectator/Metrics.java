@@ -0,0 +1,176 @@
+package ggp.spectator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histograms for the ingest and read paths, kept in memory per instance
+// and exposed in the Prometheus text format at /admin/metrics. Each histogram
+// is a fixed set of cumulative buckets, so recording a latency is a handful of
+// comparisons and atomic increments, with no locking. A histogram is identified
+// by its metric name and label values; keep the label values to small, fixed
+// sets, since every combination gets its own histogram.
+public class Metrics {
+    public static final String INGEST_STAGE = "spectator_ingest_stage_seconds";
+    public static final String INGEST_REQUEST = "spectator_ingest_request_seconds";
+    public static final String INGEST_BATCH_STAGE = "spectator_ingest_batch_stage_seconds";
+    public static final String INGEST_BATCH_REQUEST = "spectator_ingest_batch_request_seconds";
+    public static final String READ_STAGE = "spectator_read_stage_seconds";
+    public static final String READ_REQUEST = "spectator_read_request_seconds";
+
+    private static final Map<String, String> kHelp = new TreeMap<String, String>();
+    static {
+        kHelp.put(INGEST_STAGE, "Time spent in each stage of ingesting a match update.");
+        kHelp.put(INGEST_REQUEST, "Time spent handling a match update, from parsing to notifying downstream services.");
+        kHelp.put(INGEST_BATCH_STAGE, "Time spent in the stages of a batch update that are shared by all of its matches.");
+        kHelp.put(INGEST_BATCH_REQUEST, "Time spent handling a batch update.");
+        kHelp.put(READ_STAGE, "Time spent in each stage of serving a match or feed.");
+        kHelp.put(READ_REQUEST, "Time spent serving a GET request.");
+    }
+
+    // Upper bounds of the buckets, in seconds. These reach lower than the usual
+    // Prometheus defaults, since many of the stages are in-memory work.
+    private static final double[] kBucketBounds = new double[] {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+    private static final long[] kBucketBoundNanos = new long[kBucketBounds.length];
+    static {
+        for (int i = 0; i < kBucketBounds.length; i++) {
+            kBucketBoundNanos[i] = (long)(kBucketBounds[i] * 1e9);
+        }
+    }
+
+    private static class Histogram {
+        final String theName;
+        final String theLabels;
+        // The last bucket counts everything above the largest bound.
+        final AtomicLongArray theCounts = new AtomicLongArray(kBucketBounds.length + 1);
+        final AtomicLong nSumNanos = new AtomicLong();
+
+        Histogram(String theName, String theLabels) {
+            this.theName = theName;
+            this.theLabels = theLabels;
+        }
+
+        void observe(long nNanos) {
+            int nBucket = 0;
+            while (nBucket < kBucketBoundNanos.length && nNanos > kBucketBoundNanos[nBucket]) {
+                nBucket++;
+            }
+            theCounts.incrementAndGet(nBucket);
+            nSumNanos.addAndGet(nNanos);
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Histogram> theHistograms = new ConcurrentHashMap<String, Histogram>();
+
+    // Records a latency in the histogram with the given name and labels, which
+    // are given as alternating label names and values.
+    public static void observe(String theName, long nNanos, String... theLabels) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < theLabels.length; i += 2) {
+            if (i > 0) b.append(',');
+            b.append(theLabels[i]).append("=\"").append(escapeLabelValue(theLabels[i+1])).append('"');
+        }
+        String theLabelString = b.toString();
+        String theKey = theName + "{" + theLabelString + "}";
+        Histogram theHistogram = theHistograms.get(theKey);
+        if (theHistogram == null) {
+            theHistogram = new Histogram(theName, theLabelString);
+            Histogram theExisting = theHistograms.putIfAbsent(theKey, theHistogram);
+            if (theExisting != null) theHistogram = theExisting;
+        }
+        theHistogram.observe(nNanos);
+    }
+
+    private static String escapeLabelValue(String theValue) {
+        return theValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Matches are grouped by their number of states, so the label only takes a
+    // few values.
+    public static String getSizeLabel(int nStates) {
+        if (nStates <= 16) return "le16";
+        if (nStates <= 64) return "le64";
+        if (nStates <= 256) return "le256";
+        return "gt256";
+    }
+
+    // Times a request as a series of consecutive stages. Each call to lap ends
+    // the current stage, and the stages are only recorded when the request is
+    // finished, so that they can all be labelled with its outcome.
+    public static class StageTimer {
+        private final String theStageMetric;
+        private final long nStartTime;
+        private long nLapTime;
+        private final List<String> theStages = new ArrayList<String>();
+        private final List<Long> theDurations = new ArrayList<Long>();
+
+        public StageTimer(String theStageMetric) {
+            this.theStageMetric = theStageMetric;
+            this.nStartTime = System.nanoTime();
+            this.nLapTime = nStartTime;
+        }
+
+        public void lap(String theStage) {
+            long nNow = System.nanoTime();
+            theStages.add(theStage);
+            theDurations.add(nNow - nLapTime);
+            nLapTime = nNow;
+        }
+
+        // Excludes the time since the last lap from every stage, for example
+        // while waiting on other work.
+        public void skip() {
+            nLapTime = System.nanoTime();
+        }
+
+        public long getElapsedNanos() {
+            return System.nanoTime() - nStartTime;
+        }
+
+        // Records each stage, with the stage as an extra "stage" label.
+        public void finish(String... theLabels) {
+            String[] theStageLabels = new String[theLabels.length + 2];
+            System.arraycopy(theLabels, 0, theStageLabels, 0, theLabels.length);
+            theStageLabels[theLabels.length] = "stage";
+            for (int i = 0; i < theStages.size(); i++) {
+                theStageLabels[theLabels.length + 1] = theStages.get(i);
+                observe(theStageMetric, theDurations.get(i), theStageLabels);
+            }
+        }
+    }
+
+    // Writes every histogram in the Prometheus text exposition format.
+    public static void writePrometheus(Writer w) throws IOException {
+        Map<String, Histogram> theSorted = new TreeMap<String, Histogram>(theHistograms);
+        String theLastName = null;
+        for (Histogram theHistogram : theSorted.values()) {
+            String theName = theHistogram.theName;
+            if (!theName.equals(theLastName)) {
+                if (kHelp.containsKey(theName)) {
+                    w.write("# HELP " + theName + " " + kHelp.get(theName) + "\n");
+                }
+                w.write("# TYPE " + theName + " histogram\n");
+                theLastName = theName;
+            }
+            String theLabelPrefix = theHistogram.theLabels.isEmpty() ? "" : theHistogram.theLabels + ",";
+            long nCumulative = 0;
+            for (int i = 0; i <= kBucketBounds.length; i++) {
+                nCumulative += theHistogram.theCounts.get(i);
+                String theBound = (i < kBucketBounds.length) ? BigDecimal.valueOf(kBucketBounds[i]).stripTrailingZeros().toPlainString() : "+Inf";
+                w.write(theName + "_bucket{" + theLabelPrefix + "le=\"" + theBound + "\"} " + nCumulative + "\n");
+            }
+            String theLabelSet = theHistogram.theLabels.isEmpty() ? "" : "{" + theHistogram.theLabels + "}";
+            w.write(theName + "_sum" + theLabelSet + " " + (theHistogram.nSumNanos.get() / 1e9) + "\n");
+            w.write(theName + "_count" + theLabelSet + " " + nCumulative + "\n");
+        }
+        w.flush();
+    }
+}
@@ -0,0 +1,13 @@
+package ggp.spectator;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Holds the outbound notifications that tell downstream services (like the
+// database server) that a match has been updated, until they're sent. The
+// notifications are sent outside of the request that accepted the update,
+// so a slow downstream service can't hold up match hosts.
+public interface NotificationQueue {
+    void enqueue(String theTarget, String theMatchURL);
+    JSONObject getStatsJSON() throws JSONException;
+}
@@ -0,0 +1,313 @@
+package ggp.spectator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.io.BaseEncoding;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Packs the states and moves of a match segment into a compact binary form,
+// in which GDL symbols are varint indices into the game's dictionary (see
+// GameDictionary). Packed segments hold a "packed" field, with the packed
+// arrays in base 64, and a "dictionary" field, with the key of the dictionary
+// version they refer to. They're unpacked back into the usual segment JSON as
+// they're loaded, so nothing past MatchData sees the packed form.
+//
+// Signatures cover the exact strings, so packing is lossless. A string is
+// packed as its tokens (parentheses and symbols) only when joining the tokens
+// with single spaces, plus an optional leading and trailing space, gives back
+// exactly that string, which is how match hosts write states and moves.
+// Anything else is kept as raw text.
+public class PackedSegments {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final boolean isEnabled = Boolean.parseBoolean(System.getProperty("ggp.spectator.symbolDictionaries", "true"));
+    private static final String[] kPackedArrays = new String[] { "states", "moves" };
+
+    // Tags for the values in a packed array.
+    private static final int kTokens = 0;
+    private static final int kRawString = 1;
+    private static final int kArray = 2;
+    private static final int kNumber = 3;
+
+    // Token codes. Symbols from the dictionary come after these.
+    private static final int kOpen = 0;
+    private static final int kClose = 1;
+    private static final int kLiteral = 2;
+    private static final int kFirstSymbol = 3;
+
+    // Flags for the spacing around the tokens of a string.
+    static final int kLeadingSpace = 1;
+    static final int kTrailingSpace = 2;
+
+    // Replaces the states and moves of the segment with their packed form. Leaves
+    // the segment as it is if it holds anything that can't be packed.
+    public static void pack(JSONObject theSegment, String theGameMetaURL) throws JSONException {
+        List<String> theArrays = new ArrayList<String>();
+        Set<String> theSymbols = new HashSet<String>();
+        for (String theArray : kPackedArrays) {
+            if (!theSegment.has(theArray)) continue;
+            if (!collectSymbols(theSegment.get(theArray), theSymbols)) return;
+            theArrays.add(theArray);
+        }
+        if (theArrays.isEmpty()) return;
+
+        // Symbols missing from the dictionary are written out in full, and are added
+        // to a later version of it. Segments of games without a dictionary yet are
+        // left unpacked.
+        GameDictionary theDictionary = GameDictionary.getForEncoding(theGameMetaURL);
+        Set<String> theMissingSymbols = new TreeSet<String>();
+        for (String theSymbol : theSymbols) {
+            if (theDictionary == null || theDictionary.getIndex(theSymbol) < 0) {
+                theMissingSymbols.add(theSymbol);
+            }
+        }
+        GameDictionary.addMissingSymbols(theGameMetaURL, theDictionary, theMissingSymbols);
+        if (theDictionary == null) return;
+
+        ByteArrayOutputStream theBytes = new ByteArrayOutputStream();
+        for (String theArray : theArrays) {
+            writeRawString(theBytes, theArray);
+            writeValue(theBytes, theSegment.get(theArray), theDictionary);
+            theSegment.remove(theArray);
+        }
+        theSegment.put("packed", BaseEncoding.base64().encode(theBytes.toByteArray()));
+        theSegment.put("dictionary", theDictionary.getKey());
+    }
+
+    // Restores the states and moves of a packed segment. Segments which weren't
+    // packed are left as they are.
+    public static void unpack(JSONObject theSegment) throws JSONException {
+        if (!theSegment.has("packed")) return;
+        GameDictionary theDictionary = GameDictionary.load(theSegment.getString("dictionary"));
+        if (theDictionary == null) {
+            throw new JSONException("Could not find dictionary " + theSegment.getString("dictionary"));
+        }
+        byte[] theBytes;
+        try {
+            theBytes = BaseEncoding.base64().decode(theSegment.getString("packed"));
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("Could not decode packed segment: " + e);
+        }
+        Reader theReader = new Reader(theBytes);
+        while (theReader.hasMore()) {
+            String theArray = theReader.readRawString();
+            theSegment.put(theArray, theReader.readValue(theDictionary));
+        }
+        theSegment.remove("packed");
+        theSegment.remove("dictionary");
+    }
+
+    // Returns false if the value holds anything other than arrays, strings and
+    // whole numbers, which is all that segments hold.
+    private static boolean collectSymbols(Object theValue, Set<String> theSymbols) throws JSONException {
+        if (theValue instanceof String) {
+            List<String> theTokens = getTokens((String)theValue);
+            if (theTokens != null) {
+                for (String theToken : theTokens) {
+                    if (!theToken.equals("(") && !theToken.equals(")")) {
+                        theSymbols.add(theToken);
+                    }
+                }
+            }
+            return true;
+        } else if (theValue instanceof JSONArray) {
+            JSONArray theArray = (JSONArray)theValue;
+            for (int i = 0; i < theArray.length(); i++) {
+                if (!collectSymbols(theArray.get(i), theSymbols)) return false;
+            }
+            return true;
+        } else {
+            return (theValue instanceof Integer || theValue instanceof Long);
+        }
+    }
+
+    // Returns null if the string can't be rebuilt exactly from its tokens.
+    static List<String> getTokens(String theString) {
+        List<String> theTokens = new ArrayList<String>();
+        int nAtomStart = -1;
+        for (int i = 0; i < theString.length(); i++) {
+            char c = theString.charAt(i);
+            if (c == '(' || c == ')' || Character.isWhitespace(c)) {
+                if (nAtomStart >= 0) {
+                    theTokens.add(theString.substring(nAtomStart, i));
+                    nAtomStart = -1;
+                }
+                if (!Character.isWhitespace(c)) {
+                    theTokens.add(String.valueOf(c));
+                }
+            } else if (nAtomStart < 0) {
+                nAtomStart = i;
+            }
+        }
+        if (nAtomStart >= 0) {
+            theTokens.add(theString.substring(nAtomStart));
+        }
+        if (!joinTokens(theTokens, getSpacing(theString)).equals(theString)) {
+            return null;
+        }
+        return theTokens;
+    }
+
+    static int getSpacing(String theString) {
+        int nSpacing = 0;
+        if (theString.startsWith(" ")) nSpacing |= kLeadingSpace;
+        if (theString.endsWith(" ") && theString.length() > 1) nSpacing |= kTrailingSpace;
+        return nSpacing;
+    }
+
+    static String joinTokens(List<String> theTokens, int nSpacing) {
+        StringBuilder b = new StringBuilder();
+        if ((nSpacing & kLeadingSpace) != 0) b.append(' ');
+        for (int i = 0; i < theTokens.size(); i++) {
+            if (i > 0) b.append(' ');
+            b.append(theTokens.get(i));
+        }
+        if ((nSpacing & kTrailingSpace) != 0) b.append(' ');
+        return b.toString();
+    }
+
+    static void writeValue(ByteArrayOutputStream theBytes, Object theValue, GameDictionary theDictionary) throws JSONException {
+        if (theValue instanceof String) {
+            String theString = (String)theValue;
+            List<String> theTokens = getTokens(theString);
+            if (theTokens == null) {
+                writeVarint(theBytes, kRawString);
+                writeRawString(theBytes, theString);
+                return;
+            }
+            writeVarint(theBytes, kTokens);
+            writeVarint(theBytes, getSpacing(theString));
+            writeVarint(theBytes, theTokens.size());
+            for (String theToken : theTokens) {
+                if (theToken.equals("(")) {
+                    writeVarint(theBytes, kOpen);
+                } else if (theToken.equals(")")) {
+                    writeVarint(theBytes, kClose);
+                } else {
+                    int nIndex = theDictionary.getIndex(theToken);
+                    if (nIndex >= 0) {
+                        writeVarint(theBytes, kFirstSymbol + nIndex);
+                    } else {
+                        writeVarint(theBytes, kLiteral);
+                        writeRawString(theBytes, theToken);
+                    }
+                }
+            }
+        } else if (theValue instanceof JSONArray) {
+            JSONArray theArray = (JSONArray)theValue;
+            writeVarint(theBytes, kArray);
+            writeVarint(theBytes, theArray.length());
+            for (int i = 0; i < theArray.length(); i++) {
+                writeValue(theBytes, theArray.get(i), theDictionary);
+            }
+        } else {
+            // Numbers are zigzag encoded, since deltas hold negative numbers.
+            long n = ((Number)theValue).longValue();
+            writeVarint(theBytes, kNumber);
+            writeVarint(theBytes, (n << 1) ^ (n >> 63));
+        }
+    }
+
+    private static void writeRawString(ByteArrayOutputStream theBytes, String theString) {
+        byte[] theStringBytes = theString.getBytes(UTF8);
+        writeVarint(theBytes, theStringBytes.length);
+        theBytes.write(theStringBytes, 0, theStringBytes.length);
+    }
+
+    static void writeVarint(ByteArrayOutputStream theBytes, long n) {
+        while ((n & ~0x7FL) != 0) {
+            theBytes.write((int)((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        theBytes.write((int)n);
+    }
+
+    static class Reader {
+        private final byte[] theBytes;
+        private int nPosition = 0;
+
+        Reader(byte[] theBytes) {
+            this.theBytes = theBytes;
+        }
+
+        boolean hasMore() {
+            return nPosition < theBytes.length;
+        }
+
+        long readVarint() throws JSONException {
+            long n = 0;
+            for (int nShift = 0; nShift < 64; nShift += 7) {
+                if (nPosition >= theBytes.length) {
+                    throw new JSONException("Packed segment ends partway through a value.");
+                }
+                byte b = theBytes[nPosition++];
+                n |= (long)(b & 0x7F) << nShift;
+                if ((b & 0x80) == 0) return n;
+            }
+            throw new JSONException("Packed segment has an overlong varint.");
+        }
+
+        int readCount() throws JSONException {
+            long n = readVarint();
+            if (n < 0 || n > theBytes.length - nPosition) {
+                throw new JSONException("Packed segment has a bad length.");
+            }
+            return (int)n;
+        }
+
+        String readRawString() throws JSONException {
+            int nLength = readCount();
+            String theString = new String(theBytes, nPosition, nLength, UTF8);
+            nPosition += nLength;
+            return theString;
+        }
+
+        Object readValue(GameDictionary theDictionary) throws JSONException {
+            int nTag = (int)readVarint();
+            if (nTag == kTokens) {
+                int nSpacing = (int)readVarint();
+                int nTokens = readCount();
+                List<String> theTokens = new ArrayList<String>(nTokens);
+                for (int i = 0; i < nTokens; i++) {
+                    long nToken = readVarint();
+                    if (nToken == kOpen) {
+                        theTokens.add("(");
+                    } else if (nToken == kClose) {
+                        theTokens.add(")");
+                    } else if (nToken == kLiteral) {
+                        theTokens.add(readRawString());
+                    } else if (nToken >= kFirstSymbol && nToken - kFirstSymbol < theDictionary.size()) {
+                        theTokens.add(theDictionary.getSymbol((int)(nToken - kFirstSymbol)));
+                    } else {
+                        throw new JSONException("Packed segment refers to a symbol beyond its dictionary.");
+                    }
+                }
+                return joinTokens(theTokens, nSpacing);
+            } else if (nTag == kRawString) {
+                return readRawString();
+            } else if (nTag == kArray) {
+                int nLength = readCount();
+                JSONArray theArray = new JSONArray();
+                for (int i = 0; i < nLength; i++) {
+                    theArray.put(readValue(theDictionary));
+                }
+                return theArray;
+            } else if (nTag == kNumber) {
+                long n = readVarint();
+                long nValue = (n >>> 1) ^ -(n & 1);
+                if (nValue == (int)nValue) return (int)nValue;
+                return nValue;
+            }
+            throw new JSONException("Packed segment has an unknown tag " + nTag + ".");
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ggp.spectator;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+
+// Rolling digests over the stored prefixes of the append-only match arrays.
+// Each digest is a hash chain, where every element is hashed together with the
+// digest of the elements before it. This lets an update be checked against the
+// stored match by recomputing one digest per array, without loading the stored
+// arrays, and lets the stored digests be extended using only the new elements.
+public class PrefixDigests {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, Integer> theLengths = new HashMap<String, Integer>();
+    private final Map<String, String> theDigests = new HashMap<String, String>();
+
+    public PrefixDigests(List<String> theArrays, List<Integer> theArrayLengths, List<String> theArrayDigests) {
+        for (int i = 0; i < theArrays.size(); i++) {
+            theLengths.put(theArrays.get(i), theArrayLengths.get(i));
+            theDigests.put(theArrays.get(i), theArrayDigests.get(i));
+        }
+    }
+
+    public boolean has(String theArray) {
+        return theDigests.containsKey(theArray);
+    }
+
+    public int getLength(String theArray) {
+        return theLengths.get(theArray);
+    }
+
+    public String getDigest(String theArray) {
+        return theDigests.get(theArray);
+    }
+
+    // Extends the digest of the first nFrom elements of the array so that it
+    // covers the first nTo elements. Pass an empty digest to start from scratch.
+    public static String extendDigest(String theDigest, JSONArray theArray, int nFrom, int nTo) throws JSONException {
+        MessageDigest theHash = getHash();
+        byte[] theChain = theDigest.getBytes(UTF8);
+        for (int i = nFrom; i < nTo; i++) {
+            theChain = extendChain(theHash, theChain, getElementForm(theArray.get(i)));
+        }
+        return new String(theChain, UTF8);
+    }
+
+    public static String computeDigest(JSONArray theArray, int nElements) throws JSONException {
+        return extendDigest("", theArray, 0, nElements);
+    }
+
+    // The same digest, computed over an array from a MatchModel.
+    public static String computeDigest(List<?> theArray, int nElements) {
+        MessageDigest theHash = getHash();
+        byte[] theChain = new byte[0];
+        for (int i = 0; i < nElements; i++) {
+            theChain = extendChain(theHash, theChain, getElementForm(theArray.get(i)));
+        }
+        return new String(theChain, UTF8);
+    }
+
+    private static byte[] extendChain(MessageDigest theHash, byte[] theChain, String theElementForm) {
+        theHash.update(theChain);
+        theHash.update(theElementForm.getBytes(UTF8));
+        return toHex(theHash.digest()).getBytes(UTF8);
+    }
+
+    // States are hashed as their raw strings rather than their fingerprints, so
+    // that checking an update against the digests never parses the stored states.
+    // Updates which only reorder the facts of a stored state fail the digest
+    // check, and fall back to comparing fingerprints against the stored states.
+    private static String getElementForm(Object theElement) {
+        if (theElement instanceof List) {
+            // Interior arrays from a MatchModel take the form they have in JSON.
+            return new JSONArray((List<?>)theElement).toString();
+        }
+        return theElement.toString();
+    }
+
+    private static MessageDigest getHash() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] theBytes) {
+        StringBuilder b = new StringBuilder(theBytes.length * 2);
+        for (byte x : theBytes) {
+            b.append(Character.forDigit((x >> 4) & 0xF, 16));
+            b.append(Character.forDigit(x & 0xF, 16));
+        }
+        return b.toString();
+    }
+}
@@ -1,46 +1,171 @@
 package ggp.spectator;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Publishes feed updates to PuSH hubs. Each call makes a single attempt, and
+// retries are left to the caller, so that no request thread is tied up waiting
+// on a hub that's down. Each hub has a circuit breaker: after several failures
+// in a row, publishes to that hub fail immediately until a cooldown has passed,
+// and then a single trial publish decides whether the hub is healthy again.
 public class PuSHPublisher {
-	private static final int PING_ATTEMPTS = 10;
+    // The hub can be pointed elsewhere (for example, at a local stub hub) in appengine-web.xml.
+    public static final String DEFAULT_HUB = System.getProperty("ggp.spectator.hubURL", "http://pubsubhubbub.appspot.com/");
+
+    private static final int kConnectTimeoutMillis = 5000;
+    private static final int kReadTimeoutMillis = 10000;
+    private static final int kFailuresBeforeOpening = 5;
+    private static final long kMinCooldownMillis = 10000;
+    private static final long kMaxCooldownMillis = 600000;
+
+    private static class HubState {
+        final AtomicLong nAttempts = new AtomicLong();
+        final AtomicLong nFailures = new AtomicLong();
+        final AtomicLong nRejected = new AtomicLong();
+        int nConsecutiveFailures = 0;
+        long nCooldownMillis = kMinCooldownMillis;
+        long nOpenUntil = 0;
+        boolean isTrialInProgress = false;
+
+        // Returns false if the publish should be rejected without trying.
+        synchronized boolean allowAttempt() {
+            if (nConsecutiveFailures < kFailuresBeforeOpening) return true;
+            if (System.currentTimeMillis() < nOpenUntil || isTrialInProgress) return false;
+            isTrialInProgress = true;
+            return true;
+        }
+
+        synchronized void recordSuccess() {
+            nConsecutiveFailures = 0;
+            nCooldownMillis = kMinCooldownMillis;
+            isTrialInProgress = false;
+        }
+
+        synchronized void recordFailure() {
+            nConsecutiveFailures++;
+            if (isTrialInProgress) {
+                nCooldownMillis = Math.min(kMaxCooldownMillis, nCooldownMillis * 2);
+                isTrialInProgress = false;
+            }
+            if (nConsecutiveFailures >= kFailuresBeforeOpening) {
+                nOpenUntil = System.currentTimeMillis() + nCooldownMillis;
+            }
+        }
+
+        synchronized long getOpenUntil() {
+            return (nConsecutiveFailures >= kFailuresBeforeOpening) ? nOpenUntil : 0;
+        }
+    }
+
+    private static final Map<String, HubState> theHubs = new ConcurrentHashMap<String, HubState>();
+
+    private static HubState getHubState(String theHub) {
+        HubState theState = theHubs.get(theHub);
+        if (theState == null) {
+            synchronized (theHubs) {
+                theState = theHubs.get(theHub);
+                if (theState == null) {
+                    theState = new HubState();
+                    theHubs.put(theHub, theState);
+                }
+            }
+        }
+        return theState;
+    }
+
     public static void pingHub(String theHub, String theFeedURL) throws IOException {
-        String theEncodedURL = URLEncoder.encode(theFeedURL, "UTF-8");
-
-        int nAttempts = 0;
-        while(true) {
-	        try {
-	            URL url = new URL(theHub);
-	            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-	            connection.setDoOutput(true);
-	            connection.setRequestMethod("POST");
-	            connection.setRequestProperty("Content-type","application/x-www-form-urlencoded");
-	            connection.setRequestProperty("User-agent", "pubsubhubbub 0.3");
-	            
-	            OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
-	            writer.write("hub.mode=publish&hub.url=" + theEncodedURL);
-	            writer.close();
-
-	            if (connection.getResponseCode() / 100 == 2) {
-	                // OK
-	            	return;
-	            } else {
-	            	Logger.getAnonymousLogger().severe("Got bad response from ping PuSH hub: " + connection.getResponseCode() + ": " + connection.getResponseMessage());
-	                throw new IOException(connection.getResponseCode() + ": " + connection.getResponseMessage());
-	            }
-	        } catch (IOException e) {
-	        	if (nAttempts > PING_ATTEMPTS) {
-	        		throw e;
-	        	} else {
-	        		Logger.getAnonymousLogger().severe("Failed to ping PuSH hub: " + e.toString() + " ... " + e.getCause());
-	        	}
-	        }
-	        ++nAttempts;
-        }
-    }
-}
\ No newline at end of file
+        pingHub(theHub, Collections.singletonList(theFeedURL));
+    }
+
+    // The hub accepts several feeds in a single publish request.
+    public static void pingHub(String theHub, List<String> theFeedURLs) throws IOException {
+        HubState theState = getHubState(theHub);
+        if (!theState.allowAttempt()) {
+            theState.nRejected.incrementAndGet();
+            throw new IOException("Not publishing to PuSH hub " + theHub + " while it's unhealthy");
+        }
+        theState.nAttempts.incrementAndGet();
+        try {
+            publish(theHub, theFeedURLs);
+            theState.recordSuccess();
+        } catch (IOException e) {
+            theState.nFailures.incrementAndGet();
+            theState.recordFailure();
+            throw e;
+        }
+    }
+
+    private static void publish(String theHub, List<String> theFeedURLs) throws IOException {
+        StringBuilder theRequest = new StringBuilder("hub.mode=publish");
+        for (String theFeedURL : theFeedURLs) {
+            theRequest.append("&hub.url=").append(URLEncoder.encode(theFeedURL, "UTF-8"));
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(theHub).openConnection();
+        connection.setConnectTimeout(kConnectTimeoutMillis);
+        connection.setReadTimeout(kReadTimeoutMillis);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-type","application/x-www-form-urlencoded");
+        connection.setRequestProperty("User-agent", "pubsubhubbub 0.3");
+
+        OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
+        writer.write(theRequest.toString());
+        writer.close();
+
+        int nResponseCode = connection.getResponseCode();
+        // The response body has to be read to the end for the connection to be
+        // kept alive and reused by the next publish to the same hub.
+        drain(nResponseCode / 100 == 2 ? connection.getInputStream() : connection.getErrorStream());
+        if (nResponseCode / 100 != 2) {
+            Logger.getAnonymousLogger().warning("Got bad response from ping PuSH hub: " + nResponseCode + ": " + connection.getResponseMessage());
+            throw new IOException(nResponseCode + ": " + connection.getResponseMessage());
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) return;
+        try {
+            byte[] theBuffer = new byte[1024];
+            while (in.read(theBuffer) >= 0);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns the time before which publishes to the hub will be rejected, or
+    // zero if they aren't being rejected.
+    public static long getOpenUntil(String theHub) {
+        return getHubState(theHub).getOpenUntil();
+    }
+
+    public static JSONObject getStatsJSON() throws JSONException {
+        JSONObject theStats = new JSONObject();
+        for (Map.Entry<String, HubState> theHub : theHubs.entrySet()) {
+            HubState theState = theHub.getValue();
+            long nAttempts = theState.nAttempts.get();
+            long nFailures = theState.nFailures.get();
+            JSONObject theHubStats = new JSONObject();
+            theHubStats.put("attempts", nAttempts);
+            theHubStats.put("failures", nFailures);
+            theHubStats.put("rejected", theState.nRejected.get());
+            theHubStats.put("failureRate", nAttempts == 0 ? 0.0 : (double)nFailures / nAttempts);
+            theHubStats.put("circuitOpen", theState.getOpenUntil() > System.currentTimeMillis());
+            theStats.put(theHub.getKey(), theHubStats);
+        }
+        return theStats;
+    }
+}
@@ -0,0 +1,186 @@
+package ggp.spectator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+
+// Stores the states in a match segment as differences from the state before
+// them, since consecutive GDL states share most of their facts. The first state
+// in each segment is kept whole, as a keyframe, so that segments can still be
+// decoded on their own, and so a state is never more than a segment's length
+// away from its keyframe.
+//
+// Signatures cover the exact state strings, so the encoding is lossless: each
+// state is split into pieces which concatenate back into exactly the original
+// string, and the differences are taken between these pieces rather than
+// between parsed facts. A piece is a top-level fact along with the whitespace
+// after it, or the text before the first fact or after the last one, so a state
+// that can't be split up is just a single piece.
+//
+// A delta is a JSON array of operations on the pieces of the previous state: a
+// positive number keeps that many of its pieces, a negative number skips over
+// that many, and a string is a new piece. Any pieces left over at the end are
+// kept. States for which a delta wouldn't be much smaller are kept whole.
+public class StateDeltas {
+    // Rough allowance for the JSON taken up by each operation.
+    private static final int kOperationCharacters = 4;
+
+    public static JSONArray encodeStates(JSONArray theStates) throws JSONException {
+        JSONArray theEncoded = new JSONArray();
+        for (int i = 0; i < theStates.length(); i++) {
+            String theState = theStates.get(i).toString();
+            List<Object> theDelta = (i == 0) ? null : encode(theStates.get(i-1).toString(), theState);
+            if (theDelta == null) {
+                theEncoded.put(theState);
+            } else {
+                theEncoded.put(new JSONArray(theDelta));
+            }
+        }
+        return theEncoded;
+    }
+
+    // Also accepts segments stored before states were encoded, which only hold
+    // whole states.
+    public static JSONArray decodeStates(JSONArray theEncoded) throws JSONException {
+        JSONArray theStates = new JSONArray();
+        String thePrevious = null;
+        for (int i = 0; i < theEncoded.length(); i++) {
+            JSONArray theDelta = theEncoded.optJSONArray(i);
+            String theState;
+            if (theDelta == null) {
+                theState = theEncoded.get(i).toString();
+            } else if (thePrevious == null) {
+                throw new JSONException("State delta at " + i + " has no keyframe before it.");
+            } else {
+                List<Object> theOperations = new ArrayList<Object>();
+                for (int j = 0; j < theDelta.length(); j++) {
+                    theOperations.add(theDelta.get(j));
+                }
+                theState = decode(thePrevious, theOperations);
+            }
+            theStates.put(theState);
+            thePrevious = theState;
+        }
+        return theStates;
+    }
+
+    // Returns null if the state is better kept whole.
+    public static List<Object> encode(String thePrevious, String theState) {
+        List<String> theOldPieces = split(thePrevious);
+        List<String> theNewPieces = split(theState);
+
+        // Where each piece of the previous state appears, for finding pieces
+        // which were kept after some others were removed.
+        Map<String, List<Integer>> theOldPositions = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < theOldPieces.size(); i++) {
+            List<Integer> thePositions = theOldPositions.get(theOldPieces.get(i));
+            if (thePositions == null) {
+                thePositions = new ArrayList<Integer>(1);
+                theOldPositions.put(theOldPieces.get(i), thePositions);
+            }
+            thePositions.add(i);
+        }
+
+        List<Object> theOperations = new ArrayList<Object>();
+        int nEncodedLength = 0;
+        int nKept = 0;
+        int j = 0;
+        for (String thePiece : theNewPieces) {
+            if (j < theOldPieces.size() && theOldPieces.get(j).equals(thePiece)) {
+                nKept++;
+                j++;
+                continue;
+            }
+            int nFound = findFrom(theOldPositions.get(thePiece), j);
+            if (nKept > 0) {
+                theOperations.add(nKept);
+                nKept = 0;
+            }
+            if (nFound >= 0) {
+                theOperations.add(j - nFound);
+                nKept = 1;
+                j = nFound + 1;
+            } else {
+                theOperations.add(thePiece);
+                nEncodedLength += thePiece.length();
+            }
+        }
+        if (j < theOldPieces.size()) {
+            if (nKept > 0) theOperations.add(nKept);
+            theOperations.add(j - theOldPieces.size());
+        }
+
+        nEncodedLength += theOperations.size() * kOperationCharacters;
+        if (nEncodedLength * 2 > theState.length()) return null;
+        return theOperations;
+    }
+
+    public static String decode(String thePrevious, List<?> theOperations) throws JSONException {
+        List<String> theOldPieces = split(thePrevious);
+        StringBuilder b = new StringBuilder(thePrevious.length());
+        int j = 0;
+        for (Object theOperation : theOperations) {
+            if (theOperation instanceof Number) {
+                int n = ((Number)theOperation).intValue();
+                if (n == 0 || j + Math.abs(n) > theOldPieces.size()) {
+                    throw new JSONException("State delta doesn't fit the previous state.");
+                }
+                if (n > 0) {
+                    for (int i = j; i < j + n; i++) {
+                        b.append(theOldPieces.get(i));
+                    }
+                }
+                j += Math.abs(n);
+            } else {
+                b.append(theOperation.toString());
+            }
+        }
+        for (int i = j; i < theOldPieces.size(); i++) {
+            b.append(theOldPieces.get(i));
+        }
+        return b.toString();
+    }
+
+    private static int findFrom(List<Integer> thePositions, int nFrom) {
+        if (thePositions == null) return -1;
+        for (int nPosition : thePositions) {
+            if (nPosition >= nFrom) return nPosition;
+        }
+        return -1;
+    }
+
+    // Splits the state at the start of each top-level fact, and at the closing
+    // parenthesis of the state, so that the pieces concatenate back into it.
+    static List<String> split(String theState) {
+        List<String> thePieces = new ArrayList<String>();
+        int nDepth = 0;
+        int nPieceStart = 0;
+        boolean inAtom = false;
+        for (int i = 0; i < theState.length(); i++) {
+            char c = theState.charAt(i);
+            boolean isElementStart = (nDepth == 1 && !inAtom && !Character.isWhitespace(c) && c != ')');
+            if (isElementStart || (nDepth == 1 && c == ')')) {
+                if (i > nPieceStart) {
+                    thePieces.add(theState.substring(nPieceStart, i));
+                }
+                nPieceStart = i;
+            }
+            if (c == '(') {
+                nDepth++;
+                inAtom = false;
+            } else if (c == ')') {
+                nDepth--;
+                inAtom = false;
+                if (nDepth < 0) break;
+            } else {
+                inAtom = (nDepth == 1 && !Character.isWhitespace(c));
+            }
+        }
+        thePieces.add(theState.substring(nPieceStart));
+        return thePieces;
+    }
+}
@@ -0,0 +1,56 @@
+package ggp.spectator;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.ggp.base.util.crypto.BaseHashing;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+// Canonical fingerprints for GDL states. Two states have the same fingerprint
+// exactly when they contain the same set of facts, regardless of the order in
+// which the facts are listed, so comparing states as symbol sets reduces to
+// comparing their fingerprints. Fingerprints are kept in a bounded cache keyed
+// by the raw state string, so each state is only parsed once while it's hot.
+public class StateFingerprints {
+    // Cached states are weighed by their length in characters.
+    private static final long kMaxCachedCharacters = 32 * 1024 * 1024;
+    private static final String kUnparseable = "";
+
+    private static final Cache<String, String> theCache = CacheBuilder.newBuilder()
+            .maximumWeight(kMaxCachedCharacters)
+            .weigher(new Weigher<String, String>() {
+                public int weigh(String theState, String theFingerprint) {
+                    return theState.length() + theFingerprint.length();
+                }
+            })
+            .build();
+
+    // Returns null if the state cannot be parsed as a list of symbols.
+    public static String getFingerprint(String theState) {
+        String theFingerprint = theCache.getIfPresent(theState);
+        if (theFingerprint == null) {
+            theFingerprint = computeFingerprint(theState);
+            theCache.put(theState, theFingerprint);
+        }
+        return theFingerprint.isEmpty() ? null : theFingerprint;
+    }
+
+    // Records a fingerprint that was computed earlier and stored alongside the
+    // state, so that it doesn't need to be recomputed.
+    public static void rememberFingerprint(String theState, String theFingerprint) {
+        theCache.put(theState, theFingerprint);
+    }
+
+    private static String computeFingerprint(String theState) {
+        Set<String> theFacts = MatchValidation.verifyOptionalArraysEqual_GenerateSymbolSet(theState);
+        if (theFacts == null) return kUnparseable;
+        StringBuilder b = new StringBuilder();
+        for (String theFact : new TreeSet<String>(theFacts)) {
+            b.append(theFact).append('\n');
+        }
+        return BaseHashing.computeSHA1Hash(b.toString());
+    }
+}
@@ -0,0 +1,56 @@
+package ggp.spectator;
+
+import java.io.File;
+import java.io.IOException;
+
+// Chooses where matches and feeds are stored. By default they're kept in the
+// App Engine datastore; setting ggp.spectator.store to "embedded" keeps them in
+// log files under ggp.spectator.storeDir instead, so that the server can run on
+// a plain servlet container. Setting ggp.spectator.storeSync forces each write
+// to disk before it's acknowledged.
+public class Stores {
+    private static MatchStore theMatchStore;
+    private static FeedStore theFeedStore;
+
+    private static boolean isEmbedded() {
+        return "embedded".equals(System.getProperty("ggp.spectator.store", "datastore"));
+    }
+
+    private static File getStoreDirectory(String theName) {
+        return new File(System.getProperty("ggp.spectator.storeDir", "spectator-data"), theName);
+    }
+
+    private static boolean shouldSync() {
+        return Boolean.getBoolean("ggp.spectator.storeSync");
+    }
+
+    public static synchronized MatchStore getMatchStore() {
+        if (theMatchStore == null) {
+            if (isEmbedded()) {
+                try {
+                    theMatchStore = new EmbeddedMatchStore(getStoreDirectory("matches"), shouldSync());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                theMatchStore = new JdoMatchStore();
+            }
+        }
+        return theMatchStore;
+    }
+
+    public static synchronized FeedStore getFeedStore() {
+        if (theFeedStore == null) {
+            if (isEmbedded()) {
+                try {
+                    theFeedStore = new EmbeddedFeedStore(getStoreDirectory("feeds"), shouldSync());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                theFeedStore = new JdoFeedStore();
+            }
+        }
+        return theFeedStore;
+    }
+}
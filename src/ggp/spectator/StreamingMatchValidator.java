@@ -0,0 +1,353 @@
+package ggp.spectator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+// Checks the internal consistency of posted match JSON in a single pass over
+// its tokens, before any JSONObject is built from it. This covers the same rules
+// as MatchValidation.performInternalConsistencyChecks, except for verifying the
+// signature, which needs the parsed match: the allowed and required keys, no
+// nulls, the lengths of the state, move and error arrays agreeing with each
+// other, state times that never go backwards, and moves and errors that only
+// hold strings. Oversized or deeply nested payloads are rejected before they're
+// parsed at all, and anything else as soon as the offending token is reached.
+public class StreamingMatchValidator {
+    // Matches are posted in full on every update, so the limit has to leave
+    // room for long matches with large states.
+    private static final int kMaxMatchChars = Integer.getInteger("ggp.spectator.maxMatchChars", 16 * 1024 * 1024);
+    private static final int kMaxDepth = 32;
+
+    private static final String[] kRequiredKeys = new String[] {
+        "matchId", "startTime", "randomToken", "startClock", "playClock", "states", "moves", "stateTimes", "gameMetaURL" };
+
+    // The parser keeps a sizeable buffer, so each thread reuses its own.
+    private static final ThreadLocal<JSONParser> theParser = new ThreadLocal<JSONParser>() {
+        @Override
+        protected JSONParser initialValue() {
+            return new JSONParser();
+        }
+    };
+
+    public static void validate(String theData) throws MatchValidation.ValidationException {
+        if (theData == null) {
+            throw new MatchValidation.ValidationException("Missing match JSON.");
+        }
+        if (theData.length() > kMaxMatchChars) {
+            throw new MatchValidation.ValidationException("Match JSON is " + theData.length() + " characters long, but at most " + kMaxMatchChars + " are allowed.");
+        }
+        Handler theHandler = new Handler();
+        try {
+            theParser.get().parse(theData, theHandler);
+        } catch (ParseException e) {
+            if (theHandler.theError != null) throw theHandler.theError;
+            throw new MatchValidation.ValidationException("Could not parse JSON: " + e);
+        } catch (RuntimeException e) {
+            // Such as numbers too large for a long.
+            throw new MatchValidation.ValidationException("Could not parse JSON: " + e);
+        }
+        if (theHandler.theError != null) throw theHandler.theError;
+        theHandler.finish();
+    }
+
+    // Tracks where in the match each token is: depth 1 is a top-level value, depth 2
+    // an element of a top-level array, and depth 3 an element of an array within
+    // that, which is as deep as the match fields go.
+    private static class Handler implements ContentHandler {
+        MatchValidation.ValidationException theError;
+
+        private int nDepth = 0;
+        private final boolean[] isArrayAt = new boolean[kMaxDepth + 2];
+        // Nulls aren't checked in the values of fields named "NULL", for
+        // consistency with MatchValidation.verifyNoNulls.
+        private int nUncheckedNullsFromDepth = -1;
+        private String theCurrentKey;
+        private String theTopKey;
+        private final Set<String> theKeys = new HashSet<String>();
+
+        // Lengths of the top-level arrays, and of the current inner array.
+        private final Map<String, Integer> theArrayLengths = new HashMap<String, Integer>();
+        private int nElements;
+        private int nInnerElements;
+        private int nMovePlayers = -1;
+        private int nErrorPlayers = -1;
+
+        private long nFirstStateTime = -1;
+        private long nLastStateTime = -1;
+        private Object theStartTime;
+        private Object isCompleted;
+        private Object theGameMetaURL;
+
+        private boolean fail(String theMessage) {
+            theError = new MatchValidation.ValidationException(theMessage);
+            return false;
+        }
+
+        private boolean isInnerArrayField() {
+            return "moves".equals(theTopKey) || "errors".equals(theTopKey);
+        }
+
+        // Every state time has to be a number, as JSONArray.getLong requires.
+        private boolean isTimeField() {
+            return "stateTimes".equals(theTopKey);
+        }
+
+        private boolean isArrayField() {
+            return isInnerArrayField() || "states".equals(theTopKey) || "stateTimes".equals(theTopKey) ||
+                   "goalValues".equals(theTopKey) || "playerNamesFromHost".equals(theTopKey);
+        }
+
+        // Called at the start of every value, whether it's a container or not.
+        private boolean startValue(boolean isContainer) {
+            if (nDepth == 0 && !isContainer) {
+                return fail("Match JSON must be an object.");
+            }
+            if (nDepth == 1 && !isContainer && isArrayField()) {
+                return fail("Field " + theTopKey + " must be an array.");
+            }
+            if (nDepth == 2 && isArrayAt[2]) {
+                nElements++;
+            }
+            if (nDepth == 3 && isArrayAt[3] && isInnerArrayField()) {
+                nInnerElements++;
+            }
+            return true;
+        }
+
+        public void startJSON() {
+            ;
+        }
+
+        public void endJSON() {
+            ;
+        }
+
+        public boolean startObject() {
+            if (!startValue(true)) return false;
+            if (nDepth == 0) {
+                nDepth = 1;
+                isArrayAt[1] = false;
+                return true;
+            }
+            if (nDepth == 1 && isArrayField()) {
+                return fail("Field " + theTopKey + " must be an array.");
+            }
+            if (nDepth == 2 && isInnerArrayField()) {
+                return fail("Array " + theTopKey + " must hold arrays, but found JSON object.");
+            }
+            if (nDepth == 3 && isInnerArrayField()) {
+                return fail("Expecting string in array, but found JSON object.");
+            }
+            if (nDepth == 2 && isTimeField()) {
+                return fail("Could not parse JSON: " + theTopKey + " is not a number.");
+            }
+            return push(false);
+        }
+
+        public boolean startArray() {
+            if (!startValue(true)) return false;
+            if (nDepth == 0) {
+                return fail("Match JSON must be an object.");
+            }
+            if (nDepth == 1 && isArrayField()) {
+                nElements = 0;
+            } else if (nDepth == 1) {
+                ;
+            } else if (nDepth == 2 && isInnerArrayField()) {
+                nInnerElements = 0;
+            } else if (nDepth == 3 && isInnerArrayField()) {
+                return fail("Expecting string in array, but found JSON array.");
+            } else if (nDepth == 2 && isTimeField()) {
+                return fail("Could not parse JSON: " + theTopKey + " is not a number.");
+            }
+            return push(true);
+        }
+
+        private boolean push(boolean isArray) {
+            if (nDepth >= kMaxDepth) {
+                return fail("Match JSON is nested more than " + kMaxDepth + " levels deep.");
+            }
+            nDepth++;
+            isArrayAt[nDepth] = isArray;
+            return true;
+        }
+
+        public boolean endObject() {
+            return pop();
+        }
+
+        public boolean endArray() {
+            if (nDepth == 3 && isInnerArrayField()) {
+                if (!endInnerArray()) return false;
+            }
+            if (nDepth == 2 && isArrayField()) {
+                theArrayLengths.put(theTopKey, nElements);
+            }
+            return pop();
+        }
+
+        private boolean pop() {
+            nDepth--;
+            return true;
+        }
+
+        // Every move and error listing must have one entry per player.
+        private boolean endInnerArray() {
+            if (theTopKey.equals("moves")) {
+                if (nMovePlayers < 0) {
+                    nMovePlayers = nInnerElements;
+                } else if (nMovePlayers != nInnerElements) {
+                    return fail("Moves array starts with " + nMovePlayers + " players, but later has " + nInnerElements + " moves. Inconsistent!");
+                }
+            } else {
+                if (nErrorPlayers < 0) {
+                    nErrorPlayers = nInnerElements;
+                } else if (nErrorPlayers != nInnerElements) {
+                    return fail("Errors array lengths are inconsistent!");
+                }
+            }
+            return true;
+        }
+
+        public boolean startObjectEntry(String theKey) {
+            theCurrentKey = theKey;
+            if (nDepth == 1) {
+                if (!theKeys.add(theKey)) {
+                    return fail("Duplicate key: " + theKey);
+                }
+                if (!MatchValidation.isValidKey(theKey)) {
+                    return fail("Unexpected key: " + theKey);
+                }
+                theTopKey = theKey;
+            }
+            if (theKey.equals("NULL") && nUncheckedNullsFromDepth < 0) {
+                nUncheckedNullsFromDepth = nDepth;
+            }
+            return true;
+        }
+
+        public boolean endObjectEntry() {
+            if (nUncheckedNullsFromDepth == nDepth) {
+                nUncheckedNullsFromDepth = -1;
+            }
+            return true;
+        }
+
+        public boolean primitive(Object theValue) {
+            if (!startValue(false)) return false;
+            if (theValue == null && nUncheckedNullsFromDepth < 0) {
+                if (isArrayAt[nDepth]) {
+                    return fail("Found null value for element in array " + theTopKey);
+                }
+                return fail("Found null value for field " + theCurrentKey);
+            }
+            if (nDepth == 1) {
+                if (theTopKey.equals("startTime")) theStartTime = theValue;
+                if (theTopKey.equals("isCompleted")) isCompleted = theValue;
+                if (theTopKey.equals("gameMetaURL")) theGameMetaURL = theValue;
+            } else if (nDepth == 2 && isArrayAt[2] && isInnerArrayField()) {
+                return fail("Array " + theTopKey + " must hold arrays, but found " + theValue + ".");
+            } else if (nDepth == 2 && isArrayAt[2] && isTimeField()) {
+                try {
+                    long nTime = toLong(theValue, "stateTimes");
+                    MatchValidation.verifyReasonableTime(nTime);
+                    if (nTime < nLastStateTime) {
+                        return fail("Time sequence goes backward!");
+                    }
+                    if (nFirstStateTime < 0) nFirstStateTime = nTime;
+                    nLastStateTime = nTime;
+                } catch (MatchValidation.ValidationException e) {
+                    theError = e;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Accepts the same values that JSONObject.getLong does.
+        private static long toLong(Object theValue, String theField) throws MatchValidation.ValidationException {
+            if (theValue instanceof Number) {
+                return ((Number)theValue).longValue();
+            }
+            try {
+                return (long)Double.parseDouble(String.valueOf(theValue));
+            } catch (NumberFormatException e) {
+                throw new MatchValidation.ValidationException("Could not parse JSON: " + theField + " is not a number.");
+            }
+        }
+
+        private int getLength(String theArray) {
+            Integer nLength = theArrayLengths.get(theArray);
+            return (nLength == null) ? 0 : nLength;
+        }
+
+        // The checks that need the whole match to have been seen.
+        void finish() throws MatchValidation.ValidationException {
+            for (String theKey : kRequiredKeys) {
+                if (!theKeys.contains(theKey)) {
+                    throw new MatchValidation.ValidationException("Could not find required field " + theKey);
+                }
+            }
+
+            try {
+                String theGameURL = String.valueOf(theGameMetaURL);
+                String theSuffix = theGameURL.substring(theGameURL.lastIndexOf("/v"));
+                Integer.parseInt(theSuffix.substring(2, theSuffix.length()-1));
+            } catch (NumberFormatException nfe) {
+                throw new MatchValidation.ValidationException("gameMetaURL is not properly version-qualified.");
+            } catch (IndexOutOfBoundsException ibe) {
+                throw new MatchValidation.ValidationException("gameMetaURL is not properly version-qualified.");
+            }
+
+            int movesLength = getLength("moves");
+            int statesLength = getLength("states");
+            int stateTimesLength = getLength("stateTimes");
+            if (statesLength < 1) {
+                throw new MatchValidation.ValidationException("The initial state must be present before a match is published, but here it isn't.");
+            }
+            if (statesLength != stateTimesLength) {
+                throw new MatchValidation.ValidationException("There are " + statesLength + " states, but " + stateTimesLength + " state times. Inconsistent!");
+            }
+            if (statesLength != movesLength+1) {
+                throw new MatchValidation.ValidationException("There are " + statesLength + " states, but " + movesLength + " moves. Inconsistent!");
+            }
+            if (movesLength > 0) {
+                if (theKeys.contains("goalValues")) {
+                    if (isCompleted != null && String.valueOf(isCompleted).equalsIgnoreCase("false")) {
+                        throw new MatchValidation.ValidationException("goalValues is present when isCompleted is false.");
+                    }
+                    if (getLength("goalValues") != nMovePlayers) {
+                        throw new MatchValidation.ValidationException("Moves array starts with " + nMovePlayers + " players, but goals array has " + getLength("goalValues") + " players. Inconsistent!");
+                    }
+                }
+                if (theKeys.contains("playerNamesFromHost") && getLength("playerNamesFromHost") != nMovePlayers) {
+                    throw new MatchValidation.ValidationException("Moves array starts with " + nMovePlayers + " players, but playerNamesFromHost array has " + getLength("playerNamesFromHost") + " players. Inconsistent!");
+                }
+            }
+            if (theKeys.contains("errors")) {
+                int errorsLength = getLength("errors");
+                if (errorsLength != statesLength) {
+                    throw new MatchValidation.ValidationException("There are " + statesLength + " states, but " + errorsLength + " error listings. Inconsistent!");
+                }
+                if (movesLength > 0 && nMovePlayers != nErrorPlayers) {
+                    throw new MatchValidation.ValidationException("Inconsistency between the number of players in moves array, and players in errors array: " + nMovePlayers + " vs " + nErrorPlayers);
+                }
+            }
+
+            long nStartTime = toLong(theStartTime, "startTime");
+            MatchValidation.verifyReasonableTime(nStartTime);
+            if (nStartTime > nFirstStateTime) {
+                throw new MatchValidation.ValidationException("Time sequence goes backward!");
+            }
+
+            if (!theKeys.contains("matchHostPK") && theKeys.contains("matchHostSignature")) {
+                throw new MatchValidation.ValidationException("Any match with a signature must also contain a matchHostPK field.");
+            }
+        }
+    }
+}
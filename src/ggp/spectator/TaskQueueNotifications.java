@@ -0,0 +1,156 @@
+package ggp.spectator;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withMethod;
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.ggp.base.util.crypto.BaseHashing;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Durable notification queue, built on a pull queue. Like the hub pings, each
+// (target, match) pair is queued at most once per window, and a named task per
+// window sends everything that's queued. The notifications are grouped by
+// target, and the targets are sent to concurrently, each by a single thread.
+// How many flushes can run at once is limited in queue.xml.
+//
+// Each notification is still its own request, since the downstream endpoints,
+// like ingest_match, take a single match URL per request. Grouping by target
+// only means that a target is sent to one request at a time, and that a
+// failing target stops being sent to for the rest of the flush.
+public class TaskQueueNotifications implements NotificationQueue {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String NOTIFY_QUEUE = "notifications";
+    private static final String FLUSH_QUEUE = "notification-flushes";
+    private static final String FLUSH_URL = "/tasks/notify";
+
+    private static final long kWindowMillis = Long.getLong("ggp.spectator.notifyWindowMillis", 5000);
+    private static final int kMaxNotificationsPerFlush = 500;
+    private static final int kConcurrentTargets = 4;
+    private static final int kLeaseSeconds = 300;
+
+    private final Cache<String, Boolean> theQueuedNames = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(2 * kWindowMillis, TimeUnit.MILLISECONDS)
+            .build();
+
+    public void enqueue(String theTarget, String theMatchURL) {
+        long nWindow = System.currentTimeMillis() / kWindowMillis;
+        String thePayload = theTarget + "\n" + theMatchURL;
+        String theNotificationName = "notify-" + BaseHashing.computeSHA1Hash(thePayload) + "-" + nWindow;
+        if (theQueuedNames.getIfPresent(theNotificationName) == null) {
+            addNamedTask(QueueFactory.getQueue(NOTIFY_QUEUE), theNotificationName, withMethod(Method.PULL).payload(thePayload));
+            theQueuedNames.put(theNotificationName, true);
+        }
+        String theFlushName = "flush-" + nWindow;
+        if (theQueuedNames.getIfPresent(theFlushName) == null) {
+            addNamedTask(QueueFactory.getQueue(FLUSH_QUEUE), theFlushName, withUrl(FLUSH_URL).method(Method.POST).etaMillis((nWindow + 1) * kWindowMillis));
+            theQueuedNames.put(theFlushName, true);
+        }
+    }
+
+    private static void addNamedTask(Queue theQueue, String theName, TaskOptions theTask) {
+        try {
+            theQueue.add(theTask.taskName(theName));
+        } catch (TaskAlreadyExistsException e) {
+            // Another request already queued it for this window.
+        }
+    }
+
+    // Sends every queued notification. Notifications are only removed from the
+    // queue once they've been sent; when one fails, the remaining ones for that
+    // target are released, and this throws so that the flush task is retried,
+    // with the backoff configured in queue.xml.
+    public void flush() throws IOException {
+        final Queue theQueue = QueueFactory.getQueue(NOTIFY_QUEUE);
+        List<TaskHandle> theNotifications = theQueue.leaseTasks(kLeaseSeconds, TimeUnit.SECONDS, kMaxNotificationsPerFlush);
+        if (theNotifications.isEmpty()) return;
+
+        // Group the notifications by target, and by match within each target,
+        // since a match can be queued in several windows if a flush was delayed.
+        Map<String, Map<String, List<TaskHandle>>> theTargets = new LinkedHashMap<String, Map<String, List<TaskHandle>>>();
+        for (TaskHandle theNotification : theNotifications) {
+            String[] thePayload = new String(theNotification.getPayload(), UTF8).split("\n", 2);
+            if (!theTargets.containsKey(thePayload[0])) {
+                theTargets.put(thePayload[0], new LinkedHashMap<String, List<TaskHandle>>());
+            }
+            Map<String, List<TaskHandle>> theMatches = theTargets.get(thePayload[0]);
+            if (!theMatches.containsKey(thePayload[1])) {
+                theMatches.put(thePayload[1], new ArrayList<TaskHandle>());
+            }
+            theMatches.get(thePayload[1]).add(theNotification);
+        }
+
+        final AtomicBoolean hadFailure = new AtomicBoolean(false);
+        ExecutorService theSenders = Executors.newFixedThreadPool(Math.min(kConcurrentTargets, theTargets.size()), ThreadManager.currentRequestThreadFactory());
+        for (final Map.Entry<String, Map<String, List<TaskHandle>>> theTarget : theTargets.entrySet()) {
+            theSenders.execute(new Runnable() {
+                public void run() {
+                    boolean isFailing = false;
+                    for (Map.Entry<String, List<TaskHandle>> theMatch : theTarget.getValue().entrySet()) {
+                        if (!isFailing) {
+                            try {
+                                IngestNotifier.send(theTarget.getKey(), theMatch.getKey());
+                                theQueue.deleteTask(theMatch.getValue());
+                                continue;
+                            } catch (IOException e) {
+                                Logger.getAnonymousLogger().warning("Failed to notify " + theTarget.getKey() + ": " + e);
+                                isFailing = true;
+                                hadFailure.set(true);
+                            }
+                        }
+                        for (TaskHandle theNotification : theMatch.getValue()) {
+                            theQueue.modifyTaskLease(theNotification, 0, TimeUnit.SECONDS);
+                        }
+                    }
+                }
+            });
+        }
+        theSenders.shutdown();
+        try {
+            if (!theSenders.awaitTermination(kLeaseSeconds, TimeUnit.SECONDS)) {
+                hadFailure.set(true);
+            }
+        } catch (InterruptedException e) {
+            hadFailure.set(true);
+        }
+        if (hadFailure.get()) {
+            throw new IOException("Could not send all of the queued notifications");
+        }
+
+        // If the flush was full, there may be more notifications waiting.
+        if (theNotifications.size() == kMaxNotificationsPerFlush) {
+            QueueFactory.getQueue(FLUSH_QUEUE).add(withUrl(FLUSH_URL).method(Method.POST));
+        }
+    }
+
+    public JSONObject getStatsJSON() throws JSONException {
+        JSONObject theStats = new JSONObject();
+        theStats.put("queue", "taskqueue");
+        theStats.put("queued", QueueFactory.getQueue(NOTIFY_QUEUE).fetchStatistics().getNumTasks());
+        theStats.put("windowMillis", kWindowMillis);
+        return theStats;
+    }
+}
@@ -0,0 +1,35 @@
+package ggp.spectator;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.crypto.SignableJSON;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Remembers the outcome of verifying signed match documents, so that retries
+// and duplicate posts from match hosts don't need to redo the canonicalization
+// and signature verification. The signature alone isn't a safe cache key, since
+// an adversary could attach a previously valid signature to a modified match,
+// so the key also covers the contents of the document being verified.
+public class VerifiedSignatures {
+    private static final int kMaxCachedVerdicts = 10000;
+
+    private static final Cache<String, Boolean> theVerdicts = CacheBuilder.newBuilder()
+            .maximumSize(kMaxCachedVerdicts)
+            .build();
+
+    public static boolean verifySignedJSON(JSONObject theJSON) throws JSONException {
+        String theKey = BaseHashing.computeSHA1Hash(theJSON.getString("matchHostPK")) + "." +
+                        BaseHashing.computeSHA1Hash(theJSON.getString("matchHostSignature")) + "." +
+                        BaseHashing.computeSHA1Hash(theJSON.toString());
+        Boolean theVerdict = theVerdicts.getIfPresent(theKey);
+        if (theVerdict == null) {
+            theVerdict = SignableJSON.verifySignedJSON(theJSON);
+            theVerdicts.put(theKey, theVerdict);
+        }
+        return theVerdict;
+    }
+}
@@ -1,14 +1,12 @@
 package ggp.spectator.mapreduce;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Text;
 import com.google.appengine.tools.mapreduce.AppEngineMapper;
 
 import external.JSON.JSONException;
 import external.JSON.JSONObject;
+import ggp.spectator.MatchData;
 
 import org.apache.hadoop.io.NullWritable;
 import org.ggp.base.util.crypto.SignableJSON;
@@ -17,15 +15,14 @@ public class AdjustmentMapper extends AppEngineMapper<Key, Entity, NullWritable,
   // Map over the datastore, identifying and modifying entries which satisfy some criteria.
   public void map(Key key, Entity value, Context context) {
       try {
-          String theJSON = ((Text)value.getProperty("theMatchJSON")).getValue();
-          JSONObject theMatch = new JSONObject(theJSON);
+          MatchData theMatchData = MatchData.loadMatchData(key.getName());
+          JSONObject theMatch = theMatchData.getMatchJSON();
 
           if(shouldAdjust(theMatch)) {
               try {
                   doSignedAdjustment(theMatch);
-                  DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-                  value.setProperty("theMatchJSON", new Text(theMatch.toString()));
-                  datastore.put(value);
+                  theMatchData.replaceMatchJSON(theMatch);
+                  theMatchData.persist();
                   context.getCounter("Overall", "Adjusted").increment(1);
               } catch (Exception e) {
                   context.getCounter("Overall", "Failure").increment(1);
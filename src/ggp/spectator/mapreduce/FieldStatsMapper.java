@@ -2,15 +2,15 @@ package ggp.spectator.mapreduce;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Text;
 import com.google.appengine.tools.mapreduce.AppEngineMapper;
 
-import external.JSON.JSONObject;
+import ggp.spectator.MatchData;
+import ggp.spectator.MatchModel;
 
 import org.apache.hadoop.io.NullWritable;
 
 public class FieldStatsMapper extends AppEngineMapper<Key, Entity, NullWritable, NullWritable> {
-  public static void recordWhetherJSONHas(Context context, JSONObject theMatch, String theKey) {
+  public static void recordWhetherJSONHas(Context context, MatchModel theMatch, String theKey) {
       if (theMatch.has(theKey)) context.getCounter("hasField", theKey).increment(1);
       else context.getCounter("lacksField", theKey).increment(1);
   }
@@ -20,8 +20,7 @@ public class FieldStatsMapper extends AppEngineMapper<Key, Entity, NullWritable,
   @Override
   public void map(Key key, Entity value, Context context) {
     try {
-        String theJSON = ((Text)value.getProperty("theMatchJSON")).getValue();
-        JSONObject theMatch = new JSONObject(theJSON);
+        MatchModel theMatch = MatchData.loadMatchData(key.getName()).getMatchModel();
 
         recordWhetherJSONHas(context, theMatch, "matchId");
         recordWhetherJSONHas(context, theMatch, "startTime");
@@ -45,15 +44,12 @@ public class FieldStatsMapper extends AppEngineMapper<Key, Entity, NullWritable,
         recordWhetherJSONHas(context, theMatch, "playerSignatures");
         recordWhetherJSONHas(context, theMatch, "matchHostSignature");
         
-        try {
-            boolean isCompleted = theMatch.getBoolean("isCompleted");
-            if (isCompleted) {
-                context.getCounter("isCompleted", "Yes").increment(1);
-            } else {
-                context.getCounter("isCompleted", "No").increment(1);
-            }
-        } catch (Exception e2) {
+        if (!theMatch.has("isCompleted")) {
             context.getCounter("isCompleted", "forIndeterminateMatches").increment(1);
+        } else if (theMatch.isCompleted()) {
+            context.getCounter("isCompleted", "Yes").increment(1);
+        } else {
+            context.getCounter("isCompleted", "No").increment(1);
         }
         
         context.getCounter("Overall", "Readable").increment(1);
@@ -1,12 +1,12 @@
 package ggp.spectator.mapreduce;
 
 import external.JSON.JSONObject;
+import ggp.spectator.MatchData;
 import ggp.spectator.MatchValidation;
 import ggp.spectator.MatchValidation.ValidationException;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Text;
 import com.google.appengine.tools.mapreduce.AppEngineMapper;
 
 import org.apache.hadoop.io.NullWritable;
@@ -15,8 +15,7 @@ public class MatchValidationMapper extends AppEngineMapper<Key, Entity, NullWrit
   // Map over the datastore, identifying matches that don't pass validation.
   public void map(Key key, Entity value, Context context) {
       try {
-          String theJSON = ((Text)value.getProperty("theMatchJSON")).getValue();
-          JSONObject theMatch = new JSONObject(theJSON);
+          JSONObject theMatch = MatchData.loadMatchData(key.getName()).getMatchJSON();
           String bucket = theMatch.has("matchHostPK") ? "Signed" : "Anonymous";
 
           try {
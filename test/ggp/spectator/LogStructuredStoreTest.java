@@ -0,0 +1,266 @@
+package ggp.spectator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Checks that reopening a store rebuilds the same index from its logs, that
+// recovery stops cleanly at a torn record, and that compaction keeps the same
+// values, even when it's interrupted. Each test writes its logs to a fresh
+// temporary directory, and reopens the store on it to run recovery.
+public class LogStructuredStoreTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int kRecordHeaderSize = 12;
+
+    private File theDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        theDirectory = Files.createTempDirectory("lss-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File theFile : theDirectory.listFiles()) {
+            theFile.delete();
+        }
+        theDirectory.delete();
+    }
+
+    @Test
+    public void testValuesSurviveReopening() throws IOException {
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false);
+        theStore.put("a", bytes("first"));
+        theStore.put("b", bytes("second"));
+        theStore.put("a", bytes("replaced"));
+        theStore.put("empty", new byte[0]);
+
+        theStore = new LogStructuredStore(theDirectory, false);
+        assertArrayEquals(bytes("replaced"), theStore.get("a"));
+        assertArrayEquals(bytes("second"), theStore.get("b"));
+        assertArrayEquals(new byte[0], theStore.get("empty"));
+        assertNull(theStore.get("missing"));
+        assertEquals(3, theStore.getKeys().size());
+    }
+
+    @Test
+    public void testTombstonesSurviveReopening() throws IOException {
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false);
+        theStore.put("a", bytes("first"));
+        theStore.put("b", bytes("second"));
+        theStore.delete("a");
+        theStore.put("b", bytes("again"));
+        theStore.delete("b");
+        theStore.put("b", bytes("restored"));
+
+        theStore = new LogStructuredStore(theDirectory, false);
+        assertFalse(theStore.contains("a"));
+        assertNull(theStore.get("a"));
+        assertArrayEquals(bytes("restored"), theStore.get("b"));
+    }
+
+    @Test
+    public void testRecoveryStopsAtCorruptRecord() throws IOException {
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false);
+        theStore.put("a", bytes("first"));
+        theStore.put("b", bytes("second"));
+        theStore.put("c", bytes("third"));
+
+        // Flip a byte in the value of "b", so that its checksum no longer matches.
+        int nOffset = recordLength("a", "first") + kRecordHeaderSize + 1;
+        corrupt(new File(theDirectory, "log-00000.dat"), nOffset);
+
+        theStore = new LogStructuredStore(theDirectory, false);
+        assertArrayEquals(bytes("first"), theStore.get("a"));
+        // Nothing after a torn record is trusted, even if it's intact.
+        assertNull(theStore.get("b"));
+        assertNull(theStore.get("c"));
+        assertEquals(1, theStore.getKeys().size());
+    }
+
+    @Test
+    public void testWritesAfterTornRecordAreRecovered() throws IOException {
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false);
+        theStore.put("a", bytes("first"));
+        theStore.put("b", bytes("second"));
+
+        // A record whose length runs past the end of the log, as a partly written
+        // header would.
+        RandomAccessFile theFile = new RandomAccessFile(new File(theDirectory, "log-00000.dat"), "rw");
+        try {
+            theFile.seek(recordLength("a", "first") + 4);
+            theFile.writeInt(Integer.MAX_VALUE - 64);
+        } finally {
+            theFile.close();
+        }
+
+        theStore = new LogStructuredStore(theDirectory, false);
+        assertNull(theStore.get("b"));
+        // New writes replace the torn record, rather than landing after it where
+        // recovery would never reach them.
+        theStore.put("c", bytes("third"));
+        theStore = new LogStructuredStore(theDirectory, false);
+        assertArrayEquals(bytes("first"), theStore.get("a"));
+        assertNull(theStore.get("b"));
+        assertArrayEquals(bytes("third"), theStore.get("c"));
+    }
+
+    @Test
+    public void testRolloverToNewLogs() throws IOException {
+        int nLogFileSize = 3 * recordLength("key00", "value00");
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        for (int i = 0; i < 10; i++) {
+            theStore.put(String.format("key%02d", i), bytes(String.format("value%02d", i)));
+        }
+        // A value bigger than a whole log gets a log of its own.
+        byte[] theLargeValue = new byte[2 * nLogFileSize];
+        theLargeValue[theLargeValue.length - 1] = 42;
+        theStore.put("large", theLargeValue);
+        theStore.delete("key03");
+        assertTrue(new File(theDirectory, "log-00003.dat").exists());
+
+        theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        for (int i = 0; i < 10; i++) {
+            if (i == 3) {
+                assertNull(theStore.get("key03"));
+            } else {
+                assertArrayEquals(bytes(String.format("value%02d", i)), theStore.get(String.format("key%02d", i)));
+            }
+        }
+        assertArrayEquals(theLargeValue, theStore.get("large"));
+
+        // Writing continues in the last log after reopening.
+        theStore.put("after", bytes("reopen"));
+        theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        assertArrayEquals(bytes("reopen"), theStore.get("after"));
+        assertArrayEquals(theLargeValue, theStore.get("large"));
+    }
+
+    @Test
+    public void testCompactionBoundsLogs() throws IOException {
+        int nLogFileSize = 4 * recordLength("key00", "value000");
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        theStore.put("fixed", bytes("kept"));
+        for (int i = 0; i < 500; i++) {
+            theStore.put(String.format("key%02d", i % 3), bytes(String.format("value%03d", i)));
+        }
+        assertTrue("Too many logs: " + Arrays.toString(getLogFiles()), getLogFiles().length <= 4);
+
+        theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        assertArrayEquals(bytes("kept"), theStore.get("fixed"));
+        assertArrayEquals(bytes("value498"), theStore.get("key00"));
+        assertArrayEquals(bytes("value499"), theStore.get("key01"));
+        assertArrayEquals(bytes("value497"), theStore.get("key02"));
+        assertEquals(4, theStore.getKeys().size());
+    }
+
+    @Test
+    public void testCompactionDropsDeletedKeys() throws IOException {
+        int nLogFileSize = 4 * recordLength("key00", "value00");
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        for (int i = 0; i < 20; i++) {
+            theStore.put(String.format("key%02d", i), bytes(String.format("value%02d", i)));
+        }
+        for (int i = 0; i < 20; i += 2) {
+            theStore.delete(String.format("key%02d", i));
+        }
+        for (int i = 0; i < 20; i++) {
+            theStore.put("churn", bytes(String.format("value%02d", i)));
+        }
+
+        theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        for (int i = 0; i < 20; i++) {
+            byte[] theValue = theStore.get(String.format("key%02d", i));
+            if (i % 2 == 0) {
+                assertNull(theValue);
+            } else {
+                assertArrayEquals(bytes(String.format("value%02d", i)), theValue);
+            }
+        }
+        assertArrayEquals(bytes("value19"), theStore.get("churn"));
+    }
+
+    @Test
+    public void testInterruptedCompactionRecovers() throws IOException {
+        int nLogFileSize = 4 * recordLength("key00", "value00");
+        LogStructuredStore theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+        for (int i = 0; i < 6; i++) {
+            theStore.put(String.format("key%02d", i), bytes(String.format("value%02d", i)));
+        }
+        theStore.delete("key01");
+        theStore.put("key02", bytes("newer02"));
+        theStore.delete("key03");
+
+        // Write until the logs are compacted, keeping them as they were before the
+        // write that set it off. That write is copied into the new logs anyway.
+        File[] theOldLogs = getLogFiles();
+        List<byte[]> theOldContents = new ArrayList<byte[]>();
+        for (int i = 0; theOldLogs[0].exists(); i++) {
+            assertTrue("Logs were never compacted", i < 100);
+            theOldLogs = getLogFiles();
+            theOldContents.clear();
+            for (File theLog : theOldLogs) {
+                theOldContents.add(Files.readAllBytes(theLog.toPath()));
+            }
+            theStore.put("churn", bytes(String.format("value%02d", i)));
+        }
+
+        // Put back each suffix of the old logs, as a crash would leave them if it
+        // came while they were being deleted, oldest first.
+        for (int nFirst = 0; nFirst < theOldLogs.length; nFirst++) {
+            for (int i = nFirst; i < theOldLogs.length; i++) {
+                Files.write(theOldLogs[i].toPath(), theOldContents.get(i));
+            }
+            theStore = new LogStructuredStore(theDirectory, false, nLogFileSize);
+            assertArrayEquals(bytes("value00"), theStore.get("key00"));
+            assertNull(theStore.get("key01"));
+            assertArrayEquals(bytes("newer02"), theStore.get("key02"));
+            assertNull(theStore.get("key03"));
+            assertArrayEquals(bytes("value05"), theStore.get("key05"));
+            for (int i = nFirst; i < theOldLogs.length; i++) {
+                theOldLogs[i].delete();
+            }
+        }
+    }
+
+    private File[] getLogFiles() {
+        File[] theLogs = theDirectory.listFiles();
+        Arrays.sort(theLogs);
+        return theLogs;
+    }
+
+    private static byte[] bytes(String theString) {
+        return theString.getBytes(UTF8);
+    }
+
+    private static int recordLength(String theKey, String theValue) {
+        return kRecordHeaderSize + bytes(theKey).length + bytes(theValue).length;
+    }
+
+    private static void corrupt(File theLogFile, int nOffset) throws IOException {
+        RandomAccessFile theFile = new RandomAccessFile(theLogFile, "rw");
+        try {
+            theFile.seek(nOffset);
+            int b = theFile.read();
+            theFile.seek(nOffset);
+            theFile.write(b ^ 0xFF);
+        } finally {
+            theFile.close();
+        }
+    }
+}
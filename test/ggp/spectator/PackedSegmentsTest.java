@@ -0,0 +1,150 @@
+package ggp.spectator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+
+// Checks the pieces of the packed segment format: how strings are split into
+// tokens and joined back together, and how values, varints and zigzag encoded
+// numbers are written and read. Values are packed against a dictionary built
+// here, so nothing is read from or written to a store.
+public class PackedSegmentsTest {
+    private static final GameDictionary theDictionary = new GameDictionary("test", "http://games.ggp.org/base/games/test/v0/", "cell\n1\nb\ncontrol");
+
+    @Test
+    public void testTokens() {
+        assertEquals(Arrays.asList("(", "(", "cell", "1", "1", "b", ")", ")"), PackedSegments.getTokens("( ( cell 1 1 b ) )"));
+        assertEquals(Arrays.asList("noop"), PackedSegments.getTokens("noop"));
+        assertEquals(Collections.emptyList(), PackedSegments.getTokens(""));
+    }
+
+    @Test
+    public void testStringsThatDontJoinBackAreNotTokenized() {
+        assertNull(PackedSegments.getTokens("((cell 1 1 b))"));
+        assertNull(PackedSegments.getTokens("( cell  1 )"));
+        assertNull(PackedSegments.getTokens("( cell\t1 )"));
+        assertNull(PackedSegments.getTokens("( cell\n1 )"));
+        assertNull(PackedSegments.getTokens("  ( cell 1 )"));
+        assertNull(PackedSegments.getTokens("( cell 1 )  "));
+    }
+
+    @Test
+    public void testSpacing() {
+        assertEquals(0, PackedSegments.getSpacing("( a )"));
+        assertEquals(PackedSegments.kLeadingSpace, PackedSegments.getSpacing(" ( a )"));
+        assertEquals(PackedSegments.kTrailingSpace, PackedSegments.getSpacing("( a ) "));
+        assertEquals(PackedSegments.kLeadingSpace | PackedSegments.kTrailingSpace, PackedSegments.getSpacing(" ( a ) "));
+        // A lone space is only a leading space, so that it isn't joined back as two.
+        assertEquals(PackedSegments.kLeadingSpace, PackedSegments.getSpacing(" "));
+    }
+
+    @Test
+    public void testTokensJoinBackIntoString() {
+        String[] theStrings = new String[] { "", " ", "noop", "( a )", " ( a )", "( a ) ", " ( a ) ", "( ( cell 1 1 b ) ( control x ) )" };
+        for (String theString : theStrings) {
+            assertEquals(theString, PackedSegments.joinTokens(PackedSegments.getTokens(theString), PackedSegments.getSpacing(theString)));
+        }
+    }
+
+    @Test
+    public void testValuesRoundTrip() throws JSONException {
+        JSONArray theValue = new JSONArray()
+                .put("( ( cell 1 1 b ) ( control xplayer ) )")
+                .put(" ( cell 1 1 b ) ")
+                .put("((unspaced))")
+                .put("( nested ( \u00e9l\u00e8ve ) )")
+                .put(new JSONArray().put(1).put(-3).put("( cell 2 2 x ) ").put(new JSONArray()))
+                .put(0)
+                .put(Long.MAX_VALUE)
+                .put(Long.MIN_VALUE);
+        assertEquals(theValue.toString(), roundTrip(theValue).toString());
+    }
+
+    @Test
+    public void testSymbolsUseDictionaryIndices() throws JSONException {
+        // kTokens, no spacing, three tokens: kOpen, "cell" as the first symbol, kClose.
+        assertArrayEquals(new byte[] { 0, 0, 3, 0, 3, 1 }, writeValue("( cell )"));
+        // Symbols missing from the dictionary are written out in full, as kLiteral.
+        assertArrayEquals(new byte[] { 0, 0, 1, 2, 1, 'z' }, writeValue("z"));
+    }
+
+    @Test
+    public void testVarints() throws JSONException {
+        assertArrayEquals(new byte[] { 0 }, writeVarint(0));
+        assertArrayEquals(new byte[] { 0x7F }, writeVarint(127));
+        assertArrayEquals(new byte[] { (byte)0x80, 0x01 }, writeVarint(128));
+        assertArrayEquals(new byte[] { (byte)0xAC, 0x02 }, writeVarint(300));
+        assertEquals(10, writeVarint(-1).length);
+        long[] theValues = new long[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+        for (long n : theValues) {
+            PackedSegments.Reader theReader = new PackedSegments.Reader(writeVarint(n));
+            assertEquals(n, theReader.readVarint());
+            assertFalse(theReader.hasMore());
+        }
+    }
+
+    @Test
+    public void testNumbersAreZigzagEncoded() throws JSONException {
+        // kNumber, then the zigzag encoded value.
+        assertArrayEquals(new byte[] { 3, 0 }, writeValue(0));
+        assertArrayEquals(new byte[] { 3, 1 }, writeValue(-1));
+        assertArrayEquals(new byte[] { 3, 2 }, writeValue(1));
+        assertArrayEquals(new byte[] { 3, 3 }, writeValue(-2));
+        assertArrayEquals(new byte[] { 3, 4 }, writeValue(2));
+    }
+
+    @Test
+    public void testNumbersKeepTheirWidth() throws JSONException {
+        assertTrue(roundTrip(-5) instanceof Integer);
+        assertTrue(roundTrip((long)Integer.MAX_VALUE + 1) instanceof Long);
+        assertEquals(Long.MIN_VALUE, roundTrip(Long.MIN_VALUE));
+    }
+
+    @Test(expected=JSONException.class)
+    public void testTruncatedValueIsRejected() throws JSONException {
+        byte[] theBytes = writeValue("( cell 1 1 b )");
+        new PackedSegments.Reader(Arrays.copyOf(theBytes, theBytes.length - 1)).readValue(theDictionary);
+    }
+
+    @Test(expected=JSONException.class)
+    public void testSymbolBeyondDictionaryIsRejected() throws JSONException {
+        new PackedSegments.Reader(new byte[] { 0, 0, 1, 100 }).readValue(theDictionary);
+    }
+
+    @Test(expected=JSONException.class)
+    public void testOverlongVarintIsRejected() throws JSONException {
+        byte[] theBytes = new byte[11];
+        Arrays.fill(theBytes, (byte)0x80);
+        new PackedSegments.Reader(theBytes).readVarint();
+    }
+
+    private static Object roundTrip(Object theValue) throws JSONException {
+        PackedSegments.Reader theReader = new PackedSegments.Reader(writeValue(theValue));
+        Object theRead = theReader.readValue(theDictionary);
+        assertFalse(theReader.hasMore());
+        return theRead;
+    }
+
+    private static byte[] writeValue(Object theValue) throws JSONException {
+        ByteArrayOutputStream theBytes = new ByteArrayOutputStream();
+        PackedSegments.writeValue(theBytes, theValue, theDictionary);
+        return theBytes.toByteArray();
+    }
+
+    private static byte[] writeVarint(long n) {
+        ByteArrayOutputStream theBytes = new ByteArrayOutputStream();
+        PackedSegments.writeVarint(theBytes, n);
+        return theBytes.toByteArray();
+    }
+}
@@ -0,0 +1,188 @@
+package ggp.spectator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+
+// Checks that state deltas give back exactly the states they were taken from,
+// since signatures cover the exact state strings. Most of the states here are
+// random, from fixed seeds, so that failures can be reproduced.
+//
+// The tests are compiled together with src, against the jars in war/WEB-INF/lib,
+// the App Engine API jar, and JUnit 4:
+//
+//   javac -cp <jars> -d test-classes $(find src test -name "*.java")
+//   java -cp test-classes:<jars> org.junit.runner.JUnitCore ggp.spectator.StateDeltasTest
+public class StateDeltasTest {
+    private static final String[] kSeparators = new String[] { " ", " ", " ", "", "  ", "\t", "\n", "\r\n" };
+
+    @Test
+    public void testRandomStatesRoundTrip() throws JSONException {
+        for (long nSeed = 0; nSeed < 200; nSeed++) {
+            Random theRandom = new Random(nSeed);
+            List<String> theFacts = randomFacts(theRandom);
+            String thePrevious = joinState(theRandom, theFacts);
+            for (int i = 0; i < 20; i++) {
+                mutateFacts(theRandom, theFacts);
+                String theState = joinState(theRandom, theFacts);
+                assertRoundTrip(thePrevious, theState);
+                thePrevious = theState;
+            }
+        }
+    }
+
+    @Test
+    public void testRandomSegmentsRoundTrip() throws JSONException {
+        int nDeltas = 0;
+        for (long nSeed = 0; nSeed < 50; nSeed++) {
+            Random theRandom = new Random(nSeed);
+            List<String> theFacts = randomFacts(theRandom);
+            JSONArray theStates = new JSONArray();
+            for (int i = 0; i < 30; i++) {
+                theStates.put(joinState(theRandom, theFacts));
+                mutateFacts(theRandom, theFacts);
+            }
+            JSONArray theEncoded = StateDeltas.encodeStates(theStates);
+            // The first state is always kept whole, as the segment's keyframe.
+            assertTrue(theEncoded.get(0) instanceof String);
+            assertEquals(theStates.toString(), StateDeltas.decodeStates(theEncoded).toString());
+            for (int i = 0; i < theEncoded.length(); i++) {
+                if (theEncoded.get(i) instanceof JSONArray) nDeltas++;
+            }
+        }
+        assertTrue("No states were delta encoded", nDeltas > 0);
+    }
+
+    @Test
+    public void testUnchangedStateKeepsEverything() throws JSONException {
+        String theState = "( ( cell 1 1 b ) ( cell 1 2 x ) ( control white ) )";
+        List<Object> theDelta = StateDeltas.encode(theState, theState);
+        assertEquals(Collections.emptyList(), theDelta);
+        assertEquals(theState, StateDeltas.decode(theState, theDelta));
+    }
+
+    @Test
+    public void testTrailingPiecesAreKept() throws JSONException {
+        String thePrevious = "( (a) (b) )";
+        assertEquals("( (c) (a) (b) )", StateDeltas.decode(thePrevious, Arrays.<Object>asList(1, "(c) ")));
+        assertEquals("( (b) )", StateDeltas.decode(thePrevious, Arrays.<Object>asList(1, -1)));
+        assertEquals(thePrevious, StateDeltas.decode(thePrevious, Arrays.<Object>asList(2)));
+    }
+
+    @Test
+    public void testUnparseableStatesRoundTrip() throws JSONException {
+        String[] theStates = new String[] {
+            "", " ", "(", ")", "()", "( )", "((", "))", "(a", "a)", "( (a) (b)", "( (a) (b) ) )",
+            ") (a) (", "not a state", "( (a) ) trailing", "leading ( (a) )", "( a b c )", "((a)(b)(c))",
+        };
+        for (String thePrevious : theStates) {
+            for (String theState : theStates) {
+                assertRoundTrip(thePrevious, theState);
+            }
+        }
+    }
+
+    @Test
+    public void testPiecesJoinBackIntoState() {
+        Random theRandom = new Random(0);
+        String theAlphabet = "( )\t\nab1";
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder b = new StringBuilder();
+            int nLength = theRandom.nextInt(24);
+            for (int j = 0; j < nLength; j++) {
+                b.append(theAlphabet.charAt(theRandom.nextInt(theAlphabet.length())));
+            }
+            String theState = b.toString();
+            StringBuilder theJoined = new StringBuilder();
+            for (String thePiece : StateDeltas.split(theState)) {
+                theJoined.append(thePiece);
+            }
+            assertEquals(theState, theJoined.toString());
+        }
+    }
+
+    @Test(expected=JSONException.class)
+    public void testDeltaWithoutKeyframeIsRejected() throws JSONException {
+        StateDeltas.decodeStates(new JSONArray().put(new JSONArray().put(1)));
+    }
+
+    @Test(expected=JSONException.class)
+    public void testDeltaBeyondPreviousStateIsRejected() throws JSONException {
+        StateDeltas.decode("( (a) (b) )", Arrays.<Object>asList(5));
+    }
+
+    @Test(expected=JSONException.class)
+    public void testEmptyOperationIsRejected() throws JSONException {
+        StateDeltas.decode("( (a) (b) )", Arrays.<Object>asList(0));
+    }
+
+    private static void assertRoundTrip(String thePrevious, String theState) throws JSONException {
+        List<Object> theDelta = StateDeltas.encode(thePrevious, theState);
+        if (theDelta != null) {
+            assertEquals("Delta " + theDelta + " from [" + thePrevious + "]", theState, StateDeltas.decode(thePrevious, theDelta));
+        }
+    }
+
+    private static List<String> randomFacts(Random theRandom) {
+        List<String> theFacts = new ArrayList<String>();
+        int nFacts = 1 + theRandom.nextInt(30);
+        for (int i = 0; i < nFacts; i++) {
+            theFacts.add(randomFact(theRandom));
+        }
+        return theFacts;
+    }
+
+    private static String randomFact(Random theRandom) {
+        switch (theRandom.nextInt(4)) {
+        case 0:
+            return "( cell " + (1 + theRandom.nextInt(8)) + " " + (1 + theRandom.nextInt(8)) + " " + (theRandom.nextBoolean() ? "b" : "x") + " )";
+        case 1:
+            return "( control " + (theRandom.nextBoolean() ? "white" : "black") + " )";
+        case 2:
+            return "( step " + theRandom.nextInt(100) + " )";
+        default:
+            return "terminal" + theRandom.nextInt(3);
+        }
+    }
+
+    // Removes, adds, replaces and occasionally swaps facts, which covers the kept,
+    // skipped and new pieces of a delta.
+    private static void mutateFacts(Random theRandom, List<String> theFacts) {
+        int nChanges = theRandom.nextInt(4);
+        for (int i = 0; i < nChanges; i++) {
+            int nOperation = theRandom.nextInt(4);
+            if (nOperation == 0 && !theFacts.isEmpty()) {
+                theFacts.remove(theRandom.nextInt(theFacts.size()));
+            } else if (nOperation == 1 && !theFacts.isEmpty()) {
+                theFacts.set(theRandom.nextInt(theFacts.size()), randomFact(theRandom));
+            } else if (nOperation == 2 && theFacts.size() > 1) {
+                Collections.swap(theFacts, theRandom.nextInt(theFacts.size()), theRandom.nextInt(theFacts.size()));
+            } else {
+                theFacts.add(theRandom.nextInt(theFacts.size() + 1), randomFact(theRandom));
+            }
+        }
+    }
+
+    // Joins the facts into a state, with the spacing varying between states the
+    // way it does between match hosts.
+    private static String joinState(Random theRandom, List<String> theFacts) {
+        String theSeparator = kSeparators[theRandom.nextInt(kSeparators.length)];
+        StringBuilder b = new StringBuilder("(");
+        b.append(theRandom.nextBoolean() ? " " : theSeparator);
+        for (String theFact : theFacts) {
+            b.append(theFact).append(theSeparator);
+        }
+        b.append(")");
+        return b.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package ggp.spectator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+// Checks that the streaming validator accepts a well-formed match, and rejects
+// the malformed ones that MatchValidation.performInternalConsistencyChecks
+// rejects.
+public class StreamingMatchValidatorTest {
+    private static final String kGameMetaURL = "\"gameMetaURL\":\"http://games.ggp.org/base/games/ticTacToe/v0/\"";
+
+    private static String buildMatch(String theStateTimes, String theMoves) {
+        return "{\"matchId\":\"test.1\",\"startTime\":1400000000000,\"randomToken\":\"abc\",\"startClock\":30,\"playClock\":15," +
+               "\"states\":[\"( (control x) )\",\"( (control o) )\"],\"moves\":" + theMoves + ",\"stateTimes\":" + theStateTimes + "," + kGameMetaURL + "}";
+    }
+
+    private static String buildMatch(String theStateTimes) {
+        return buildMatch(theStateTimes, "[[\"noop\",\"( mark 1 1 )\"]]");
+    }
+
+    @Test
+    public void testValidMatch() throws MatchValidation.ValidationException {
+        StreamingMatchValidator.validate(buildMatch("[1400000000000,1400000001000]"));
+        StreamingMatchValidator.validate(buildMatch("[1400000000000,\"1400000001000\"]"));
+    }
+
+    @Test
+    public void testStateTimesHoldingContainers() {
+        assertRejected(buildMatch("[1400000000000,[1]]"), "stateTimes is not a number");
+        assertRejected(buildMatch("[1400000000000,[]]"), "stateTimes is not a number");
+        assertRejected(buildMatch("[1400000000000,{}]"), "stateTimes is not a number");
+        assertRejected(buildMatch("[{\"t\":1400000000000},1400000001000]"), "stateTimes is not a number");
+    }
+
+    @Test
+    public void testStateTimesGoingBackwards() {
+        assertRejected(buildMatch("[1400000001000,1400000000000]"), "backward");
+    }
+
+    @Test
+    public void testStateTimesMustBeNumbers() {
+        assertRejected(buildMatch("[1400000000000,\"soon\"]"), "stateTimes is not a number");
+    }
+
+    @Test
+    public void testMovesHoldingContainers() {
+        assertRejected(buildMatch("[1400000000000,1400000001000]", "[[\"noop\",[\"( mark 1 1 )\"]]]"), "Expecting string");
+        assertRejected(buildMatch("[1400000000000,1400000001000]", "[[\"noop\",{}]]"), "Expecting string");
+        assertRejected(buildMatch("[1400000000000,1400000001000]", "[\"noop\"]"), "must hold arrays");
+    }
+
+    @Test
+    public void testMismatchedLengths() {
+        assertRejected(buildMatch("[1400000000000]"), "state times");
+    }
+
+    private static void assertRejected(String theMatch, String theExpectedMessage) {
+        try {
+            StreamingMatchValidator.validate(theMatch);
+            fail("Accepted " + theMatch);
+        } catch (MatchValidation.ValidationException e) {
+            assertTrue("Unexpected error: " + e.getMessage(), e.getMessage().contains(theExpectedMessage));
+        }
+    }
+}
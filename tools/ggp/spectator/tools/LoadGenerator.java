@@ -0,0 +1,340 @@
+package ggp.spectator.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// An end-to-end load test for a locally running spectator server. Simulated
+// match hosts post growing match JSON to "/" once per play clock, the way real
+// hosts do, while simulated spectators poll the matches, their Atom feeds, and
+// the recent match feeds. Latency percentiles, throughput and error rates are
+// reported per kind of request every few seconds, and in total at the end.
+// Everything is seeded, so two runs with the same options send the same
+// requests in the same per-thread order.
+//
+// To run against stub persistence, start the dev server with
+//   -Dggp.spectator.store=embedded -Dggp.spectator.storeDir=<scratch dir>
+//   -Dggp.spectator.hubURL=http://localhost:9876/
+//   -Dggp.spectator.notifyTargets=http://localhost:9877/ingest_match?matchURL=
+//   -Dggp.spectator.notifyQueue=memory
+// and pass stubs=true here, which starts StubHub and StubReceiver on those ports.
+//
+// The tools are kept out of src, so that they aren't built into the WAR, since
+// they use the JDK's HTTP server and console, which App Engine doesn't allow.
+// They're compiled together with src, against the jars in war/WEB-INF/lib and
+// the App Engine API jar:
+//
+//   javac -cp <jars> -d tools-classes $(find src tools -name "*.java")
+//   java -cp tools-classes:<jars> ggp.spectator.tools.LoadGenerator [options]
+//
+// Usage: LoadGenerator [name=value ...], where the options and their defaults are
+//   server=http://localhost:8080  hosts=10  spectators=100  seconds=60
+//   playClockMillis=15000  pollMillis=2000  players=2  cells=64  signed=false
+//   seed=1  reportSeconds=10  stubs=false
+public class LoadGenerator {
+    private static final String[] kOptionDefaults = new String[] {
+        "server", "http://localhost:8080",
+        "hosts", "10",
+        "spectators", "100",
+        "seconds", "60",
+        "playClockMillis", "15000",
+        "pollMillis", "2000",
+        "players", "2",
+        "cells", "64",
+        "signed", "false",
+        "seed", "1",
+        "reportSeconds", "10",
+        "stubs", "false",
+    };
+
+    private static final String INGEST = "ingest";
+    private static final String MATCH = "match";
+    private static final String MATCH_FEED = "match feed";
+    private static final String RECENT_FEED = "recent feed";
+    private static final String[] kRequestKinds = new String[] { INGEST, MATCH, MATCH_FEED, RECENT_FEED };
+
+    // Latencies are recorded per kind of request, in microseconds, and swapped
+    // out at each report so that interim reports cover only their interval.
+    private static class LatencyRecorder {
+        private List<Long> theLatencies = new ArrayList<Long>();
+        private long nErrors = 0;
+        private long nFailures = 0;
+        private long nNotModified = 0;
+        private final List<Long> theTotalLatencies = new ArrayList<Long>();
+        private long nTotalErrors = 0;
+        private long nTotalFailures = 0;
+        private long nTotalNotModified = 0;
+
+        synchronized void record(long nMicros, int nResponseCode) {
+            if (nResponseCode == 304) {
+                nNotModified++;
+            } else if (nResponseCode < 200 || nResponseCode >= 300) {
+                nErrors++;
+            }
+            theLatencies.add(nMicros);
+        }
+
+        // For requests that got no response at all.
+        synchronized void recordFailure() {
+            nErrors++;
+            nFailures++;
+        }
+
+        synchronized String takeReport(String theKind, double nSeconds) {
+            String theReport = formatReport(theKind, theLatencies, nErrors, nFailures, nNotModified, nSeconds);
+            theTotalLatencies.addAll(theLatencies);
+            nTotalErrors += nErrors;
+            nTotalFailures += nFailures;
+            nTotalNotModified += nNotModified;
+            theLatencies = new ArrayList<Long>();
+            nErrors = 0;
+            nFailures = 0;
+            nNotModified = 0;
+            return theReport;
+        }
+
+        synchronized String getTotalReport(String theKind, double nSeconds) {
+            return formatReport(theKind, theTotalLatencies, nTotalErrors, nTotalFailures, nTotalNotModified, nSeconds);
+        }
+
+        private static String formatReport(String theKind, List<Long> theLatencies, long nErrors, long nFailures, long nNotModified, double nSeconds) {
+            long[] theSorted = new long[theLatencies.size()];
+            for (int i = 0; i < theSorted.length; i++) {
+                theSorted[i] = theLatencies.get(i);
+            }
+            Arrays.sort(theSorted);
+            long nRequests = theSorted.length + nFailures;
+            return String.format("%-12s %8d req %8.1f req/s %6.2f%% err %6d 304  p50 %8.1f  p90 %8.1f  p99 %8.1f  p99.9 %8.1f  max %8.1f ms",
+                    theKind, nRequests, nRequests / nSeconds, nRequests == 0 ? 0.0 : 100.0 * nErrors / nRequests, nNotModified,
+                    getPercentile(theSorted, 0.5), getPercentile(theSorted, 0.9), getPercentile(theSorted, 0.99),
+                    getPercentile(theSorted, 0.999), getPercentile(theSorted, 1.0));
+        }
+
+        private static double getPercentile(long[] theSorted, double nFraction) {
+            if (theSorted.length == 0) return 0;
+            int nIndex = (int)Math.ceil(nFraction * theSorted.length) - 1;
+            return theSorted[Math.max(0, nIndex)] / 1000.0;
+        }
+    }
+
+    private final Map<String, String> theOptions;
+    private final String theServer;
+    private final Map<String, LatencyRecorder> theRecorders = new HashMap<String, LatencyRecorder>();
+    private final List<String> theMatchKeys = new CopyOnWriteArrayList<String>();
+    private final SyntheticMatchGenerator theGenerator;
+    private volatile long nEndTime;
+
+    public LoadGenerator(Map<String, String> theOptions) {
+        this.theOptions = theOptions;
+        this.theServer = theOptions.get("server");
+        for (String theKind : kRequestKinds) {
+            theRecorders.put(theKind, new LatencyRecorder());
+        }
+        this.theGenerator = new SyntheticMatchGenerator(getInt("players"), getInt("cells"), Boolean.parseBoolean(theOptions.get("signed")));
+    }
+
+    private int getInt(String theOption) {
+        return Integer.parseInt(theOptions.get(theOption));
+    }
+
+    // Posts one match after another, each growing by a step per play clock until
+    // every cell is marked and the match completes.
+    private void runMatchHost(int nHost) {
+        Random theRandom = new Random(Long.parseLong(theOptions.get("seed")) * 31 + nHost);
+        long nPlayClockMillis = getInt("playClockMillis");
+        int nSteps = getInt("cells");
+        String theAuthToken = "load-host-" + nHost;
+        // Hosts start at random points in their first play clock, so they don't
+        // post in lockstep.
+        sleepUntil(System.currentTimeMillis() + (long)(theRandom.nextDouble() * nPlayClockMillis));
+        // Each host plays its own series of matches, so which matches it posts
+        // doesn't depend on how fast the other hosts are going.
+        for (int nMatch = nHost; System.currentTimeMillis() < nEndTime; nMatch += getInt("hosts")) {
+            long nNextPost = System.currentTimeMillis();
+            for (int nStep = 0; nStep <= nSteps && System.currentTimeMillis() < nEndTime; nStep++) {
+                String theMatchJSON = theGenerator.generateMatch(nMatch, nStep, nStep == nSteps).toString();
+                String theBody;
+                try {
+                    theBody = "DATA=" + URLEncoder.encode(theMatchJSON, "UTF-8") + "&AUTH=" + URLEncoder.encode(theAuthToken, "UTF-8");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                String theResponse = request(INGEST, theServer + "/", theBody, null);
+                if (nStep == 0 && theResponse != null && !theResponse.trim().isEmpty()) {
+                    theMatchKeys.add(theResponse.trim());
+                }
+                nNextPost += nPlayClockMillis;
+                sleepUntil(nNextPost);
+            }
+        }
+    }
+
+    // Polls a random known match, mostly for its JSON, sometimes for its Atom feed,
+    // and sometimes polls the recent match feeds instead. Responses are validated
+    // with the ETags of earlier responses, as browsers do.
+    private void runSpectator(int nSpectator) {
+        Random theRandom = new Random(Long.parseLong(theOptions.get("seed")) * 31 + 1000003L + nSpectator);
+        long nPollMillis = getInt("pollMillis");
+        Map<String, String> theETags = new HashMap<String, String>();
+        sleepUntil(System.currentTimeMillis() + (long)(theRandom.nextDouble() * nPollMillis));
+        while (System.currentTimeMillis() < nEndTime) {
+            long nNextPoll = System.currentTimeMillis() + nPollMillis / 2 + (long)(theRandom.nextDouble() * nPollMillis);
+            double nChoice = theRandom.nextDouble();
+            if (nChoice < 0.2 || theMatchKeys.isEmpty()) {
+                String theFeed = theRandom.nextBoolean() ? "updatedFeed" : "completedFeed";
+                request(RECENT_FEED, theServer + "/matches/feeds/" + theFeed + ".json", null, theETags);
+            } else {
+                String theMatchKey = theMatchKeys.get(theRandom.nextInt(theMatchKeys.size()));
+                if (nChoice < 0.8) {
+                    request(MATCH, theServer + "/matches/" + theMatchKey + "/", null, theETags);
+                } else {
+                    request(MATCH_FEED, theServer + "/matches/" + theMatchKey + "/feed.atom", null, theETags);
+                }
+            }
+            sleepUntil(nNextPoll);
+        }
+    }
+
+    // Sends a GET, or a form POST when there's a body, and returns the response
+    // body, or null if the request failed.
+    private String request(String theKind, String theURL, String theBody, Map<String, String> theETags) {
+        LatencyRecorder theRecorder = theRecorders.get(theKind);
+        long nStart = System.nanoTime();
+        HttpURLConnection theConnection = null;
+        try {
+            theConnection = (HttpURLConnection)new URL(theURL).openConnection();
+            theConnection.setConnectTimeout(5000);
+            theConnection.setReadTimeout(30000);
+            if (theETags != null && theETags.containsKey(theURL)) {
+                theConnection.setRequestProperty("If-None-Match", theETags.get(theURL));
+            }
+            if (theBody != null) {
+                theConnection.setDoOutput(true);
+                theConnection.setRequestMethod("POST");
+                theConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = theConnection.getOutputStream();
+                out.write(theBody.getBytes("UTF-8"));
+                out.close();
+            }
+            int nResponseCode = theConnection.getResponseCode();
+            InputStream in = (nResponseCode >= 400) ? theConnection.getErrorStream() : theConnection.getInputStream();
+            String theResponse = (in == null) ? "" : readFully(in);
+            theRecorder.record((System.nanoTime() - nStart) / 1000, nResponseCode);
+            if (theETags != null && theConnection.getHeaderField("ETag") != null) {
+                theETags.put(theURL, theConnection.getHeaderField("ETag"));
+            }
+            return (nResponseCode >= 200 && nResponseCode < 300) ? theResponse : null;
+        } catch (IOException e) {
+            theRecorder.recordFailure();
+            return null;
+        } finally {
+            if (theConnection != null) {
+                theConnection.disconnect();
+            }
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        StringBuilder b = new StringBuilder();
+        byte[] theBuffer = new byte[4096];
+        int n;
+        while ((n = in.read(theBuffer)) >= 0) {
+            b.append(new String(theBuffer, 0, n, "UTF-8"));
+        }
+        in.close();
+        return b.toString();
+    }
+
+    private static void sleepUntil(long nTime) {
+        long nDelay = nTime - System.currentTimeMillis();
+        if (nDelay <= 0) return;
+        try {
+            Thread.sleep(nDelay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() throws InterruptedException {
+        long nStartTime = System.currentTimeMillis();
+        nEndTime = nStartTime + getInt("seconds") * 1000L;
+
+        List<Thread> theThreads = new ArrayList<Thread>();
+        for (int i = 0; i < getInt("hosts"); i++) {
+            final int nHost = i;
+            theThreads.add(new Thread(new Runnable() {
+                public void run() {
+                    runMatchHost(nHost);
+                }
+            }, "host-" + nHost));
+        }
+        for (int i = 0; i < getInt("spectators"); i++) {
+            final int nSpectator = i;
+            theThreads.add(new Thread(new Runnable() {
+                public void run() {
+                    runSpectator(nSpectator);
+                }
+            }, "spectator-" + nSpectator));
+        }
+        for (Thread theThread : theThreads) {
+            theThread.setDaemon(true);
+            theThread.start();
+        }
+
+        long nReportMillis = getInt("reportSeconds") * 1000L;
+        long nLastReport = nStartTime;
+        while (System.currentTimeMillis() < nEndTime) {
+            sleepUntil(Math.min(nEndTime, nLastReport + nReportMillis));
+            long nNow = System.currentTimeMillis();
+            System.out.println("--- " + (nNow - nStartTime) / 1000 + "s, " + theMatchKeys.size() + " matches");
+            for (String theKind : kRequestKinds) {
+                System.out.println(theRecorders.get(theKind).takeReport(theKind, (nNow - nLastReport) / 1000.0));
+            }
+            nLastReport = nNow;
+        }
+        // Requests still in flight at the end are left out of the totals.
+        for (Thread theThread : theThreads) {
+            theThread.join(1000);
+        }
+
+        double nSeconds = (System.currentTimeMillis() - nStartTime) / 1000.0;
+        System.out.println("=== Totals over " + (long)nSeconds + "s");
+        for (String theKind : kRequestKinds) {
+            System.out.println(theRecorders.get(theKind).getTotalReport(theKind, nSeconds));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> theOptions = new TreeMap<String, String>();
+        for (int i = 0; i < kOptionDefaults.length; i += 2) {
+            theOptions.put(kOptionDefaults[i], kOptionDefaults[i+1]);
+        }
+        for (String theArg : args) {
+            int nEquals = theArg.indexOf('=');
+            if (nEquals < 0 || !theOptions.containsKey(theArg.substring(0, nEquals))) {
+                System.err.println("Unknown option: " + theArg + ". Options are: " + theOptions.keySet());
+                System.exit(1);
+            }
+            theOptions.put(theArg.substring(0, nEquals), theArg.substring(nEquals + 1));
+        }
+        System.out.println("Options: " + theOptions);
+
+        if (Boolean.parseBoolean(theOptions.get("stubs"))) {
+            StubHub.main(new String[] { "9876" });
+            StubReceiver.main(new String[] { "9877" });
+        }
+        new LoadGenerator(theOptions).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,75 @@
+package ggp.spectator.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// A stand-in PuSH hub for local testing. It accepts publish requests, logs the
+// feeds they name, and can be made slow or unreliable, so the publisher's
+// backoff and circuit breaker can be exercised without a real hub. Point the
+// spectator server at it with the ggp.spectator.hubURL system property.
+//
+// Usage: StubHub [port] [failure rate, from 0 to 1] [latency in milliseconds]
+public class StubHub {
+    public static void main(String[] args) throws IOException {
+        int nPort = (args.length > 0) ? Integer.parseInt(args[0]) : 9876;
+        final double nFailureRate = (args.length > 1) ? Double.parseDouble(args[1]) : 0.0;
+        final long nLatencyMillis = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+        final Random theRandom = new Random();
+        final AtomicLong nPublishes = new AtomicLong();
+        final AtomicLong nFeeds = new AtomicLong();
+
+        HttpServer theServer = HttpServer.create(new InetSocketAddress(nPort), 0);
+        theServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange theExchange) throws IOException {
+                String theBody = readFully(theExchange.getRequestBody());
+                try {
+                    Thread.sleep(nLatencyMillis);
+                } catch (InterruptedException e) {
+                    ;
+                }
+
+                int nResponseCode;
+                synchronized (theRandom) {
+                    nResponseCode = (theRandom.nextDouble() < nFailureRate) ? 503 : 204;
+                }
+                if (nResponseCode == 204) {
+                    nPublishes.incrementAndGet();
+                    for (String theParam : theBody.split("&")) {
+                        if (theParam.startsWith("hub.url=")) {
+                            nFeeds.incrementAndGet();
+                            System.out.println("Published: " + URLDecoder.decode(theParam.substring("hub.url=".length()), "UTF-8"));
+                        }
+                    }
+                    System.out.println("Totals: " + nPublishes.get() + " publishes, " + nFeeds.get() + " feeds");
+                } else {
+                    System.out.println("Failing publish request: " + theBody);
+                }
+                theExchange.sendResponseHeaders(nResponseCode, -1);
+                OutputStream out = theExchange.getResponseBody();
+                out.close();
+            }
+        });
+        theServer.start();
+        System.out.println("Stub PuSH hub listening on port " + nPort);
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        StringBuilder b = new StringBuilder();
+        byte[] theBuffer = new byte[1024];
+        int n;
+        while ((n = in.read(theBuffer)) >= 0) {
+            b.append(new String(theBuffer, 0, n, "UTF-8"));
+        }
+        in.close();
+        return b.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package ggp.spectator.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// A stand-in for the downstream services that are notified of match updates,
+// like the database server's ingest_match endpoint, for local testing. It logs
+// each notification it receives, and can be made slow or unreliable. Point the
+// spectator server at it with the ggp.spectator.notifyTargets system property,
+// for example "http://localhost:9877/ingest_match?matchURL=".
+//
+// Usage: StubReceiver [port] [failure rate, from 0 to 1] [latency in milliseconds]
+public class StubReceiver {
+    public static void main(String[] args) throws IOException {
+        int nPort = (args.length > 0) ? Integer.parseInt(args[0]) : 9877;
+        final double nFailureRate = (args.length > 1) ? Double.parseDouble(args[1]) : 0.0;
+        final long nLatencyMillis = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+        final Random theRandom = new Random();
+        final AtomicLong nReceived = new AtomicLong();
+
+        HttpServer theServer = HttpServer.create(new InetSocketAddress(nPort), 0);
+        theServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange theExchange) throws IOException {
+                try {
+                    Thread.sleep(nLatencyMillis);
+                } catch (InterruptedException e) {
+                    ;
+                }
+
+                int nResponseCode;
+                synchronized (theRandom) {
+                    nResponseCode = (theRandom.nextDouble() < nFailureRate) ? 503 : 200;
+                }
+                if (nResponseCode == 200) {
+                    System.out.println("Received #" + nReceived.incrementAndGet() + ": " + theExchange.getRequestURI());
+                } else {
+                    System.out.println("Failing: " + theExchange.getRequestURI());
+                }
+                byte[] theResponse = (nResponseCode == 200 ? "OK" : "Unavailable").getBytes("UTF-8");
+                theExchange.sendResponseHeaders(nResponseCode, theResponse.length);
+                OutputStream out = theExchange.getResponseBody();
+                out.write(theResponse);
+                out.close();
+            }
+        });
+        // Handle requests concurrently, so that latency doesn't serialize them.
+        theServer.setExecutor(Executors.newCachedThreadPool());
+        theServer.start();
+        System.out.println("Stub notification receiver listening on port " + nPort);
+    }
+}
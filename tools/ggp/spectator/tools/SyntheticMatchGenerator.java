@@ -0,0 +1,184 @@
+package ggp.spectator.tools;
+
+import org.ggp.base.util.crypto.BaseCryptography;
+import org.ggp.base.util.crypto.BaseCryptography.EncodedKeyPair;
+import org.ggp.base.util.crypto.SignableJSON;
+
+import external.JSON.JSONArray;
+import external.JSON.JSONException;
+import external.JSON.JSONObject;
+
+// Generates match JSON of the kind that match hosts post, for benchmarks and
+// load tests. Matches are a generic board game: each state has one cell fact per
+// board position plus control and step facts, and one more cell is marked on
+// each step, so the states grow and change like real ones do. Everything is
+// derived from the match number and step, so generating the same match twice
+// gives the same JSON, and each version of a match is a valid append-only
+// update of the versions before it.
+//
+// Usage: SyntheticMatchGenerator [players] [steps] [cells per state] [signed]
+public class SyntheticMatchGenerator {
+    private static final int kPlayClockSeconds = 15;
+
+    private final int nPlayers;
+    private final int nCellsPerState;
+    private final boolean isSigned;
+    private final long nBaseStartTime;
+    private final EncodedKeyPair theKeys;
+
+    public SyntheticMatchGenerator(int nPlayers, int nCellsPerState, boolean isSigned) {
+        this.nPlayers = nPlayers;
+        this.nCellsPerState = nCellsPerState;
+        this.isSigned = isSigned;
+        // Matches start in the recent past, so that every state time passes
+        // validation no matter how many steps are generated.
+        this.nBaseStartTime = (System.currentTimeMillis() / 1000) * 1000 - 86400000L;
+        this.theKeys = isSigned ? BaseCryptography.generateKeys() : null;
+    }
+
+    public int getPlayerCount() {
+        return nPlayers;
+    }
+
+    public long getPlayClockMillis() {
+        return kPlayClockSeconds * 1000L;
+    }
+
+    // Returns the given match as it is after nSteps moves, with nSteps+1 states.
+    // Completed matches also have goal values.
+    public JSONObject generateMatch(int nMatch, int nSteps, boolean isCompleted) {
+        try {
+            long nStartTime = nBaseStartTime + nMatch;
+            JSONObject theMatch = new JSONObject();
+            theMatch.put("matchId", "synthetic." + nMatch);
+            theMatch.put("randomToken", "synthetic-token-" + Long.toHexString(mix(nMatch, 0, 0)));
+            theMatch.put("startTime", nStartTime);
+            theMatch.put("startClock", 30);
+            theMatch.put("playClock", kPlayClockSeconds);
+            theMatch.put("gameMetaURL", "http://games.ggp.org/base/games/synthetic/v0/");
+            theMatch.put("gameName", "Synthetic");
+
+            JSONArray theRoleNames = new JSONArray();
+            JSONArray thePlayerNames = new JSONArray();
+            for (int nPlayer = 0; nPlayer < nPlayers; nPlayer++) {
+                theRoleNames.put(getRoleName(nPlayer));
+                thePlayerNames.put("SyntheticPlayer" + nPlayer);
+            }
+            theMatch.put("gameRoleNames", theRoleNames);
+            theMatch.put("playerNamesFromHost", thePlayerNames);
+
+            JSONArray theStates = new JSONArray();
+            JSONArray theStateTimes = new JSONArray();
+            JSONArray theMoves = new JSONArray();
+            JSONArray theErrors = new JSONArray();
+            for (int nStep = 0; nStep <= nSteps; nStep++) {
+                theStates.put(generateState(nMatch, nStep));
+                theStateTimes.put(nStartTime + 30000L + nStep * getPlayClockMillis());
+                JSONArray theStepErrors = new JSONArray();
+                for (int nPlayer = 0; nPlayer < nPlayers; nPlayer++) {
+                    theStepErrors.put("");
+                }
+                theErrors.put(theStepErrors);
+                if (nStep > 0) {
+                    theMoves.put(generateMoves(nMatch, nStep));
+                }
+            }
+            theMatch.put("states", theStates);
+            theMatch.put("stateTimes", theStateTimes);
+            theMatch.put("moves", theMoves);
+            theMatch.put("errors", theErrors);
+
+            theMatch.put("isCompleted", isCompleted);
+            if (isCompleted) {
+                JSONArray theGoals = new JSONArray();
+                for (int nPlayer = 0; nPlayer < nPlayers; nPlayer++) {
+                    theGoals.put((int)(mix(nMatch, nSteps, nPlayer) % 101));
+                }
+                theMatch.put("goalValues", theGoals);
+            }
+
+            if (isSigned) {
+                // This adds the matchHostPK and matchHostSignature fields.
+                SignableJSON.signJSON(theMatch, theKeys.thePublicKey, theKeys.thePrivateKey);
+            }
+            return theMatch;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String getRoleName(int nPlayer) {
+        return "role" + nPlayer;
+    }
+
+    // Cells are marked one per step, in an order that depends on the match, and
+    // each is marked by whichever player moved on that step.
+    private String generateState(int nMatch, int nStep) {
+        long nStride = getStride(nMatch);
+        StringBuilder b = new StringBuilder("( ");
+        for (int nCell = 0; nCell < nCellsPerState; nCell++) {
+            int nMarkedOnStep = getMarkingStep(nMatch, nStride, nCell);
+            String theMark = (nMarkedOnStep > 0 && nMarkedOnStep <= nStep) ? getRoleName(nMarkedOnStep % nPlayers) : "b";
+            b.append("( cell ").append(nCell).append(' ').append(theMark).append(" ) ");
+        }
+        b.append("( control ").append(getRoleName(nStep % nPlayers)).append(" ) ");
+        b.append("( step ").append(nStep).append(" ) )");
+        return b.toString();
+    }
+
+    private JSONArray generateMoves(int nMatch, int nStep) {
+        JSONArray theMoves = new JSONArray();
+        int nCell = getMarkedCell(nMatch, nStep);
+        for (int nPlayer = 0; nPlayer < nPlayers; nPlayer++) {
+            if (nPlayer == nStep % nPlayers && nCell >= 0) {
+                theMoves.put("( mark " + nCell + " )");
+            } else {
+                theMoves.put("noop");
+            }
+        }
+        return theMoves;
+    }
+
+    // The step on which a cell is marked, from 1 to nCellsPerState, by way of a
+    // fixed permutation of the cells.
+    private int getMarkingStep(int nMatch, long nStride, int nCell) {
+        return (int)((nCell * nStride + nMatch) % nCellsPerState) + 1;
+    }
+
+    // Returns -1 once every cell has been marked, after which players pass.
+    private int getMarkedCell(int nMatch, int nStep) {
+        long nStride = getStride(nMatch);
+        for (int nCell = 0; nCell < nCellsPerState; nCell++) {
+            if (getMarkingStep(nMatch, nStride, nCell) == nStep) return nCell;
+        }
+        return -1;
+    }
+
+    // A stride that's coprime with the number of cells, so that it permutes them.
+    private long getStride(int nMatch) {
+        long nStride = 1 + (mix(nMatch, 1, 1) % nCellsPerState);
+        while (gcd(nStride, nCellsPerState) != 1) nStride++;
+        return nStride;
+    }
+
+    private static long gcd(long a, long b) {
+        return (b == 0) ? a : gcd(b, a % b);
+    }
+
+    private static long mix(long a, long b, long c) {
+        long x = a * 0x9E3779B97F4A7C15L + b * 0xC2B2AE3D27D4EB4FL + c;
+        x ^= (x >>> 31);
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= (x >>> 29);
+        return x & Long.MAX_VALUE;
+    }
+
+    public static void main(String[] args) {
+        int nPlayers = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+        int nSteps = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int nCells = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        boolean isSigned = (args.length > 3) && Boolean.parseBoolean(args[3]);
+        SyntheticMatchGenerator theGenerator = new SyntheticMatchGenerator(nPlayers, nCells, isSigned);
+        System.out.println(theGenerator.generateMatch(0, nSteps, nSteps >= nCells));
+    }
+}